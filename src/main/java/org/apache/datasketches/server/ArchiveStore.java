@@ -0,0 +1,366 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.datasketches.memory.Memory;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * An on-disk, append-only store of serialized sketches, each labeled with the start of the minute, hour or day
+ * it summarizes. Every sketch name and level has its own segment, made of a data file holding the serialized
+ * images back to back and an index file of fixed-size records giving the start time, offset and length of each
+ * image. Images are written before their index record, so a partial write after a crash is ignored on reload.
+ * <p>
+ * A time range is covered by the coarsest records available: whole days where a day record exists, then whole
+ * hours, then minutes. Intervals never compacted to a coarser level, for instance while the server was down,
+ * are covered by their finer records instead. Records are read with a positional read of the data file for each
+ * run of records from the same segment, and returned as regions of the bytes read rather than as copies.
+ * </p>
+ */
+final class ArchiveStore implements Closeable {
+  static final int MINUTE = 0;
+  static final int HOUR = 1;
+  static final int DAY = 2;
+  static final long[] LEVEL_MS = {60_000L, 3_600_000L, 86_400_000L};
+
+  private static final String[] LEVEL_NAMES = {"minute", "hour", "day"};
+  private static final String DATA_SUFFIX = ".dat";
+  private static final String INDEX_SUFFIX = ".idx";
+  private static final int INDEX_RECORD_BYTES = 2 * Long.BYTES + Integer.BYTES; // start, offset, length
+  private static final int MAX_RUN_BYTES = 1 << 24; // runs are read into a single array, well below 2GB
+
+  /**
+   * The location of a single archived image.
+   */
+  static final class Record {
+    final Segment segment_;
+    final long startMs_;
+    final long offset_;
+    final int length_;
+
+    Record(final Segment segment, final long startMs, final long offset, final int length) {
+      segment_ = segment;
+      startMs_ = startMs;
+      offset_ = offset;
+      length_ = length;
+    }
+  }
+
+  /**
+   * The records of one sketch at one level, in start time order. Index arrays are only modified under the
+   * segment lock, and the data file is only ever appended to.
+   */
+  static final class Segment {
+    private final FileChannel data_;
+    private final FileChannel index_;
+    private long[] starts_;
+    private long[] offsets_;
+    private int[] lengths_;
+    private int size_;
+    private long dataSize_;
+
+    Segment(final Path dataFile, final Path indexFile) throws IOException {
+      data_ = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      index_ = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+
+      final int count = (int) (index_.size() / INDEX_RECORD_BYTES);
+      final ByteBuffer buf = ByteBuffer.allocate(count * INDEX_RECORD_BYTES);
+      while (buf.hasRemaining() && index_.read(buf, buf.position()) >= 0) {
+        // read fully
+      }
+      starts_ = new long[Math.max(count, 16)];
+      offsets_ = new long[starts_.length];
+      lengths_ = new int[starts_.length];
+      final long dataSize = data_.size();
+      // keep only records whose image was fully written
+      while (size_ < count) {
+        final int pos = size_ * INDEX_RECORD_BYTES;
+        final long start = buf.getLong(pos);
+        final long offset = buf.getLong(pos + Long.BYTES);
+        final int length = buf.getInt(pos + 2 * Long.BYTES);
+        if (offset + length > dataSize) {
+          break;
+        }
+        starts_[size_] = start;
+        offsets_[size_] = offset;
+        lengths_[size_] = length;
+        dataSize_ = offset + length;
+        ++size_;
+      }
+    }
+
+    synchronized void append(final long startMs, final byte[] image) throws IOException {
+      if (size_ > 0 && startMs < starts_[size_ - 1]) {
+        throw new IllegalArgumentException("Archive records must be appended in time order");
+      }
+      if (size_ == starts_.length) {
+        starts_ = Arrays.copyOf(starts_, size_ * 2);
+        offsets_ = Arrays.copyOf(offsets_, size_ * 2);
+        lengths_ = Arrays.copyOf(lengths_, size_ * 2);
+      }
+
+      final ByteBuffer imageBuf = ByteBuffer.wrap(image);
+      while (imageBuf.hasRemaining()) {
+        data_.write(imageBuf, dataSize_ + imageBuf.position());
+      }
+      data_.force(false);
+
+      final ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_BYTES);
+      record.putLong(0, startMs).putLong(Long.BYTES, dataSize_).putInt(2 * Long.BYTES, image.length);
+      while (record.hasRemaining()) {
+        index_.write(record, (long) size_ * INDEX_RECORD_BYTES + record.position());
+      }
+
+      starts_[size_] = startMs;
+      offsets_[size_] = dataSize_;
+      lengths_[size_] = image.length;
+      dataSize_ += image.length;
+      ++size_;
+    }
+
+    // records starting in [fromMs, toMs), in time order
+    synchronized List<Record> records(final long fromMs, final long toMs) {
+      final List<Record> result = new ArrayList<>();
+      for (int i = lowerBound(fromMs); i < size_ && starts_[i] < toMs; ++i) {
+        result.add(new Record(this, starts_[i], offsets_[i], lengths_[i]));
+      }
+      return result;
+    }
+
+    synchronized boolean contains(final long startMs) {
+      final int i = lowerBound(startMs);
+      return i < size_ && starts_[i] == startMs;
+    }
+
+    // index of the first record starting at or after the given time
+    private int lowerBound(final long startMs) {
+      int lo = 0;
+      int hi = size_;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        if (starts_[mid] < startMs) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    /**
+     * Fills the buffer from the data file, starting at the given offset. Images in the range were fully written
+     * before being indexed and are never modified, and positional reads do not move the channel's position, so
+     * no lock is needed.
+     */
+    void read(final long offset, final ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) {
+        if (data_.read(buf, offset + buf.position()) < 0) {
+          throw new EOFException("Archive data file is shorter than its index");
+        }
+      }
+    }
+
+    synchronized void close() throws IOException {
+      data_.close();
+      index_.close();
+    }
+  }
+
+  private final Path dir;
+  private final ConcurrentHashMap<String, Segment> segments;
+
+  ArchiveStore(@NonNull final Path dir) throws IOException {
+    this.dir = dir;
+    Files.createDirectories(dir);
+    segments = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Appends an image to the segment of the given sketch and level. Records of a segment must be appended in
+   * time order, although a record may start at the same time as the last one, in which case both are kept and
+   * returned together.
+   * @param name The sketch name
+   * @param level One of <tt>MINUTE</tt>, <tt>HOUR</tt> or <tt>DAY</tt>
+   * @param startMs The start of the interval summarized by the image, aligned to the level
+   * @param image The serialized sketch
+   * @throws IOException if the image could not be written
+   */
+  void append(@NonNull final String name, final int level, final long startMs, final byte[] image)
+      throws IOException {
+    if (startMs % LEVEL_MS[level] != 0) {
+      throw new IllegalArgumentException("Start time must be aligned to a " + LEVEL_NAMES[level]);
+    }
+    segment(name, level, true).append(startMs, image);
+  }
+
+  /**
+   * Returns true if the given sketch and level has a record starting at the given time.
+   */
+  boolean contains(@NonNull final String name, final int level, final long startMs) {
+    final Segment segment = segment(name, level, false);
+    return segment != null && segment.contains(startMs);
+  }
+
+  /**
+   * Returns the fewest records covering the time range, using levels up to and including <tt>maxLevel</tt>.
+   * Minutes overlapping either end of the range are included in full.
+   * @param name The sketch name
+   * @param maxLevel The coarsest level to use
+   * @param fromMs The start of the range, inclusive
+   * @param toMs The end of the range, exclusive
+   * @return The covering records, possibly empty
+   */
+  List<Record> cover(@NonNull final String name, final int maxLevel, final long fromMs, final long toMs) {
+    final List<Record> result = new ArrayList<>();
+    cover(name, maxLevel, fromMs, toMs, result);
+    return result;
+  }
+
+  private void cover(final String name, final int level, final long fromMs, final long toMs,
+                     final List<Record> result) {
+    if (fromMs >= toMs) {
+      return;
+    }
+    final Segment segment = segment(name, level, false);
+    final long span = LEVEL_MS[level];
+    if (level == MINUTE) {
+      if (segment != null) {
+        result.addAll(segment.records(Math.floorDiv(fromMs, span) * span, toMs));
+      }
+      return;
+    }
+
+    // whole units of this level within the range, with any gaps and the ends left to finer levels
+    final long first = -Math.floorDiv(-fromMs, span) * span;
+    final long last = Math.floorDiv(toMs, span) * span;
+    if (segment == null || first >= last) {
+      cover(name, level - 1, fromMs, toMs, result);
+      return;
+    }
+    long coveredTo = first;
+    cover(name, level - 1, fromMs, first, result);
+    for (final Record r : segment.records(first, last)) {
+      if (r.startMs_ < coveredTo) {
+        continue;
+      }
+      cover(name, level - 1, coveredTo, r.startMs_, result);
+      result.add(r);
+      coveredTo = r.startMs_ + span;
+    }
+    cover(name, level - 1, coveredTo, toMs, result);
+  }
+
+  /**
+   * Reads the images of the given records, reading the data file once for each run of records from the same
+   * segment.
+   * @param records Records as returned by <tt>cover()</tt>
+   * @return The image of each record, in the same order
+   */
+  static List<Memory> read(@NonNull final List<Record> records) {
+    return read(records, MAX_RUN_BYTES);
+  }
+
+  // runs are split before spanning more than maxRunBytes, although a single larger record is still one run
+  static List<Memory> read(@NonNull final List<Record> records, final int maxRunBytes) {
+    final List<Memory> images = new ArrayList<>(records.size());
+    int i = 0;
+    while (i < records.size()) {
+      // consecutive records of the same segment are consecutive in time, so nearly contiguous in the file
+      final Segment segment = records.get(i).segment_;
+      long from = records.get(i).offset_;
+      long to = from + records.get(i).length_;
+      int end = i + 1;
+      while (end < records.size() && records.get(end).segment_ == segment) {
+        final Record r = records.get(end);
+        final long runFrom = Math.min(from, r.offset_);
+        final long runTo = Math.max(to, r.offset_ + r.length_);
+        if (runTo - runFrom > maxRunBytes) {
+          break;
+        }
+        from = runFrom;
+        to = runTo;
+        ++end;
+      }
+
+      final ByteBuffer buf = ByteBuffer.allocate((int) (to - from));
+      try {
+        segment.read(from, buf);
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      final Memory run = Memory.wrap(buf.array());
+      for (; i < end; ++i) {
+        final Record r = records.get(i);
+        images.add(run.region(r.offset_ - from, r.length_));
+      }
+    }
+    return images;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (final Segment segment : segments.values()) {
+      segment.close();
+    }
+    segments.clear();
+  }
+
+  // opens the segment, returning null if it does not exist and create is false
+  private Segment segment(final String name, final int level, final boolean create) {
+    final String fileName;
+    try {
+      fileName = URLEncoder.encode(name, StandardCharsets.UTF_8.name()) + "." + LEVEL_NAMES[level];
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    final Segment segment = segments.get(fileName);
+    if (segment != null) {
+      return segment;
+    }
+    final Path indexFile = dir.resolve(fileName + INDEX_SUFFIX);
+    if (!create && !Files.exists(indexFile)) {
+      return null;
+    }
+    return segments.computeIfAbsent(fileName, f -> {
+      try {
+        return new Segment(dir.resolve(f + DATA_SUFFIX), indexFile);
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+}
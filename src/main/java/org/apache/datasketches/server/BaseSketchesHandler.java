@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import static org.apache.datasketches.server.SketchConstants.*;
+
+/**
+ * Provides the request handling shared by every handler in the sketch server: reading the JSON query from the
+ * querystring or POST body, resolving groups of sketches, and reporting errors as JSON. Handlers that consume
+ * and emit JSON objects extend <tt>BaseSketchesQueryHandler</tt>, while those that stream or batch their
+ * responses extend this class directly and implement <tt>handle()</tt>.
+ */
+public abstract class BaseSketchesHandler extends AbstractHandler {
+  final SketchStorage sketches;
+
+  /**
+   * Basic handler.
+   * @param sketches The sketches database to use
+   */
+  BaseSketchesHandler(final SketchStorage sketches) {
+    if (sketches == null) {
+      throw new IllegalArgumentException("Cannot initialize handler with SketchStorage == null");
+    }
+    this.sketches = sketches;
+  }
+
+  static JsonElement checkMethodAndReadJson(final Request baseRequest,
+                                            final HttpServletRequest request,
+                                            final HttpServletResponse response) throws IOException {
+    JsonElement query = null;
+    if (request.getMethod().equals("POST")) {
+      response.setContentType("application/json");
+      try (final Reader reader = request.getReader()) {
+        query = JsonParser.parseReader(reader);
+      }
+    } else if (request.getMethod().equals("GET")) {
+      response.setContentType("text/html");
+      query = JsonParser.parseString(URLDecoder.decode(request.getQueryString(), "utf-8"));
+    } else {
+      response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+      baseRequest.setHandled(true);
+    }
+
+    return query;
+  }
+
+  /**
+   * Responds with <tt>422 Unprocessable Entity</tt> and a JSON Object holding the error message. Must be called
+   * before any of the response body is written.
+   * @param response The response to write to
+   * @param e The exception describing the error
+   * @throws IOException if the response cannot be written
+   */
+  static void sendError(final HttpServletResponse response, final Exception e) throws IOException {
+    final JsonObject error = new JsonObject();
+    error.addProperty(ERROR_KEY, e.getMessage());
+    response.setStatus(UNPROCESSABLE_ENTITY);
+    response.setCharacterEncoding("utf-8");
+    response.setContentType("application/json");
+    final PrintWriter writer = response.getWriter();
+    writer.print(error.toString());
+    writer.flush();
+  }
+
+  /**
+   * Resolves a group of sketches specified by any combination of a list of names, a name prefix, and a tag
+   * from the configuration:
+   * <pre>
+   *   { "names": [ "&lt;sketch_name_1&gt;", "&lt;sketch_name_2&gt;", ... ] }
+   *   { "prefix": "&lt;name_prefix&gt;" }
+   *   { "tag": "&lt;key&gt;=&lt;value&gt;" }
+   * </pre>
+   * All listed names must exist. The result is the union of the selectors, deduplicated and preserving the
+   * order of any listed names.
+   * @param query A JSON query specifying the group
+   * @return The list of matching SketchEntries
+   */
+  List<SketchStorage.SketchEntry> resolveSketchGroup(final JsonObject query) {
+    if (!isGroupQuery(query)) {
+      throw new IllegalArgumentException("Query must specify at least one of \"" + QUERY_NAMES_FIELD + "\", \""
+          + QUERY_PREFIX_FIELD + "\" or \"" + QUERY_TAG_FIELD + "\"");
+    }
+
+    final LinkedHashMap<String, SketchStorage.SketchEntry> group = new LinkedHashMap<>();
+
+    if (query.has(QUERY_NAMES_FIELD)) {
+      final JsonElement names = query.get(QUERY_NAMES_FIELD);
+      if (!names.isJsonArray()) {
+        throw new IllegalArgumentException("\"" + QUERY_NAMES_FIELD + "\" must be a JSON Array");
+      }
+      for (final JsonElement e : names.getAsJsonArray()) {
+        final String name = e.getAsString();
+        final SketchStorage.SketchEntry se = sketches.getSketch(name);
+        if (se == null) {
+          throw new IllegalArgumentException("Invalid sketch name: " + name);
+        }
+        group.put(name, se);
+      }
+    }
+
+    if (query.has(QUERY_PREFIX_FIELD)) {
+      for (final SketchStorage.SketchEntry se : sketches.getSketchesWithPrefix(query.get(QUERY_PREFIX_FIELD).getAsString())) {
+        group.put(se.name_, se);
+      }
+    }
+
+    if (query.has(QUERY_TAG_FIELD)) {
+      final String tag = query.get(QUERY_TAG_FIELD).getAsString();
+      if (tag.indexOf('=') < 0) {
+        throw new IllegalArgumentException("\"" + QUERY_TAG_FIELD + "\" must have the form key=value");
+      }
+      for (final SketchStorage.SketchEntry se : sketches.getSketchesWithTag(tag)) {
+        group.put(se.name_, se);
+      }
+    }
+
+    return new ArrayList<>(group.values());
+  }
+
+  /**
+   * Returns true if the query selects a group of sketches as with <tt>resolveSketchGroup()</tt>.
+   * @param query A JSON query
+   * @return <tt>true</tt> if any group selector is present, otherwise <tt>false</tt>
+   */
+  static boolean isGroupQuery(final JsonObject query) {
+    return query.has(QUERY_NAMES_FIELD) || query.has(QUERY_PREFIX_FIELD) || query.has(QUERY_TAG_FIELD);
+  }
+}
@@ -23,18 +23,15 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
-import java.io.Reader;
-import java.net.URLDecoder;
 
 import org.apache.datasketches.Family;
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.server.Request;
-import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
 import static org.apache.datasketches.server.SketchConstants.*;
 
@@ -51,8 +48,7 @@ import static org.apache.datasketches.server.SketchConstants.*;
  * By using this class, the individual query handlers are able to consume and emit only JSON objects; they
  * need not worry about details of the HTTP request or response.
  */
-public abstract class BaseSketchesQueryHandler extends AbstractHandler {
-  final SketchStorage sketches;
+public abstract class BaseSketchesQueryHandler extends BaseSketchesHandler {
   final boolean queryExempt;
 
   /**
@@ -69,31 +65,46 @@ public abstract class BaseSketchesQueryHandler extends AbstractHandler {
    * @param queryExempt <tt>true</tt> if a query is not required, otherwise <tt>false</tt>
    */
   BaseSketchesQueryHandler(final SketchStorage sketches, final boolean queryExempt) {
-    if (sketches == null) {
-      throw new IllegalArgumentException("Cannot initialize handler with SketchStorage == null");
-    }
-    this.sketches = sketches;
+    super(sketches);
     this.queryExempt = queryExempt;
   }
 
-  static JsonElement checkMethodAndReadJson(final Request baseRequest,
-                                            final HttpServletRequest request,
-                                            final HttpServletResponse response) throws IOException {
-    JsonElement query = null;
-    if (request.getMethod().equals("POST")) {
-      response.setContentType("application/json");
-      try (final Reader reader = request.getReader()) {
-        query = JsonParser.parseReader(reader);
+  /**
+   * Returns an entity tag identifying the response to a query, or null if responses are not tagged. The tag
+   * is returned in the <tt>ETag</tt> header and, if it matches the <tt>If-None-Match</tt> header of the
+   * request, the handler responds with <tt>304 Not Modified</tt> without processing the query. The default
+   * implementation returns null.
+   * @param query The JSON query, which has not yet been validated
+   * @return An entity tag, including quotes, or null
+   */
+  protected String computeETag(final JsonElement query) {
+    return null;
+  }
+
+  // checks an If-None-Match header, which may hold a list of tags, against the current tag
+  static boolean etagMatches(final String ifNoneMatch, final String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      // weak comparison, as in RFC 7232
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
       }
-    } else if (request.getMethod().equals("GET")) {
-      response.setContentType("text/html");
-      query = JsonParser.parseString(URLDecoder.decode(request.getQueryString(), "utf-8"));
-    } else {
-      response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
-      baseRequest.setHandled(true);
     }
+    return false;
+  }
 
-    return query;
+  /**
+   * Returns the status code for a successfully processed request. The default is <tt>200 OK</tt>.
+   * @return An HTTP status code
+   */
+  protected int getSuccessStatus() {
+    return HttpServletResponse.SC_OK;
   }
 
   /**
@@ -113,6 +124,16 @@ public abstract class BaseSketchesQueryHandler extends AbstractHandler {
       return;
     }
 
+    final String etag = query != null ? computeETag(query) : null;
+    if (etag != null) {
+      response.setHeader(HttpHeader.ETAG.asString(), etag);
+      if (etagMatches(request.getHeader(HttpHeader.IF_NONE_MATCH.asString()), etag)) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        baseRequest.setHandled(true);
+        return;
+      }
+    }
+
     // error messages will be wrapped in json
     response.setCharacterEncoding("utf-8");
     response.setContentType("application/json");
@@ -144,16 +165,40 @@ public abstract class BaseSketchesQueryHandler extends AbstractHandler {
       }
 
       // we're ok if we reach here without an exception
-      response.setStatus(HttpServletResponse.SC_OK);
+      response.setStatus(getSuccessStatus());
+    } catch (final IngestQueue.QueueFullException e) {
+      // the client should back off and retry
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
     } catch (final Exception e) {
-      final JsonObject error = new JsonObject();
-      error.addProperty(ERROR_KEY, e.getMessage());
-      response.setStatus(UNPROCESSABLE_ENTITY);
+      if (etag != null) {
+        response.setHeader(HttpHeader.ETAG.asString(), null);
+      }
+      sendError(response, e);
     }
 
     baseRequest.setHandled(true);
   }
 
+  /**
+   * Returns true if the query selects archived data by a time range, using <tt>from</tt> and/or <tt>to</tt>
+   * in milliseconds since the epoch.
+   * @param query The query to check
+   * @return <tt>true</tt> if the query has a time range, otherwise <tt>false</tt>
+   */
+  static boolean isRangeQuery(final JsonObject query) {
+    return query.has(QUERY_FROM_FIELD) || query.has(QUERY_TO_FIELD);
+  }
+
+  // the start of a time range, inclusive, or the earliest archived data if absent
+  static long getRangeStart(final JsonObject query) {
+    return query.has(QUERY_FROM_FIELD) ? query.get(QUERY_FROM_FIELD).getAsLong() : 0;
+  }
+
+  // the end of a time range, exclusive, or the latest archived data if absent
+  static long getRangeEnd(final JsonObject query) {
+    return query.has(QUERY_TO_FIELD) ? query.get(QUERY_TO_FIELD).getAsLong() : Long.MAX_VALUE;
+  }
+
   static Family familyFromString(final String type) throws IllegalArgumentException {
     switch (type.toLowerCase()) {
       case SKETCH_FAMILY_THETA:
@@ -177,8 +222,55 @@ public abstract class BaseSketchesQueryHandler extends AbstractHandler {
       case SKETCH_FAMILY_VAROPT:
         return Family.VAROPT;
 
+      case SKETCH_FAMILY_REQ:
+        return Family.REQ;
+
+      case SKETCH_FAMILY_QUANTILES:
+        return Family.QUANTILES;
+
+      case SKETCH_FAMILY_TUPLE:
+        return Family.TUPLE;
+
       default:
         throw new IllegalArgumentException("Unrecognized sketch type: " + type);
     }
   }
+
+  static String familyToString(final Family family) throws IllegalArgumentException {
+    switch (family) {
+      case QUICKSELECT:
+      case UNION:
+        return SKETCH_FAMILY_THETA;
+
+      case KLL:
+        return SKETCH_FAMILY_KLL;
+
+      case FREQUENCY:
+        return SKETCH_FAMILY_FREQUENCY;
+
+      case HLL:
+        return SKETCH_FAMILY_HLL;
+
+      case CPC:
+        return SKETCH_FAMILY_CPC;
+
+      case RESERVOIR:
+        return SKETCH_FAMILY_RESERVOIR;
+
+      case VAROPT:
+        return SKETCH_FAMILY_VAROPT;
+
+      case REQ:
+        return SKETCH_FAMILY_REQ;
+
+      case QUANTILES:
+        return SKETCH_FAMILY_QUANTILES;
+
+      case TUPLE:
+        return SKETCH_FAMILY_TUPLE;
+
+      default:
+        throw new IllegalArgumentException("Unrecognized sketch family: " + family);
+    }
+  }
 }
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Watches the server's configuration file and reloads the sketch definitions whenever it changes.
+ * An invalid configuration is reported and otherwise ignored, leaving the current sketches in place.
+ */
+class ConfigWatcher {
+  private static final Logger LOG = Log.getLogger(ConfigWatcher.class);
+  // editors often write a file in several steps, so wait for things to settle before reloading
+  private static final long SETTLE_TIME_MS = 200;
+
+  private final SketchStorage sketches;
+  private final String configFile;
+  private final Path configPath;
+  private final WatchService watchService;
+  private final Thread thread;
+
+  ConfigWatcher(final SketchStorage sketches, final String configFile) throws IOException {
+    this.sketches = sketches;
+    this.configFile = configFile;
+    configPath = Paths.get(configFile).toAbsolutePath();
+    watchService = configPath.getFileSystem().newWatchService();
+    configPath.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+
+    thread = new Thread(this::run, "config-watcher");
+    thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  void stop() throws IOException {
+    watchService.close();
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        final WatchKey key = watchService.take();
+        boolean changed = false;
+        for (final WatchEvent<?> event : key.pollEvents()) {
+          if (configPath.getFileName().equals(event.context())) {
+            changed = true;
+          }
+        }
+        key.reset();
+
+        if (changed) {
+          Thread.sleep(SETTLE_TIME_MS);
+          // discard any events from the same write
+          final WatchKey pending = watchService.poll();
+          if (pending != null) {
+            pending.pollEvents();
+            pending.reset();
+          }
+
+          try {
+            ReloadHandler.reloadConfig(sketches, configFile);
+          } catch (final Exception e) {
+            LOG.warn("Unable to reload configuration from " + configFile + ", keeping current sketches", e);
+          }
+        }
+      }
+    } catch (final InterruptedException | ClosedWatchServiceException e) {
+      // stopped
+    }
+  }
+}
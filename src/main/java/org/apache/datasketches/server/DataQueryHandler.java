@@ -19,22 +19,44 @@
 
 package org.apache.datasketches.server;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.apache.datasketches.Family;
 import org.apache.datasketches.SketchesException;
 import org.apache.datasketches.cpc.CpcSketch;
 import org.apache.datasketches.frequencies.ErrorType;
 import org.apache.datasketches.frequencies.ItemsSketch;
+import org.apache.datasketches.frequencies.LongsSketch;
 import org.apache.datasketches.hll.HllSketch;
 import org.apache.datasketches.kll.KllFloatsSketch;
+import org.apache.datasketches.quantiles.DoublesSketch;
+import org.apache.datasketches.req.ReqSketch;
 import org.apache.datasketches.sampling.ReservoirItemsSketch;
+import org.apache.datasketches.sampling.ReservoirLongsSketch;
 import org.apache.datasketches.sampling.VarOptItemsSamples;
 import org.apache.datasketches.sampling.VarOptItemsSketch;
-import org.apache.datasketches.theta.CompactSketch;
+import org.apache.datasketches.theta.Sketch;
 import org.apache.datasketches.theta.Union;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesSketch;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesSketchIterator;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesUnion;
+import org.eclipse.jetty.server.Request;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 import static org.apache.datasketches.server.SketchConstants.*;
 
@@ -44,13 +66,130 @@ import static org.apache.datasketches.server.SketchConstants.*;
  * Full description to be added later.
  */
 public class DataQueryHandler extends BaseSketchesQueryHandler {
+  /**
+   * Answers queries against a sketch. Each <tt>SketchEntry</tt> holds a <tt>QueryProcessor</tt> specific to
+   * its family, created once with the entry.
+   */
+  interface QueryProcessor {
+    /**
+     * Adds the query results to the provided result object.
+     * @param result The result object, pre-populated with the sketch name
+     * @param query The query to process
+     * @param sketch The sketch to query, either as returned by <tt>createView()</tt> or a plain sketch
+     * @return The result object, or null if there is nothing to return
+     */
+    JsonObject process(JsonObject result, JsonObject query, Object sketch);
+
+    /**
+     * Creates a read-only view of a sketch that is faster to query. A <tt>SketchEntry</tt> caches the view
+     * until the sketch is next written. The default implementation returns the sketch itself.
+     * @param sketch The sketch, as returned by <tt>SketchEntry.readResult()</tt>
+     * @return A view to pass to <tt>process()</tt>
+     */
+    default Object createView(final Object sketch) {
+      return sketch;
+    }
+  }
+
+  // theta expression results, shared by the sub-queries of the request being handled on this thread
+  private final ThreadLocal<ConcurrentHashMap<String, CompletableFuture<Sketch>>> expressionMemo;
+
+  // rendered results keyed by sketch id, sketch version and normalized query, in access order
+  private final Map<String, JsonObject> resultCache;
+
+  private final SketchArchiver archiver; // null if no archive is configured
+
   public DataQueryHandler(final SketchStorage sketches) {
+    this(sketches, null);
+  }
+
+  DataQueryHandler(final SketchStorage sketches, final SketchArchiver archiver) {
     super(sketches, false);
+    this.archiver = archiver;
+    expressionMemo = new ThreadLocal<>();
+    resultCache = Collections.synchronizedMap(new LinkedHashMap<String, JsonObject>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, JsonObject> eldest) {
+        return size() > QUERY_RESULT_CACHE_SIZE;
+      }
+    });
+  }
+
+  /**
+   * Creates the <tt>QueryProcessor</tt> for a sketch family and, for items sketches, item type.
+   * @param family The family of the <tt>SketchEntry</tt>
+   * @param type The value type of the <tt>SketchEntry</tt>, or null if not applicable
+   * @return A <tt>QueryProcessor</tt> for the given configuration
+   */
+  static QueryProcessor createQueryProcessor(final Family family, final ValueType type) {
+    switch (family) {
+      case UNION:
+        return DataQueryHandler::processThetaQuery;
+      case HLL:
+        return DataQueryHandler::processHllQuery;
+      case CPC:
+        return DataQueryHandler::processCpcQuery;
+      case TUPLE:
+        return DataQueryHandler::processTupleQuery;
+      case KLL:
+        return new QueryProcessor() {
+          @Override
+          public JsonObject process(final JsonObject result, final JsonObject query, final Object sketch) {
+            return processQuantilesQuery(result, query, sketch);
+          }
+
+          @Override
+          public Object createView(final Object sketch) {
+            return new KllSortedView((KllFloatsSketch) sketch);
+          }
+        };
+      case REQ:
+        return DataQueryHandler::processReqQuery;
+      case QUANTILES:
+        return DataQueryHandler::processDoublesQuery;
+      case FREQUENCY:
+        return new QueryProcessor() {
+          @Override
+          public JsonObject process(final JsonObject result, final JsonObject query, final Object sketch) {
+            return processFrequencyQuery(result, query, sketch);
+          }
+
+          @Override
+          public Object createView(final Object sketch) {
+            return new FrequentItemsView(sketch);
+          }
+        };
+      case RESERVOIR:
+        return type == ValueType.LONG ? DataQueryHandler::processReservoirLongsQuery
+            : DataQueryHandler::processReservoirQuery;
+      case VAROPT:
+        return DataQueryHandler::processVarOptQuery;
+      default:
+        throw new IllegalArgumentException("Unsupported sketch family: " + family);
+    }
+  }
+
+  @Override
+  public void handle(final String target,
+                     final Request baseRequest,
+                     final HttpServletRequest request,
+                     final HttpServletResponse response) throws IOException {
+    try {
+      super.handle(target, baseRequest, request, response);
+    } finally {
+      expressionMemo.remove();
+    }
   }
 
   @Override
   protected JsonObject processQuery(final JsonObject query) {
     if (!query.has(QUERY_NAME_FIELD)) {
+      if (query.has(QUERY_EXPRESSION_FIELD)) {
+        return processExpressionQuery(query);
+      }
+      if (isGroupQuery(query)) {
+        return processGroupQuery(query);
+      }
       throw new IllegalArgumentException("Query missing sketch name field");
     }
 
@@ -59,42 +198,223 @@ public class DataQueryHandler extends BaseSketchesQueryHandler {
       throw new IllegalArgumentException("Invalid sketch name: " + key);
     }
 
-    JsonObject result = new JsonObject();
+    // archived data is read from disk without locking the live sketch
+    if (isRangeQuery(query)) {
+      return processArchiveQuery(sketches.getSketch(key), query);
+    }
 
     // we do need to lock the sketch even for query processing
     synchronized (key.intern()) {
       final SketchStorage.SketchEntry se = sketches.getSketch(key);
 
-      // pre-populate with the sketch name, but may be overwritten with
-      // null depending on the query
-      result.addProperty(QUERY_NAME_FIELD, key);
+      // results are reused until the sketch is next written
+      final String cacheKey = se.id_ + ":" + se.version_ + ":" + normalizeQuery(query);
+      JsonObject result = resultCache.get(cacheKey);
+      if (result == null) {
+        // pre-populate with the sketch name, but may be overwritten with
+        // null depending on the query
+        result = new JsonObject();
+        result.addProperty(QUERY_NAME_FIELD, key);
+
+        if (query.has(QUERY_WINDOW_FIELD)) {
+          result = processWindowQuery(result, query, se);
+        } else {
+          result = se.querier_.process(result, query, se.readQueryView());
+        }
+        if (result != null) {
+          resultCache.put(cacheKey, result);
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Queries the archived history of a sketch over a time range, as the union of the covering archived
+   * sketches. The result includes the number of archived sketches used.
+   */
+  private JsonObject processArchiveQuery(final SketchStorage.SketchEntry se, final JsonObject query) {
+    if (archiver == null) {
+      throw new IllegalArgumentException("No archive is configured");
+    }
 
-      switch (se.family_) {
-        case UNION:
-        case HLL:
-        case CPC:
-          result = processDistinctQuery(result, query, se.family_, se.sketch_);
-          break;
+    final List<MergeHandler.MergeEntry> archived = archiver.readRange(se, getRangeStart(query), getRangeEnd(query));
+    final Object union = archived.isEmpty()
+        ? SketchStorage.emptySketch(se.family_, se.type_, se.configK_, se.configHra_, se.configMetrics_, 0, 0)
+        : MergeHandler.unionSketches(se.family_, se.type_, se.configK_, null, archived);
 
-        case KLL:
-          result = processQuantilesQuery(result, query, se.family_, se.sketch_);
-          break;
+    final JsonObject result = new JsonObject();
+    result.addProperty(QUERY_NAME_FIELD, se.name_);
+    result.addProperty(RESPONSE_SKETCH_COUNT_FIELD, archived.size());
+    return se.querier_.process(result, query, union);
+  }
+
+  /**
+   * Queries the recent window of a windowed kll sketch, given in seconds before the time the sketch was last
+   * advanced, by merging the buckets that overlap it. The result notes the time from which data is included,
+   * which may be earlier than requested. The caller must hold the lock on the sketch.
+   */
+  private static JsonObject processWindowQuery(final JsonObject result, final JsonObject query,
+                                               final SketchStorage.SketchEntry se) {
+    if (!se.isWindowed()) {
+      throw new IllegalArgumentException("Sketch does not keep a window: " + se.name_);
+    }
+    final double window = query.get(QUERY_WINDOW_FIELD).getAsDouble();
+    if (!(window > 0) || window > se.configWindow_) {
+      throw new IllegalArgumentException("Window must be positive and at most " + se.configWindow_
+          + " seconds, found: " + window);
+    }
+
+    final WindowedKllSketch sketch = (WindowedKllSketch) se.readSketch();
+    final long windowMs = Math.round(window * 1000);
+    final JsonObject windowResult = se.querier_.process(result, query, sketch.getWindow(windowMs));
+    if (windowResult != null) {
+      windowResult.addProperty(RESPONSE_WINDOW_START_FIELD, sketch.getWindowStart(windowMs));
+    }
+    return windowResult;
+  }
+
+  /**
+   * Evaluates a theta set expression, as described in <tt>ThetaExpression</tt>. Returns distinct count
+   * estimates for the resulting set, or the similarity for a top-level <tt>jaccard</tt> expression.
+   */
+  private JsonObject processExpressionQuery(final JsonObject query) {
+    final JsonElement expression = query.get(QUERY_EXPRESSION_FIELD);
+    if (!expression.isJsonObject()) {
+      throw new IllegalArgumentException("\"" + QUERY_EXPRESSION_FIELD + "\" must be a JSON Object");
+    }
+
+    ConcurrentHashMap<String, CompletableFuture<Sketch>> memo = expressionMemo.get();
+    if (memo == null) {
+      memo = new ConcurrentHashMap<>();
+      expressionMemo.set(memo);
+    }
+    final ThetaExpression evaluator = new ThetaExpression(sketches, memo);
+
+    final JsonObject result = new JsonObject();
+    if (ThetaExpression.isJaccard(expression.getAsJsonObject())) {
+      final double[] jaccard = evaluator.jaccard(expression.getAsJsonObject());
+      final JsonObject similarity = new JsonObject();
+      similarity.addProperty(RESPONSE_LOWER_BOUND_FIELD, jaccard[0]);
+      similarity.addProperty(RESPONSE_ESTIMATE_FIELD, jaccard[1]);
+      similarity.addProperty(RESPONSE_UPPER_BOUND_FIELD, jaccard[2]);
+      result.add(RESPONSE_JACCARD_FIELD, similarity);
+      return result;
+    }
 
-        case FREQUENCY:
-          result = processFrequencyQuery(result, query, se.family_, se.sketch_);
-          break;
+    return processThetaQuery(result, query, evaluator.evaluate(expression));
+  }
 
-        case RESERVOIR:
-        case VAROPT:
-          result = processSamplingQuery(result, query, se.family_, se.sketch_);
-          break;
+  /**
+   * Queries the union of a group of sketches, specified as with <tt>resolveSketchGroup()</tt>, without storing
+   * the result. All sketches in the group must be of the same family, and the union uses the largest configured
+   * size in the group.
+   */
+  private JsonObject processGroupQuery(final JsonObject query) {
+    final List<SketchStorage.SketchEntry> group = resolveSketchGroup(query);
+    if (group.isEmpty()) {
+      throw new IllegalArgumentException("No sketches found matching the query");
+    }
 
-        default:
-          throw new IllegalStateException("Unexpected sketch family: " + se.family_);
+    final SketchStorage.SketchEntry first = group.get(0);
+    int k = 0;
+    final List<MergeHandler.MergeEntry> sketchList = new ArrayList<>(group.size());
+    for (final SketchStorage.SketchEntry se : group) {
+      if (se.family_ != first.family_ || (SketchStorage.hasItemType(se.family_) && se.type_ != first.type_)) {
+        throw new IllegalArgumentException("All sketches in a group query must be of the same family");
+      }
+      if (se.isTimed()) {
+        throw new IllegalArgumentException("Decayed or windowed sketches cannot be queried as a group: "
+            + se.name_);
       }
+      k = Math.max(k, se.configK_);
+      sketchList.add(MergeHandler.toMergeEntry(se));
     }
 
-    return result;
+    final Object union = MergeHandler.unionSketches(first.family_, first.type_, k, null, sketchList);
+
+    final JsonObject result = new JsonObject();
+    result.addProperty(RESPONSE_SKETCH_COUNT_FIELD, group.size());
+    return first.querier_.process(result, query, union);
+  }
+
+  /**
+   * Tags each response with the storage epoch, the id and version of every sketch queried, and a hash of the
+   * query, allowing clients to revalidate a result without any work on the sketch.
+   */
+  @Override
+  protected String computeETag(final JsonElement query) {
+    final StringBuilder sb = new StringBuilder("\"").append(Long.toHexString(sketches.epoch_)).append('-');
+    if (query.isJsonArray()) {
+      for (final JsonElement subQuery : query.getAsJsonArray()) {
+        if (!appendSketchVersion(sb, subQuery)) {
+          return null;
+        }
+      }
+    } else if (!appendSketchVersion(sb, query)) {
+      return null;
+    }
+    sb.append(Long.toHexString(hash(normalizeQuery(query)))).append('"');
+    return sb.toString();
+  }
+
+  // returns false, leaving processQuery() to report the error, if the query does not name a valid sketch
+  private boolean appendSketchVersion(final StringBuilder sb, final JsonElement query) {
+    if (!query.isJsonObject()) {
+      return false;
+    }
+    final JsonElement name = query.getAsJsonObject().get(QUERY_NAME_FIELD);
+    if (name == null || !name.isJsonPrimitive()) {
+      return false;
+    }
+    final SketchStorage.SketchEntry se = sketches.getSketch(name.getAsString());
+    if (se == null) {
+      return false;
+    }
+    sb.append(Long.toHexString(se.id_)).append('.').append(Long.toHexString(se.version_)).append('-');
+    return true;
+  }
+
+  // renders the query with object keys sorted, so equivalent queries produce the same string
+  static String normalizeQuery(final JsonElement query) {
+    final StringBuilder sb = new StringBuilder();
+    appendNormalized(sb, query);
+    return sb.toString();
+  }
+
+  private static void appendNormalized(final StringBuilder sb, final JsonElement element) {
+    if (element.isJsonObject()) {
+      final TreeMap<String, JsonElement> sorted = new TreeMap<>();
+      for (final Map.Entry<String, JsonElement> e : element.getAsJsonObject().entrySet()) {
+        sorted.put(e.getKey(), e.getValue());
+      }
+      sb.append('{');
+      for (final Map.Entry<String, JsonElement> e : sorted.entrySet()) {
+        sb.append(new JsonPrimitive(e.getKey())).append(':');
+        appendNormalized(sb, e.getValue());
+        sb.append(',');
+      }
+      sb.append('}');
+    } else if (element.isJsonArray()) {
+      sb.append('[');
+      for (final JsonElement e : element.getAsJsonArray()) {
+        appendNormalized(sb, e);
+        sb.append(',');
+      }
+      sb.append(']');
+    } else {
+      sb.append(element);
+    }
+  }
+
+  // 64-bit FNV-1a
+  private static long hash(final String str) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < str.length(); ++i) {
+      h ^= str.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
   }
 
   private static boolean checkSummaryFlag(final JsonObject query) {
@@ -105,69 +425,103 @@ public class DataQueryHandler extends BaseSketchesQueryHandler {
     return addSummary;
   }
 
-  private static JsonObject processDistinctQuery(final JsonObject result, final JsonObject query, final Family type, final Object sketch) {
-    if (query == null || type == null || sketch == null) {
+  private static JsonObject processThetaQuery(final JsonObject result, final JsonObject query, final Object sketch) {
+    if (query == null || sketch == null) {
       return null;
     }
 
-    // check if we need a summary
-    final boolean addSummary = checkSummaryFlag(query);
-    String summary = null;
-
-    final double estimate;
-    final boolean isEstimationMode;
-    final double p1StdDev;
-    final double p2StdDev;
-    final double p3StdDev;
-    final double m1StdDev;
-    final double m2StdDev;
-    final double m3StdDev;
-
-    switch (type) {
-      case UNION:
-        final CompactSketch thetaSketch = ((Union) sketch).getResult();
-        isEstimationMode = thetaSketch.isEstimationMode();
-        estimate = thetaSketch.getEstimate();
-        p1StdDev = thetaSketch.getUpperBound(1);
-        p2StdDev = thetaSketch.getUpperBound(2);
-        p3StdDev = thetaSketch.getUpperBound(3);
-        m1StdDev = thetaSketch.getLowerBound(1);
-        m2StdDev = thetaSketch.getLowerBound(2);
-        m3StdDev = thetaSketch.getLowerBound(3);
-        if (addSummary) { summary = thetaSketch.toString(); }
-        break;
+    // a compact result when read from a SketchEntry, but accept a Union as well
+    final Sketch thetaSketch = sketch instanceof Union ? ((Union) sketch).getResult() : (Sketch) sketch;
+    addDistinctEstimates(result, thetaSketch.getEstimate(), thetaSketch.isEstimationMode(),
+        thetaSketch.getUpperBound(1), thetaSketch.getUpperBound(2), thetaSketch.getUpperBound(3),
+        thetaSketch.getLowerBound(1), thetaSketch.getLowerBound(2), thetaSketch.getLowerBound(3));
+    if (checkSummaryFlag(query))
+      result.addProperty(RESPONSE_SUMMARY_FIELD, thetaSketch.toString());
 
-      case CPC:
-        final CpcSketch cpcSketch = (CpcSketch) sketch;
-        isEstimationMode = true; // no exact mode
-        estimate = cpcSketch.getEstimate();
-        p1StdDev = cpcSketch.getUpperBound(1);
-        p2StdDev = cpcSketch.getUpperBound(2);
-        p3StdDev = cpcSketch.getUpperBound(3);
-        m1StdDev = cpcSketch.getLowerBound(1);
-        m2StdDev = cpcSketch.getLowerBound(2);
-        m3StdDev = cpcSketch.getLowerBound(3);
-        if (addSummary) { summary = cpcSketch.toString(); }
-        break;
+    return result;
+  }
 
-      case HLL:
-        final HllSketch hllSketch = (HllSketch) sketch;
-        isEstimationMode = hllSketch.isEstimationMode();
-        estimate = hllSketch.getEstimate();
-        p1StdDev = hllSketch.getUpperBound(1);
-        p2StdDev = hllSketch.getUpperBound(2);
-        p3StdDev = hllSketch.getUpperBound(3);
-        m1StdDev = hllSketch.getLowerBound(1);
-        m2StdDev = hllSketch.getLowerBound(2);
-        m3StdDev = hllSketch.getLowerBound(3);
-        if (addSummary) { summary = hllSketch.toString(); }
-        break;
+  private static JsonObject processCpcQuery(final JsonObject result, final JsonObject query, final Object sketch) {
+    if (query == null || sketch == null) {
+      return null;
+    }
 
-      default:
-        throw new IllegalArgumentException("Unknown distinct counting sketch type: " + type);
+    final CpcSketch cpcSketch = (CpcSketch) sketch;
+    // no exact mode
+    addDistinctEstimates(result, cpcSketch.getEstimate(), true,
+        cpcSketch.getUpperBound(1), cpcSketch.getUpperBound(2), cpcSketch.getUpperBound(3),
+        cpcSketch.getLowerBound(1), cpcSketch.getLowerBound(2), cpcSketch.getLowerBound(3));
+    if (checkSummaryFlag(query))
+      result.addProperty(RESPONSE_SUMMARY_FIELD, cpcSketch.toString());
+
+    return result;
+  }
+
+  private static JsonObject processHllQuery(final JsonObject result, final JsonObject query, final Object sketch) {
+    if (query == null || sketch == null) {
+      return null;
     }
 
-    //final JsonObject result = new JsonObject();
+    final HllSketch hllSketch = (HllSketch) sketch;
+    addDistinctEstimates(result, hllSketch.getEstimate(), hllSketch.isEstimationMode(),
+        hllSketch.getUpperBound(1), hllSketch.getUpperBound(2), hllSketch.getUpperBound(3),
+        hllSketch.getLowerBound(1), hllSketch.getLowerBound(2), hllSketch.getLowerBound(3));
+    if (checkSummaryFlag(query))
+      result.addProperty(RESPONSE_SUMMARY_FIELD, hllSketch.toString());
+
+    return result;
+  }
+
+  /**
+   * Returns the distinct key estimate along with, for each value in the tuple, the estimated sum over all keys
+   * and the mean per key. Both are computed from the retained keys, with the sum scaled up by theta.
+   */
+  private static JsonObject processTupleQuery(final JsonObject result, final JsonObject query, final Object sketch) {
+    if (query == null || sketch == null) {
+      return null;
+    }
+
+    // a compact result when read from a SketchEntry, but accept a Union as well
+    final ArrayOfDoublesSketch tupleSketch = sketch instanceof ArrayOfDoublesUnion
+        ? ((ArrayOfDoublesUnion) sketch).getResult() : (ArrayOfDoublesSketch) sketch;
+    addDistinctEstimates(result, tupleSketch.getEstimate(), tupleSketch.isEstimationMode(),
+        tupleSketch.getUpperBound(1), tupleSketch.getUpperBound(2), tupleSketch.getUpperBound(3),
+        tupleSketch.getLowerBound(1), tupleSketch.getLowerBound(2), tupleSketch.getLowerBound(3));
+
+    final double[] sums = new double[tupleSketch.getNumValues()];
+    final ArrayOfDoublesSketchIterator it = tupleSketch.iterator();
+    while (it.next()) {
+      final double[] values = it.getValues();
+      for (int i = 0; i < sums.length; ++i) {
+        sums[i] += values[i];
+      }
+    }
+
+    final int retained = tupleSketch.getRetainedEntries();
+    final JsonArray metrics = new JsonArray(sums.length);
+    for (final double sum : sums) {
+      final JsonObject metric = new JsonObject();
+      metric.addProperty(RESPONSE_METRIC_SUM, sum / tupleSketch.getTheta());
+      metric.addProperty(RESPONSE_METRIC_MEAN, retained > 0 ? sum / retained : 0.0);
+      metrics.add(metric);
+    }
+    result.add(RESPONSE_METRICS_LIST, metrics);
+
+    if (checkSummaryFlag(query))
+      result.addProperty(RESPONSE_SUMMARY_FIELD, tupleSketch.toString());
+
+    return result;
+  }
+
+  private static void addDistinctEstimates(final JsonObject result,
+                                           final double estimate,
+                                           final boolean isEstimationMode,
+                                           final double p1StdDev,
+                                           final double p2StdDev,
+                                           final double p3StdDev,
+                                           final double m1StdDev,
+                                           final double m2StdDev,
+                                           final double m3StdDev) {
     result.addProperty(RESPONSE_ESTIMATE_FIELD, estimate);
     result.addProperty(RESPONSE_ESTIMATION_MODE_FIELD, isEstimationMode);
     result.addProperty(RESPONSE_P1STDEV_FIELD, p1StdDev);
@@ -176,60 +530,88 @@ public class DataQueryHandler extends BaseSketchesQueryHandler {
     result.addProperty(RESPONSE_M1STDEV_FIELD, m1StdDev);
     result.addProperty(RESPONSE_M2STDEV_FIELD, m2StdDev);
     result.addProperty(RESPONSE_M3STDEV_FIELD, m3StdDev);
-    if (addSummary)
-      result.addProperty(RESPONSE_SUMMARY_FIELD, summary);
-
-    return result;
   }
 
-  private static JsonObject processQuantilesQuery(final JsonObject result, final JsonObject query, final Family type, final Object sketch) {
-    if (query == null || type == null || sketch == null) {
+  private static JsonObject processQuantilesQuery(final JsonObject result, final JsonObject query, final Object sketch) {
+    if (query == null || sketch == null) {
       return null;
     }
 
-    // check if we need a summary
-    final boolean addSummary = checkSummaryFlag(query);
-    String summary = null;
+    final double[] fractions = getFractionsArray(query);
+    final float[] values = getValuesArray(query);
+    final String resultType = getResultType(query);
 
-    final boolean isEstimationMode;
-    final float maxValue;
-    final float minValue;
-    final long streamLength;
+    // a cached sorted view when read from a SketchEntry, otherwise build one for this query
+    final KllSortedView view = sketch instanceof KllSortedView
+        ? (KllSortedView) sketch : new KllSortedView((KllFloatsSketch) sketch);
+    final KllFloatsSketch kll = view.getSketch();
 
-    final double[] fractions = getFractionsArray(query);
-    float[] quantiles = null;
+    // TODO: consider valuesPMF vs valuesCDF calls to allow a mix?
+    double[] ranks = null;
+    if (values != null) {
+      ranks = resultType.equals(QUERY_RESULT_TYPE_CDF) ? view.getCDF(values) : view.getPMF(values);
+    }
+    final float[] quantiles = fractions != null ? view.getQuantiles(fractions) : null;
+
+    return addQuantilesResult(result, query, kll, kll.getN(), kll.isEstimationMode(), kll.getMinValue(),
+        kll.getMaxValue(), resultType, boxed(values), ranks, fractions, boxed(quantiles));
+  }
 
+  private static JsonObject processReqQuery(final JsonObject result, final JsonObject query, final Object sketch) {
+    if (query == null || sketch == null) {
+      return null;
+    }
+
+    final double[] fractions = getFractionsArray(query);
     final float[] values = getValuesArray(query);
     final String resultType = getResultType(query);
+    final ReqSketch req = (ReqSketch) sketch;
+
+    // the sketch returns null for an empty stream, as does the KLL sorted view
     double[] ranks = null;
+    float[] quantiles = null;
+    if (!req.isEmpty()) {
+      if (values != null) {
+        ranks = resultType.equals(QUERY_RESULT_TYPE_CDF) ? req.getCDF(values) : req.getPMF(values);
+      }
+      if (fractions != null) {
+        quantiles = req.getQuantiles(fractions);
+      }
+    }
 
-    // since we know REQ is coming
-    switch (type) {
-      case KLL:
-        final KllFloatsSketch kll = (KllFloatsSketch) sketch;
-        isEstimationMode = kll.isEstimationMode();
-        maxValue = kll.getMaxValue();
-        minValue = kll.getMinValue();
-        streamLength = kll.getN();
-
-        // TODO: consider valuesPMF vs valuesCDF calls to allow a mix?
-        if (values != null) {
-          ranks = resultType.equals(QUERY_RESULT_TYPE_CDF) ? kll.getCDF(values) : kll.getPMF(values);
-        }
+    result.addProperty(RESPONSE_HRA_FIELD, req.getHighRankAccuracy());
+    return addQuantilesResult(result, query, req, req.getN(), req.isEstimationMode(), req.getMinValue(),
+        req.getMaxValue(), resultType, boxed(values), ranks, fractions, boxed(quantiles));
+  }
 
-        if (fractions != null) {
-          quantiles = kll.getQuantiles(fractions);
-        }
+  private static JsonObject processDoublesQuery(final JsonObject result, final JsonObject query, final Object sketch) {
+    if (query == null || sketch == null) {
+      return null;
+    }
 
-        if (addSummary)
-          summary = kll.toString();
-        break;
+    final double[] fractions = getFractionsArray(query);
+    final double[] values = getDoubleValuesArray(query);
+    final String resultType = getResultType(query);
+    final DoublesSketch quantilesSketch = (DoublesSketch) sketch;
 
-      default:
-        throw new SketchesException("processQuantilesQuery() received a non-quantiles sketch: " + type);
+    double[] ranks = null;
+    if (values != null) {
+      ranks = resultType.equals(QUERY_RESULT_TYPE_CDF)
+          ? quantilesSketch.getCDF(values) : quantilesSketch.getPMF(values);
     }
+    final double[] quantiles = fractions != null ? quantilesSketch.getQuantiles(fractions) : null;
 
-    //final JsonObject result = new JsonObject();
+    return addQuantilesResult(result, query, quantilesSketch, quantilesSketch.getN(),
+        quantilesSketch.isEstimationMode(), quantilesSketch.getMinValue(), quantilesSketch.getMaxValue(),
+        resultType, boxed(values), ranks, fractions, boxed(quantiles));
+  }
+
+  // adds the results common to all quantiles sketches, with values in the sketch's precision
+  private static JsonObject addQuantilesResult(final JsonObject result, final JsonObject query, final Object sketch,
+                                               final long streamLength, final boolean isEstimationMode,
+                                               final Number minValue, final Number maxValue,
+                                               final String resultType, final Number[] values, final double[] ranks,
+                                               final double[] fractions, final Number[] quantiles) {
     result.addProperty(RESPONSE_STREAM_LENGTH, streamLength);
     result.addProperty(RESPONSE_ESTIMATION_MODE_FIELD, isEstimationMode);
     result.addProperty(RESPONSE_MIN_VALUE, minValue);
@@ -266,21 +648,44 @@ public class DataQueryHandler extends BaseSketchesQueryHandler {
       result.add(RESPONSE_QUANTILE_LIST, quantileArray);
     }
 
-    if (addSummary)
-      result.addProperty(RESPONSE_SUMMARY_FIELD, summary);
+    if (checkSummaryFlag(query))
+      result.addProperty(RESPONSE_SUMMARY_FIELD, sketch.toString());
 
     return result;
   }
 
-  // only one sketch type here so could use ItemsSketch<String> instead of Object, but
-  // we'll eep the signatures generic here
-  @SuppressWarnings("unchecked")
-  private static JsonObject processFrequencyQuery(final JsonObject result, final JsonObject query, final Family type, final Object sketch) {
-    if (query == null || type != Family.FREQUENCY || sketch == null) {
+  // boxes float values so they are written with float precision
+  private static Number[] boxed(final float[] values) {
+    if (values == null) {
       return null;
     }
+    final Number[] result = new Number[values.length];
+    for (int i = 0; i < values.length; ++i) {
+      result[i] = values[i];
+    }
+    return result;
+  }
 
-    final ItemsSketch<String> sk = (ItemsSketch<String>) sketch;
+  private static Number[] boxed(final double[] values) {
+    if (values == null) {
+      return null;
+    }
+    final Number[] result = new Number[values.length];
+    for (int i = 0; i < values.length; ++i) {
+      result[i] = values[i];
+    }
+    return result;
+  }
+
+  // the sketch is either an ItemsSketch<String> or a LongsSketch, both handled through FrequentItemsView
+  private static JsonObject processFrequencyQuery(final JsonObject result, final JsonObject query, final Object sketch) {
+    if (query == null || sketch == null) {
+      return null;
+    }
+
+    // a cached view when read from a SketchEntry, otherwise build one for this query
+    final FrequentItemsView view = sketch instanceof FrequentItemsView
+        ? (FrequentItemsView) sketch : new FrequentItemsView(sketch);
 
     // check if we need a summary
     final boolean addSummary = checkSummaryFlag(query);
@@ -300,76 +705,125 @@ public class DataQueryHandler extends BaseSketchesQueryHandler {
       throw new SketchesException("Unknown Frequent Items ErrorType: " + errorTypeString);
     }
 
-    final ItemsSketch.Row<String>[] items = sk.getFrequentItems(errorType);
+    final int topN = query.has(QUERY_TOPN_FIELD) ? query.get(QUERY_TOPN_FIELD).getAsInt() : Integer.MAX_VALUE;
+    if (topN < 0) {
+      throw new SketchesException(QUERY_TOPN_FIELD + " cannot be negative, found: " + topN);
+    }
+
+    // as in ItemsSketch.getFrequentItems(), a threshold below the maximum error has no effect, and a row is kept
+    // if its bound is at least the threshold. The rows for the default threshold are a superset of those for any
+    // higher one, in the same order, so filtering them gives the same result as the sketch. For decayed counts,
+    // the threshold is scaled to the sketch's raw counts.
+    final double threshold;
+    if (!query.has(QUERY_THRESHOLD_FIELD)) {
+      threshold = 0;
+    } else if (view.isDecayed()) {
+      threshold = query.get(QUERY_THRESHOLD_FIELD).getAsDouble() * view.scale_;
+    } else {
+      threshold = query.get(QUERY_THRESHOLD_FIELD).getAsLong();
+    }
+    final boolean applyThreshold = threshold > view.maximumError_;
 
     final JsonArray itemArray = new JsonArray();
-    for (final ItemsSketch.Row<String> item : items) {
+    for (final FrequentItemsRow item : view.getRows(errorType)) {
+      if (itemArray.size() >= topN) {
+        break;
+      }
+      if (applyThreshold) {
+        final long bound = errorType == ErrorType.NO_FALSE_POSITIVES ? item.lowerBound_ : item.upperBound_;
+        if (bound < threshold) {
+          continue;
+        }
+      }
+
       final JsonObject row = new JsonObject();
-      row.addProperty(RESPONSE_ITEM_VALUE, item.getItem());
-      row.addProperty(RESPONSE_ITEM_ESTIMATE, item.getEstimate());
-      row.addProperty(RESPONSE_ITEM_UPPER_BOUND, item.getUpperBound());
-      row.addProperty(RESPONSE_ITEM_LOWER_BOUND, item.getLowerBound());
+      row.add(RESPONSE_ITEM_VALUE, item.item_);
+      if (view.isDecayed()) {
+        row.addProperty(RESPONSE_ITEM_ESTIMATE, item.estimate_ / view.scale_);
+        row.addProperty(RESPONSE_ITEM_UPPER_BOUND, item.upperBound_ / view.scale_);
+        row.addProperty(RESPONSE_ITEM_LOWER_BOUND, item.lowerBound_ / view.scale_);
+      } else {
+        row.addProperty(RESPONSE_ITEM_ESTIMATE, item.estimate_);
+        row.addProperty(RESPONSE_ITEM_UPPER_BOUND, item.upperBound_);
+        row.addProperty(RESPONSE_ITEM_LOWER_BOUND, item.lowerBound_);
+      }
       itemArray.add(row);
     }
 
     //final JsonObject result = new JsonObject();
     result.add(RESPONSE_ITEMS_ARRAY, itemArray);
     if (addSummary)
-      result.addProperty(RESPONSE_SUMMARY_FIELD, sk.toString());
+      result.addProperty(RESPONSE_SUMMARY_FIELD, view.sketch_.toString());
 
     return result;
   }
 
   @SuppressWarnings("unchecked")
-  private static JsonObject processSamplingQuery(final JsonObject result, final JsonObject query, final Family type, final Object sketch) {
-    if (query == null || type == null || sketch == null) {
+  private static JsonObject processReservoirQuery(final JsonObject result, final JsonObject query, final Object sketch) {
+    if (query == null || sketch == null) {
       return null;
     }
 
-    // check if we need a summary
-    final boolean addSummary = checkSummaryFlag(query);
-    String summary = null;
+    final ReservoirItemsSketch<String> ris = (ReservoirItemsSketch<String>) sketch;
+    final JsonArray itemArray = new JsonArray();
+    for (final String item : ris.getSamples()) {
+      itemArray.add(item);
+    }
 
-    final long streamWeight;
-    final int k;
+    result.addProperty(RESPONSE_SKETCH_K, ris.getK());
+    result.addProperty(RESPONSE_STREAM_WEIGHT, ris.getN());
+    result.add(RESPONSE_ITEMS_ARRAY, itemArray);
+    if (checkSummaryFlag(query))
+      result.addProperty(RESPONSE_SUMMARY_FIELD, ris.toString());
+
+    return result;
+  }
+
+  private static JsonObject processReservoirLongsQuery(final JsonObject result, final JsonObject query,
+                                                      final Object sketch) {
+    if (query == null || sketch == null) {
+      return null;
+    }
+
+    final ReservoirLongsSketch rls = (ReservoirLongsSketch) sketch;
     final JsonArray itemArray = new JsonArray();
+    // getSamples() returns null for an empty sketch
+    if (rls.getNumSamples() > 0) {
+      for (final long item : rls.getSamples()) {
+        itemArray.add(item);
+      }
+    }
 
-    switch (type) {
-      case RESERVOIR:
-        final ReservoirItemsSketch<String> ris = (ReservoirItemsSketch<String>) sketch;
-        for (final String item : ris.getSamples()) {
-          itemArray.add(item);
-        }
-        streamWeight = ris.getN();
-        k = ris.getK();
-        if (addSummary)
-          summary = ris.toString();
-        break;
+    result.addProperty(RESPONSE_SKETCH_K, rls.getK());
+    result.addProperty(RESPONSE_STREAM_WEIGHT, rls.getN());
+    result.add(RESPONSE_ITEMS_ARRAY, itemArray);
+    if (checkSummaryFlag(query))
+      result.addProperty(RESPONSE_SUMMARY_FIELD, rls.toString());
 
-      case VAROPT:
-        final VarOptItemsSketch<String> vis = (VarOptItemsSketch<String>) sketch;
-        for (final VarOptItemsSamples<String>.WeightedSample ws : vis.getSketchSamples()) {
-          final JsonObject item = new JsonObject();
-          item.addProperty(RESPONSE_ITEM_VALUE, ws.getItem());
-          item.addProperty(RESPONSE_ITEM_WEIGHT, ws.getWeight());
-          itemArray.add(item);
-        }
-        streamWeight = vis.getN();
-        k = vis.getK();
-        if (addSummary)
-          summary = vis.toString();
-        break;
+    return result;
+  }
 
-      default:
-        throw new SketchesException("processSamplingQuery() received a non-sampling sketch: " + type);
+  // items are either strings or longs
+  @SuppressWarnings("unchecked")
+  private static JsonObject processVarOptQuery(final JsonObject result, final JsonObject query, final Object sketch) {
+    if (query == null || sketch == null) {
+      return null;
     }
 
-    //final JsonObject result = new JsonObject();
-    result.addProperty(RESPONSE_SKETCH_K, k);
-    result.addProperty(RESPONSE_STREAM_WEIGHT, streamWeight);
+    final VarOptItemsSketch<Object> vis = (VarOptItemsSketch<Object>) sketch;
+    final JsonArray itemArray = new JsonArray();
+    for (final VarOptItemsSamples<Object>.WeightedSample ws : vis.getSketchSamples()) {
+      final JsonObject item = new JsonObject();
+      item.add(RESPONSE_ITEM_VALUE, itemToJson(ws.getItem()));
+      item.addProperty(RESPONSE_ITEM_WEIGHT, ws.getWeight());
+      itemArray.add(item);
+    }
+
+    result.addProperty(RESPONSE_SKETCH_K, vis.getK());
+    result.addProperty(RESPONSE_STREAM_WEIGHT, vis.getN());
     result.add(RESPONSE_ITEMS_ARRAY, itemArray);
-    if (addSummary)
-      result.addProperty(RESPONSE_SUMMARY_FIELD, summary);
+    if (checkSummaryFlag(query))
+      result.addProperty(RESPONSE_SUMMARY_FIELD, vis.toString());
 
     return result;
   }
@@ -393,6 +847,25 @@ public class DataQueryHandler extends BaseSketchesQueryHandler {
     return values;
   }
 
+  // returns an array of rank points at double precision, or null if none in query
+  private static double[] getDoubleValuesArray(final JsonObject query) {
+    if (query == null || !query.has(QUERY_VALUES_FIELD_NAME)) {
+      return null;
+    }
+
+    final JsonArray valuesArray = query.get(QUERY_VALUES_FIELD_NAME).getAsJsonArray();
+    final double[] values = new double[valuesArray.size()];
+
+    for (int i = 0; i < values.length; ++i) {
+      if (!valuesArray.get(i).isJsonPrimitive()) {
+        throw new SketchesException("Invalid value in array. Must be a floating point value, found: " + valuesArray.get(i));
+      }
+      values[i] = valuesArray.get(i).getAsDouble();
+    }
+
+    return values;
+  }
+
   // returns QUERY_RESULT_TYPE_PMF if specified in QUERY_RESULT_TYPE_NAME_FIELD, otherwise returns default of
   // QUERY_RESULT_TYPE_CDF
   private static String getResultType(final JsonObject query) {
@@ -430,4 +903,92 @@ public class DataQueryHandler extends BaseSketchesQueryHandler {
     return fractions;
   }
 
+
+  // returns a string or numeric sampled item as JSON
+  private static JsonPrimitive itemToJson(final Object item) {
+    return item instanceof Number ? new JsonPrimitive((Number) item) : new JsonPrimitive(item.toString());
+  }
+
+  /**
+   * Frequent items rows for each <tt>ErrorType</tt>, sorted by the sketch, computed on first use and then
+   * reused until the sketch is next modified. The sketch is either an <tt>ItemsSketch&lt;String&gt;</tt> or
+   * a <tt>LongsSketch</tt>, possibly held by a <tt>DecayedFrequencySketch</tt>, in which case rows hold raw
+   * counts that must be divided by <tt>scale_</tt>.
+   */
+  static final class FrequentItemsView {
+    final Object sketch_;
+    final long maximumError_;
+    final double scale_; // 0 if counts do not decay
+    private FrequentItemsRow[] noFalsePositives_;
+    private FrequentItemsRow[] noFalseNegatives_;
+
+    FrequentItemsView(final Object sketch) {
+      if (sketch instanceof DecayedFrequencySketch) {
+        sketch_ = ((DecayedFrequencySketch) sketch).getSketch();
+        scale_ = ((DecayedFrequencySketch) sketch).getScale();
+      } else {
+        sketch_ = sketch;
+        scale_ = 0;
+      }
+      maximumError_ = sketch_ instanceof LongsSketch
+          ? ((LongsSketch) sketch_).getMaximumError() : ((ItemsSketch<?>) sketch_).getMaximumError();
+    }
+
+    boolean isDecayed() {
+      return scale_ > 0;
+    }
+
+    // rows using the sketch's default threshold
+    FrequentItemsRow[] getRows(final ErrorType errorType) {
+      if (errorType == ErrorType.NO_FALSE_POSITIVES) {
+        if (noFalsePositives_ == null) {
+          noFalsePositives_ = computeRows(errorType);
+        }
+        return noFalsePositives_;
+      } else {
+        if (noFalseNegatives_ == null) {
+          noFalseNegatives_ = computeRows(errorType);
+        }
+        return noFalseNegatives_;
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private FrequentItemsRow[] computeRows(final ErrorType errorType) {
+      if (sketch_ instanceof LongsSketch) {
+        final LongsSketch.Row[] rows = ((LongsSketch) sketch_).getFrequentItems(errorType);
+        final FrequentItemsRow[] result = new FrequentItemsRow[rows.length];
+        for (int i = 0; i < rows.length; ++i) {
+          result[i] = new FrequentItemsRow(new JsonPrimitive(rows[i].getItem()), rows[i].getEstimate(),
+              rows[i].getUpperBound(), rows[i].getLowerBound());
+        }
+        return result;
+      }
+
+      final ItemsSketch.Row<String>[] rows = ((ItemsSketch<String>) sketch_).getFrequentItems(errorType);
+      final FrequentItemsRow[] result = new FrequentItemsRow[rows.length];
+      for (int i = 0; i < rows.length; ++i) {
+        result[i] = new FrequentItemsRow(new JsonPrimitive(rows[i].getItem()), rows[i].getEstimate(),
+            rows[i].getUpperBound(), rows[i].getLowerBound());
+      }
+      return result;
+    }
+  }
+
+  /**
+   * A frequent items row, with the item already in its JSON form so that string and long items are handled alike.
+   */
+  static final class FrequentItemsRow {
+    final JsonPrimitive item_;
+    final long estimate_;
+    final long upperBound_;
+    final long lowerBound_;
+
+    FrequentItemsRow(final JsonPrimitive item, final long estimate, final long upperBound, final long lowerBound) {
+      item_ = item;
+      estimate_ = estimate;
+      upperBound_ = upperBound;
+      lowerBound_ = lowerBound;
+    }
+  }
 }
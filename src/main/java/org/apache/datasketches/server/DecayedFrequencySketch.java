@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import org.apache.datasketches.frequencies.ErrorType;
+import org.apache.datasketches.frequencies.ItemsSketch;
+import org.apache.datasketches.frequencies.LongsSketch;
+
+/**
+ * A frequent items sketch whose counts decay exponentially with a configured half-life. Rather than shrinking
+ * every count as time passes, this uses forward decay: each new weight is scaled up by
+ * <tt>2^((t - L) / halfLife)</tt> relative to a landmark time <tt>L</tt>, and counts are divided by the same
+ * factor for the current time when read. Decay then leaves the held <tt>ItemsSketch</tt> or
+ * <tt>LongsSketch</tt> untouched, until the growing scale factor nears the range of a <tt>long</tt> and the
+ * sketch is rebuilt with its counts scaled down to a new landmark, which happens once every
+ * <tt>MAX_EXPONENT</tt> half-lives.
+ * <p>
+ * Time only moves forward through <tt>advance()</tt>, which the server calls periodically, so updates between
+ * calls share a scale factor and reads report counts as of the last call. A rebuild keeps only the items the
+ * sketch could report, which resets the stream length and maximum error to those of the rescaled items.
+ * </p>
+ */
+final class DecayedFrequencySketch {
+  // weights at the landmark are scaled by 2^SCALE_BITS, so that fractions of a unit survive rounding
+  static final int SCALE_BITS = 10;
+  // with SCALE_BITS, keeps a scaled int weight within 2^57
+  static final double MAX_EXPONENT = 16.0;
+  // largest weight accepted for a single input, so that the scaled weight fits as above
+  static final long MAX_WEIGHT = Integer.MAX_VALUE;
+  // counts are rebased early if the total weight approaches the range of a long
+  private static final long MAX_STREAM_LENGTH = Long.MAX_VALUE >>> 3;
+
+  private final int k_;
+  private final boolean longItems_;
+  private final double halfLifeMs_;
+  private Object sketch_; // ItemsSketch<String> or LongsSketch
+  private long landmarkMs_;
+  private long nowMs_;
+  private long unitWeight_; // scaled weight of a single item at nowMs_
+
+  DecayedFrequencySketch(final int k, final boolean longItems, final double halfLifeMs, final long nowMs) {
+    if (!(halfLifeMs > 0)) {
+      throw new IllegalArgumentException("Half-life must be positive, found: " + halfLifeMs);
+    }
+    k_ = k;
+    longItems_ = longItems;
+    halfLifeMs_ = halfLifeMs;
+    sketch_ = newSketch();
+    landmarkMs_ = nowMs;
+    nowMs_ = nowMs;
+    unitWeight_ = 1L << SCALE_BITS;
+  }
+
+  /**
+   * Returns the underlying sketch, holding counts relative to the landmark. Its contents change on a rebuild,
+   * so a reference must not be kept past the sketch lock.
+   * @return The <tt>ItemsSketch&lt;String&gt;</tt> or <tt>LongsSketch</tt>
+   */
+  Object getSketch() {
+    return sketch_;
+  }
+
+  /**
+   * Returns the number to multiply each weight by for an update at the current time.
+   * @return The scaled weight of a single item
+   */
+  long getUnitWeight() {
+    return unitWeight_;
+  }
+
+  /**
+   * Returns the factor by which the counts in the underlying sketch exceed their decayed values at the
+   * current time.
+   * @return The divisor to apply to counts, estimates and bounds
+   */
+  double getScale() {
+    return scaleAt(nowMs_);
+  }
+
+  /**
+   * Moves the current time forward, rebuilding the sketch relative to a new landmark if needed. Times earlier
+   * than the current time are ignored.
+   * @param nowMs The new current time in milliseconds
+   */
+  void advance(final long nowMs) {
+    if (nowMs <= nowMs_) {
+      return;
+    }
+    nowMs_ = nowMs;
+    if ((nowMs_ - landmarkMs_) / halfLifeMs_ > MAX_EXPONENT || streamLength() > MAX_STREAM_LENGTH) {
+      rebase();
+    }
+    unitWeight_ = Math.round(scaleAt(nowMs_));
+  }
+
+  boolean isEmpty() {
+    return longItems_ ? ((LongsSketch) sketch_).isEmpty() : ((ItemsSketch<?>) sketch_).isEmpty();
+  }
+
+  private double scaleAt(final long timeMs) {
+    return Math.scalb(Math.pow(2.0, (timeMs - landmarkMs_) / halfLifeMs_), SCALE_BITS);
+  }
+
+  private long streamLength() {
+    return longItems_ ? ((LongsSketch) sketch_).getStreamLength() : ((ItemsSketch<?>) sketch_).getStreamLength();
+  }
+
+  private Object newSketch() {
+    return longItems_ ? new LongsSketch(k_) : new ItemsSketch<String>(k_);
+  }
+
+  // moves the landmark to the current time, carrying over each item the sketch could report
+  @SuppressWarnings("unchecked")
+  private void rebase() {
+    final double factor = Math.scalb(1.0, SCALE_BITS) / scaleAt(nowMs_);
+    final Object rebased = newSketch();
+    if (longItems_) {
+      for (final LongsSketch.Row row : ((LongsSketch) sketch_).getFrequentItems(ErrorType.NO_FALSE_NEGATIVES)) {
+        final long count = Math.round(row.getEstimate() * factor);
+        if (count > 0) {
+          ((LongsSketch) rebased).update(row.getItem(), count);
+        }
+      }
+    } else {
+      for (final ItemsSketch.Row<String> row
+          : ((ItemsSketch<String>) sketch_).getFrequentItems(ErrorType.NO_FALSE_NEGATIVES)) {
+        final long count = Math.round(row.getEstimate() * factor);
+        if (count > 0) {
+          ((ItemsSketch<String>) rebased).update(row.getItem(), count);
+        }
+      }
+    }
+    sketch_ = rebased;
+    landmarkMs_ = nowMs_;
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.SketchConstants.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jetty.server.Request;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Routes fields of incoming events to sketches, using the <tt>routes</tt> from the server configuration:
+ * <pre>
+ *   "routes": [
+ *     { "field": "&lt;field_name&gt;", "sketches": [ "&lt;sketch_name_1&gt;", "&lt;sketch_name_2&gt;", ... ] },
+ *     ...
+ *   ]
+ * </pre>
+ * A field name may use dots to refer to a field of a nested object. Each event is a JSON Object, and a request
+ * may hold a single event or a JSON Array of events. The value of each routed field, which may be a single value
+ * or an array as accepted by <tt>/update</tt>, is added to every sketch on the route. Events missing a field are
+ * skipped for that route.
+ * <p>
+ * The request is parsed once, after which the values bound for each sketch are collected across all events and
+ * applied as a single batch, so each sketch is locked once per request regardless of the number of events.
+ * With asynchronous ingest configured, each batch is instead queued as for <tt>/update</tt>, returning
+ * <tt>202 Accepted</tt>, or <tt>503 Service Unavailable</tt> if a queue is full.
+ * </p>
+ */
+public class IngestHandler extends BaseSketchesHandler {
+  // a configured route with its field path pre-split
+  private static final class Route {
+    final String[] path_;
+    final String[] sketches_;
+
+    Route(final SketchServerConfig.RouteInfo info) {
+      if (info.field == null || info.field.isEmpty() || info.sketches == null || info.sketches.length == 0) {
+        throw new IllegalArgumentException("Routes must specify a \"" + CONFIG_ROUTE_FIELD_FIELD + "\" and at least "
+            + "one of \"" + CONFIG_ROUTE_SKETCHES_FIELD + "\"");
+      }
+      path_ = info.field.split("\\.");
+      sketches_ = info.sketches;
+    }
+
+    // returns the routed value, or null if the event does not have the field
+    JsonElement extract(final JsonObject event) {
+      JsonElement value = event;
+      for (final String key : path_) {
+        if (value == null || !value.isJsonObject()) {
+          return null;
+        }
+        value = value.getAsJsonObject().get(key);
+      }
+      return value == null || value.isJsonNull() ? null : value;
+    }
+  }
+
+  private final List<Route> routes;
+  private final IngestQueue queue; // null if updates are applied synchronously
+
+  IngestHandler(final SketchStorage sketches, final List<SketchServerConfig.RouteInfo> routeList,
+                final IngestQueue queue) {
+    super(sketches);
+    this.queue = queue;
+    routes = new ArrayList<>(routeList.size());
+    for (final SketchServerConfig.RouteInfo info : routeList) {
+      routes.add(new Route(info));
+    }
+  }
+
+  @Override
+  public void handle(final String target,
+                     final Request baseRequest,
+                     final HttpServletRequest request,
+                     final HttpServletResponse response) throws IOException {
+    final JsonElement query = checkMethodAndReadJson(baseRequest, request, response);
+    if (query == null) {
+      return;
+    }
+
+    response.setCharacterEncoding("utf-8");
+    response.setContentType("application/json");
+
+    try {
+      if (query.isJsonArray()) {
+        final List<JsonObject> events = new ArrayList<>(query.getAsJsonArray().size());
+        for (final JsonElement e : query.getAsJsonArray()) {
+          events.add(e.getAsJsonObject());
+        }
+        ingest(events);
+      } else {
+        final List<JsonObject> events = new ArrayList<>(1);
+        events.add(query.getAsJsonObject());
+        ingest(events);
+      }
+      response.setStatus(queue != null ? HttpServletResponse.SC_ACCEPTED : HttpServletResponse.SC_OK);
+    } catch (final IngestQueue.QueueFullException e) {
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    } catch (final Exception e) {
+      sendError(response, e);
+    }
+
+    baseRequest.setHandled(true);
+  }
+
+  /**
+   * Routes a list of events to their sketches. All route targets are resolved before any sketch is updated.
+   * @param events The events to ingest
+   */
+  void ingest(final List<JsonObject> events) {
+    // resolve targets once per request, as a reload may have changed them
+    final List<SketchStorage.SketchEntry[]> targets = new ArrayList<>(routes.size());
+    for (final Route route : routes) {
+      final SketchStorage.SketchEntry[] entries = new SketchStorage.SketchEntry[route.sketches_.length];
+      for (int i = 0; i < entries.length; ++i) {
+        entries[i] = sketches.getSketch(route.sketches_[i]);
+        if (entries[i] == null) {
+          throw new IllegalArgumentException("Route target sketch not found: " + route.sketches_[i]);
+        }
+        if (sketches.isRollup(route.sketches_[i])) {
+          throw new IllegalArgumentException("Route target cannot be a rollup: " + route.sketches_[i]);
+        }
+      }
+      targets.add(entries);
+    }
+
+    // collect the values bound for each sketch, in event order
+    final LinkedHashMap<SketchStorage.SketchEntry, JsonArray> batches = new LinkedHashMap<>();
+    for (final JsonObject event : events) {
+      for (int r = 0; r < routes.size(); ++r) {
+        final JsonElement value = routes.get(r).extract(event);
+        if (value == null) {
+          continue;
+        }
+        for (final SketchStorage.SketchEntry se : targets.get(r)) {
+          final JsonArray batch = batches.computeIfAbsent(se, x -> new JsonArray());
+          if (value.isJsonArray()) {
+            batch.addAll(value.getAsJsonArray());
+          } else {
+            batch.add(value);
+          }
+        }
+      }
+    }
+
+    for (final Map.Entry<SketchStorage.SketchEntry, JsonArray> batch : batches.entrySet()) {
+      if (queue != null) {
+        queue.enqueue(batch.getKey(), batch.getValue());
+      } else {
+        UpdateHandler.applyUpdate(sketches, batch.getKey(), batch.getValue());
+      }
+    }
+  }
+}
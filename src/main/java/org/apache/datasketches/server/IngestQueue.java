@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.SketchConstants.*;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Applies updates asynchronously, off the request thread. Updates are partitioned by sketch name into bounded
+ * queues, each drained in order by a single applier thread, so every sketch has exactly one writer applying
+ * updates in the order they were accepted. The sketch lock is still taken when applying an update since
+ * queries, merges, and rotations read the same sketches, but appliers never contend with each other for it.
+ * <p>
+ * A full queue is reported to the caller rather than blocking the request thread, allowing clients to back off.
+ * Values are checked before they are queued, so that one of the wrong type is reported to the client. Updates
+ * that still fail once dequeued cannot be reported to the client, so they are counted and logged, at most once
+ * per <tt>FAILURE_LOG_INTERVAL_MS</tt> to avoid flooding the log when many fail for the same reason.
+ * </p>
+ */
+class IngestQueue {
+  private static final Logger LOG = Log.getLogger(IngestQueue.class);
+  private static final long POLL_TIMEOUT_MS = 100;
+  private static final long FAILURE_LOG_INTERVAL_MS = 10000;
+
+  /**
+   * Thrown when an update cannot be accepted because its queue is full or the queue is stopped.
+   */
+  static class QueueFullException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    QueueFullException(final String message) {
+      super(message);
+    }
+  }
+
+  private static final class Task {
+    final SketchStorage.SketchEntry entry_;
+    final JsonElement data_;
+    final long enqueuedNanos_;
+
+    Task(final SketchStorage.SketchEntry entry, final JsonElement data) {
+      entry_ = entry;
+      data_ = data;
+      enqueuedNanos_ = System.nanoTime();
+    }
+  }
+
+  private final SketchStorage sketches;
+  private final ArrayBlockingQueue<Task>[] queues;
+  private final Thread[] appliers;
+  private final AtomicLong applied;
+  private final AtomicLong failed;
+  private final AtomicLong rejected;
+  private final AtomicLong lastFailureLogMs;
+  private volatile boolean running;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  IngestQueue(@NonNull final SketchStorage sketches, final SketchServerConfig.AsyncInfo info) {
+    if (info.partitions < 1 || info.capacity < 1) {
+      throw new IllegalArgumentException("Async ingest requires positive " + CONFIG_ASYNC_PARTITIONS_FIELD
+          + " and " + CONFIG_ASYNC_CAPACITY_FIELD);
+    }
+    this.sketches = sketches;
+    queues = new ArrayBlockingQueue[info.partitions];
+    appliers = new Thread[info.partitions];
+    for (int i = 0; i < queues.length; ++i) {
+      queues[i] = new ArrayBlockingQueue<>(info.capacity);
+    }
+    applied = new AtomicLong();
+    failed = new AtomicLong();
+    rejected = new AtomicLong();
+    lastFailureLogMs = new AtomicLong(Long.MIN_VALUE);
+  }
+
+  /**
+   * Starts an applier thread for each partition.
+   */
+  synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    for (int i = 0; i < appliers.length; ++i) {
+      final ArrayBlockingQueue<Task> queue = queues[i];
+      appliers[i] = new Thread(() -> drain(queue), "ingest-applier-" + i);
+      appliers[i].setDaemon(true);
+      appliers[i].start();
+    }
+  }
+
+  /**
+   * Stops accepting updates and waits for the appliers to finish everything already queued.
+   * @throws InterruptedException if interrupted while waiting for the appliers
+   */
+  synchronized void stop() throws InterruptedException {
+    if (!running) {
+      return;
+    }
+    running = false;
+    for (final Thread t : appliers) {
+      t.join();
+    }
+
+    // an update accepted just as the appliers exited
+    for (final ArrayBlockingQueue<Task> queue : queues) {
+      Task task;
+      while ((task = queue.poll()) != null) {
+        apply(task);
+      }
+    }
+  }
+
+  /**
+   * Checks and queues a single value, or an array of values, for a sketch. The check runs on the caller's
+   * thread, so an invalid value is rejected before anything is queued.
+   * @param se The SketchEntry to update
+   * @param data A single value or JSON Array of values
+   * @throws QueueFullException if the sketch's queue is full or the queue is stopped
+   * @throws RuntimeException if a value cannot be applied to the sketch
+   */
+  void enqueue(final SketchStorage.SketchEntry se, @NonNull final JsonElement data) {
+    UpdateHandler.checkUpdate(se, data);
+    if (!running || !queues[partition(se.name_)].offer(new Task(se, data))) {
+      rejected.incrementAndGet();
+      throw new QueueFullException("Ingest queue full for sketch: " + se.name_);
+    }
+  }
+
+  /**
+   * Returns the depth and lag of each partition, along with counts of updates applied, failed, and rejected.
+   * The lag of a partition is the age of its oldest queued update.
+   * @return A JSON Object describing the queue state
+   */
+  JsonObject getStatus() {
+    final long now = System.nanoTime();
+    final JsonArray partitions = new JsonArray(queues.length);
+    for (final ArrayBlockingQueue<Task> queue : queues) {
+      final Task head = queue.peek();
+      final JsonObject partition = new JsonObject();
+      partition.addProperty(RESPONSE_QUEUE_DEPTH_FIELD, queue.size());
+      partition.addProperty(RESPONSE_QUEUE_LAG_FIELD,
+          head != null ? TimeUnit.NANOSECONDS.toMillis(now - head.enqueuedNanos_) : 0);
+      partitions.add(partition);
+    }
+
+    final JsonObject status = new JsonObject();
+    status.add(RESPONSE_QUEUE_PARTITIONS_FIELD, partitions);
+    status.addProperty(RESPONSE_QUEUE_APPLIED_FIELD, applied.get());
+    status.addProperty(RESPONSE_QUEUE_FAILED_FIELD, failed.get());
+    status.addProperty(RESPONSE_QUEUE_REJECTED_FIELD, rejected.get());
+    return status;
+  }
+
+  private int partition(final String name) {
+    return (name.hashCode() & 0x7FFFFFFF) % queues.length;
+  }
+
+  // applies updates until stopped and the queue is empty
+  private void drain(final ArrayBlockingQueue<Task> queue) {
+    while (true) {
+      final Task task;
+      try {
+        task = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+      if (task == null) {
+        if (!running) {
+          return;
+        }
+        continue;
+      }
+
+      apply(task);
+    }
+  }
+
+  private void apply(final Task task) {
+    try {
+      UpdateHandler.applyUpdate(sketches, task.entry_, task.data_);
+      applied.incrementAndGet();
+    } catch (final RuntimeException e) {
+      final long failures = failed.incrementAndGet();
+      final long nowMs = System.currentTimeMillis();
+      final long lastMs = lastFailureLogMs.get();
+      if ((lastMs == Long.MIN_VALUE || nowMs - lastMs >= FAILURE_LOG_INTERVAL_MS)
+          && lastFailureLogMs.compareAndSet(lastMs, nowMs)) {
+        LOG.warn("Unable to apply queued update to " + task.entry_.name_ + ", " + failures
+            + " queued updates have failed in total", e);
+      }
+    }
+  }
+}
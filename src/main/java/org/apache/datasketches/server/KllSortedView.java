@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import java.util.Arrays;
+
+import org.apache.datasketches.SketchesArgumentException;
+import org.apache.datasketches.Util;
+import org.apache.datasketches.kll.KllFloatsSketch;
+import org.apache.datasketches.kll.KllFloatsSketchIterator;
+
+/**
+ * A sorted view of the values retained by a <tt>KllFloatsSketch</tt>, along with their cumulative weights.
+ * The sketch rebuilds an equivalent structure for every rank or quantile call. Building it once allows any
+ * number of queries, until the sketch is next modified, to be answered with a binary search per point.
+ * <p>
+ * Results match those of <tt>getCDF()</tt>, <tt>getPMF()</tt> and <tt>getQuantiles()</tt> on the sketch.
+ * The view holds no reference to the sketch's internal arrays, but the scalar properties and summary are read
+ * from the sketch itself so it must not be modified while the view is in use.
+ * </p>
+ */
+final class KllSortedView {
+  private final KllFloatsSketch sketch_;
+  private final long n_;
+  private final float[] values_;      // sorted ascending
+  private final long[] cumWeights_;   // cumWeights_[i] = total weight of values_[0..i-1], so length is one more
+
+  KllSortedView(final KllFloatsSketch sketch) {
+    sketch_ = sketch;
+    n_ = sketch.getN();
+
+    final int numRetained = sketch.getNumRetained();
+    final float[] rawValues = new float[numRetained];
+    final long[] rawWeights = new long[numRetained];
+    // sort by value using the index as a tie-breaker, packing both into a long to avoid boxing
+    final long[] keys = new long[numRetained];
+    final KllFloatsSketchIterator it = sketch.iterator();
+    int count = 0;
+    while (it.next()) {
+      rawValues[count] = it.getValue();
+      rawWeights[count] = it.getWeight();
+      keys[count] = ((long) sortableBits(rawValues[count]) << 32) | count;
+      ++count;
+    }
+    Arrays.sort(keys, 0, count);
+
+    values_ = new float[count];
+    cumWeights_ = new long[count + 1];
+    for (int i = 0; i < count; ++i) {
+      final int idx = (int) keys[i];
+      values_[i] = rawValues[idx];
+      cumWeights_[i + 1] = cumWeights_[i] + rawWeights[idx];
+    }
+  }
+
+  KllFloatsSketch getSketch() {
+    return sketch_;
+  }
+
+  /**
+   * Returns the normalized ranks of the split points, as with <tt>KllFloatsSketch.getCDF()</tt>.
+   * @param splitPoints An array of unique, monotonically increasing values
+   * @return An array of size <tt>splitPoints.length + 1</tt>, or null if the sketch is empty
+   */
+  double[] getCDF(final float[] splitPoints) {
+    if (n_ == 0) {
+      return null;
+    }
+    Util.validateValues(splitPoints);
+
+    final double[] ranks = new double[splitPoints.length + 1];
+    for (int i = 0; i < splitPoints.length; ++i) {
+      ranks[i] = (double) weightBelow(splitPoints[i]) / n_;
+    }
+    ranks[splitPoints.length] = 1.0;
+    return ranks;
+  }
+
+  /**
+   * Returns the normalized mass between split points, as with <tt>KllFloatsSketch.getPMF()</tt>.
+   * @param splitPoints An array of unique, monotonically increasing values
+   * @return An array of size <tt>splitPoints.length + 1</tt>, or null if the sketch is empty
+   */
+  double[] getPMF(final float[] splitPoints) {
+    if (n_ == 0) {
+      return null;
+    }
+    Util.validateValues(splitPoints);
+
+    final double[] masses = new double[splitPoints.length + 1];
+    long prevWeight = 0;
+    for (int i = 0; i < splitPoints.length; ++i) {
+      final long weight = weightBelow(splitPoints[i]);
+      masses[i] = (double) (weight - prevWeight) / n_;
+      prevWeight = weight;
+    }
+    masses[splitPoints.length] = (double) (n_ - prevWeight) / n_;
+    return masses;
+  }
+
+  /**
+   * Returns the values at the given normalized ranks, as with <tt>KllFloatsSketch.getQuantiles()</tt>.
+   * @param fractions An array of normalized ranks in [0.0, 1.0]
+   * @return An array of quantiles, or null if the sketch is empty
+   */
+  float[] getQuantiles(final double[] fractions) {
+    if (n_ == 0) {
+      return null;
+    }
+
+    final float[] quantiles = new float[fractions.length];
+    for (int i = 0; i < fractions.length; ++i) {
+      final double phi = fractions[i];
+      if (phi < 0.0 || phi > 1.0) {
+        throw new SketchesArgumentException("Fraction cannot be less than zero or greater than 1.0");
+      }
+      if (phi == 0.0) {
+        quantiles[i] = sketch_.getMinValue();
+      } else if (phi == 1.0) {
+        quantiles[i] = sketch_.getMaxValue();
+      } else {
+        final long pos = Math.min((long) Math.floor(phi * n_), n_ - 1);
+        quantiles[i] = values_[chunkContainingPos(pos)];
+      }
+    }
+    return quantiles;
+  }
+
+  // total weight of values strictly less than the given value
+  private long weightBelow(final float value) {
+    int lo = 0;
+    int hi = values_.length;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (values_[mid] < value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return cumWeights_[lo];
+  }
+
+  // index i such that cumWeights_[i] <= pos < cumWeights_[i + 1]
+  private int chunkContainingPos(final long pos) {
+    int lo = 0;
+    int hi = values_.length - 1;
+    while (lo < hi) {
+      final int mid = (lo + hi + 1) >>> 1;
+      if (cumWeights_[mid] <= pos) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  // maps a float to an int with the same ordering under signed comparison
+  private static int sortableBits(final float value) {
+    final int bits = Float.floatToIntBits(value);
+    return bits ^ ((bits >> 31) & 0x7fffffff);
+  }
+}
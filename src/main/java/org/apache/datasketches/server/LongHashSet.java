@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+/**
+ * A minimal open-addressing set of primitive longs, used to drop duplicates from a batch of updates without
+ * boxing each value. Sized for an expected number of values on creation, and grows if needed.
+ */
+final class LongHashSet {
+  private static final double LOAD_FACTOR = 0.5;
+
+  private long[] keys;
+  private boolean[] used;
+  private int mask;
+  private int size;
+
+  LongHashSet(final int expectedSize) {
+    allocate(tableSize(expectedSize));
+  }
+
+  /**
+   * Adds a value to the set.
+   * @param value The value to add
+   * @return <tt>true</tt> if the value was not already present, otherwise <tt>false</tt>
+   */
+  boolean add(final long value) {
+    int i = mix(value) & mask;
+    while (used[i]) {
+      if (keys[i] == value) {
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+    used[i] = true;
+    keys[i] = value;
+    if (++size > keys.length * LOAD_FACTOR) {
+      grow();
+    }
+    return true;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private static int tableSize(final int expectedSize) {
+    final int minSize = (int) Math.min(1 << 30, Math.max(16L, (long) (expectedSize / LOAD_FACTOR) + 1));
+    return Integer.highestOneBit(minSize - 1) << 1;
+  }
+
+  private void allocate(final int tableSize) {
+    keys = new long[tableSize];
+    used = new boolean[tableSize];
+    mask = tableSize - 1;
+  }
+
+  private void grow() {
+    final long[] oldKeys = keys;
+    final boolean[] oldUsed = used;
+    allocate(keys.length << 1);
+    for (int j = 0; j < oldKeys.length; ++j) {
+      if (oldUsed[j]) {
+        int i = mix(oldKeys[j]) & mask;
+        while (used[i]) {
+          i = (i + 1) & mask;
+        }
+        used[i] = true;
+        keys[i] = oldKeys[j];
+      }
+    }
+  }
+
+  // the MurmurHash3 finalizer, so sequential values spread across the table
+  private static int mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int) h;
+  }
+}
@@ -22,23 +22,38 @@ package org.apache.datasketches.server;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import org.apache.datasketches.ArrayOfLongsSerDe;
 import org.apache.datasketches.ArrayOfStringsSerDe;
 import org.apache.datasketches.Family;
 import org.apache.datasketches.SketchesException;
 import org.apache.datasketches.cpc.CpcSketch;
 import org.apache.datasketches.cpc.CpcUnion;
 import org.apache.datasketches.frequencies.ItemsSketch;
+import org.apache.datasketches.frequencies.LongsSketch;
 import org.apache.datasketches.hll.HllSketch;
 import org.apache.datasketches.kll.KllFloatsSketch;
 import org.apache.datasketches.memory.Memory;
+import org.apache.datasketches.quantiles.DoublesSketch;
+import org.apache.datasketches.quantiles.DoublesUnion;
+import org.apache.datasketches.req.ReqSketch;
 import org.apache.datasketches.sampling.ReservoirItemsSketch;
 import org.apache.datasketches.sampling.ReservoirItemsUnion;
+import org.apache.datasketches.sampling.ReservoirLongsSketch;
+import org.apache.datasketches.sampling.ReservoirLongsUnion;
 import org.apache.datasketches.sampling.VarOptItemsSketch;
 import org.apache.datasketches.sampling.VarOptItemsUnion;
 import org.apache.datasketches.theta.CompactSketch;
 import org.apache.datasketches.theta.SetOperationBuilder;
+import org.apache.datasketches.theta.Sketch;
 import org.apache.datasketches.theta.Union;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesSetOperationBuilder;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesSketch;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesSketches;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesUnion;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -51,25 +66,38 @@ import com.google.gson.JsonObject;
  *     "target": "&lt;destination_key&gt;", // optional: return serialized result if missing
  *     "k": &lt;&intgt;, // optional: used (and required) only if no target
  *     "source": [ { "family": "&lt;sketch_family&gt;",
+ *                "type": "&lt;item_type&gt;", // optional: only for items sketches holding longs
  *                "data": "&lt;base64_encoded_sketch&gt;"
  *              } ]
  *   }
  * </pre>
- * where <tt>source</tt> is an array of key names or {family, data} pairs. Inputs must be of the same family
- * as the target. If no target is present, the family of the first input sketch is used instead. Merge order
- * is not guaranteed.
+ * where <tt>source</tt> is an array of key names, {family, data} pairs, objects selecting a group of stored
+ * sketches by <tt>names</tt>, <tt>prefix</tt> and/or <tt>tag</tt>, or objects selecting the archived data of a
+ * sketch <tt>name</tt> between <tt>from</tt> and <tt>to</tt>. Inputs must be of the same family
+ * as the target, and for frequent items and sampling sketches the same item type. If no target is present,
+ * the family of the first input sketch is used instead. Merge order is not guaranteed.
  */
 public class MergeHandler extends BaseSketchesQueryHandler {
+  // lists at least this long are unioned in parallel chunks of this size
+  private static final int PARALLEL_UNION_THRESHOLD = 64;
+
+  private final SketchArchiver archiver; // null if no archive is configured
+
   MergeHandler(final SketchStorage sketches) {
+    this(sketches, null);
+  }
+
+  MergeHandler(final SketchStorage sketches, final SketchArchiver archiver) {
     super(sketches);
+    this.archiver = archiver;
   }
 
   /**
-   *  Holds an entry in the list of sketches to merge.
-   *  <tt>name.intern()</tt> can be used to synchronize the sketch to avoid concurrency issues
+   *  Holds an entry in the list of sketches to merge. The sketch is detached from storage, either deserialized
+   *  or snapshotted from a stored sketch under its lock, so it can be merged without taking any lock.
    */
   static class MergeEntry {
-    final String name_;
+    final String name_; // the stored sketch this is a snapshot of, or null
     final Object sketch_;
 
     MergeEntry(final String name, final Object sketch) {
@@ -78,6 +106,24 @@ public class MergeHandler extends BaseSketchesQueryHandler {
     }
   }
 
+  /**
+   * The family and, for items sketches, item type shared by all inputs of a merge.
+   */
+  private static final class MergeKind {
+    final Family family_;
+    final ValueType type_;
+
+    MergeKind(final Family family, final ValueType type) {
+      family_ = family;
+      type_ = type;
+    }
+
+    // as with the family, distinct counting sketches of any value type may be merged
+    boolean accepts(final Family family, final ValueType type) {
+      return family_ == family && (!SketchStorage.hasItemType(family) || type_ == type);
+    }
+  }
+
   @Override
   protected JsonObject processQuery(final JsonObject query) {
     // optional targets:
@@ -106,24 +152,39 @@ public class MergeHandler extends BaseSketchesQueryHandler {
     final JsonArray srcList = srcElement.getAsJsonArray();
 
     SketchStorage.SketchEntry se = null;
-    Family dstFamily = null;
+    MergeKind dstKind = null;
     if (dst != null) {
       se = sketches.getSketch(dst);
-      dstFamily = se.family_;
+      if (se.isTimed()) {
+        throw new SketchesException("Cannot merge into decayed or windowed sketch: " + dst);
+      }
+      // rollups only follow their members, so a direct write would make them diverge
+      if (sketches.isRollup(dst)) {
+        throw new SketchesException("Cannot merge into rollup, merge into its members instead: " + dst);
+      }
+      dstKind = new MergeKind(se.family_, se.type_);
+      k = se.configK_;
     }
 
     // we'll process (and dedup) any stored sketches before we handle encoded inputs
     // but we'll run through all of them before doing anything
     final ArrayList<MergeEntry> srcSketches = new ArrayList<>(srcList.size());
 
-    dstFamily = prepareSketches(srcList, dstFamily, dst, srcSketches);
+    dstKind = prepareSketches(srcList, dstKind, dst, srcSketches);
     final byte[] skBytes;
-    // need to synchronize if we have a named sketch
+    // sources are snapshots, so only the destination is locked and never more than one sketch at a time
     if (se == null) {
-      skBytes = mergeSketches(dstFamily, k, null, srcSketches);
+      skBytes = mergeSketches(dstKind, k, null, srcSketches);
     } else {
       synchronized (se.name_.intern()) {
-        skBytes = mergeSketches(dstFamily, k, se, srcSketches);
+        se.getOrCreateSketch();
+        skBytes = mergeSketches(dstKind, k, se, srcSketches);
+      }
+      for (final SketchStorage.SketchEntry rollup : sketches.getRollups(se.name_)) {
+        synchronized (rollup.name_.intern()) {
+          rollup.getOrCreateSketch();
+          mergeSketches(dstKind, rollup.configK_, rollup, srcSketches);
+        }
       }
     }
 
@@ -137,7 +198,24 @@ public class MergeHandler extends BaseSketchesQueryHandler {
     }
   }
 
-  private Family prepareSketches(final JsonArray sources, Family family, final String dst, final ArrayList<MergeEntry> sketchList) {
+  /**
+   * Creates a <tt>MergeEntry</tt> holding a snapshot of a stored sketch, taken from the entry's cached image
+   * under its lock. Theta, tuple and HLL sketches are merged from a read-only wrap of the image, which avoids
+   * compacting or copying the sketch on each request, while other families are heapified from it. Either way
+   * the snapshot is unaffected by later writes, or by the sketch being swapped out for a push.
+   * @param entry The SketchEntry to use as a merge source
+   * @return A MergeEntry for the sketch
+   */
+  static MergeEntry toMergeEntry(final SketchStorage.SketchEntry entry) {
+    final byte[] image;
+    synchronized (entry.name_.intern()) {
+      image = entry.readImage();
+    }
+    return new MergeEntry(entry.name_, wrapImage(entry.family_, entry.type_, Memory.wrap(image)));
+  }
+
+  private MergeKind prepareSketches(final JsonArray sources, MergeKind kind, final String dst,
+                                    final ArrayList<MergeEntry> sketchList) {
     final HashSet<String> namedSet = new HashSet<>();
 
     // TODO: Check for sketch value types with distinct counting?
@@ -150,26 +228,30 @@ public class MergeHandler extends BaseSketchesQueryHandler {
 
     for (final JsonElement elmt : sources) {
       if (elmt.isJsonPrimitive()) {
-        // check family
-        final String key = elmt.getAsString();
-        final SketchStorage.SketchEntry entry = sketches.getSketch(key);
-        if (entry == null || (family != null && family != entry.family_)) {
+        final SketchStorage.SketchEntry entry = sketches.getSketch(elmt.getAsString());
+        checkNotRollupOf(entry, dst);
+        kind = addNamedSource(entry, kind, namedSet, sketchList);
+      } else if (isRangeQuery(elmt.getAsJsonObject())) {
+        // archived data of a stored sketch over a time range
+        final JsonObject sourceObj = elmt.getAsJsonObject();
+        final SketchStorage.SketchEntry entry = sourceObj.has(SketchConstants.QUERY_NAME_FIELD)
+            ? sketches.getSketch(sourceObj.get(SketchConstants.QUERY_NAME_FIELD).getAsString()) : null;
+        if (entry == null || (kind != null && !kind.accepts(entry.family_, entry.type_))) {
           throw new SketchesException("Input sketches must exist and be of the same family as the target");
         }
-
-        // add to set, save family if we didn't have one yet
-        if (!namedSet.contains(key)) {
-          namedSet.add(key);
-          if (family == null) {
-            family = entry.family_;
-          }
-
-          // if we have a theta Union we need to get the result first
-          if (entry.family_ == Family.UNION) {
-            sketchList.add(new MergeEntry(key, ((Union) entry.sketch_).getResult()));
-          } else {
-            sketchList.add(new MergeEntry(key, entry.sketch_));
-          }
+        checkNotRollupOf(entry, dst);
+        if (archiver == null) {
+          throw new SketchesException("No archive is configured");
+        }
+        sketchList.addAll(archiver.readRange(entry, getRangeStart(sourceObj), getRangeEnd(sourceObj)));
+        if (kind == null) {
+          kind = new MergeKind(entry.family_, entry.type_);
+        }
+      } else if (isGroupQuery(elmt.getAsJsonObject())) {
+        // a group of stored sketches, as selected by names, prefix, or tag
+        for (final SketchStorage.SketchEntry entry : resolveSketchGroup(elmt.getAsJsonObject())) {
+          checkNotRollupOf(entry, dst);
+          kind = addNamedSource(entry, kind, namedSet, sketchList);
         }
       } else { // is JsonObject
         // need special handling for theta as we store Unions?
@@ -181,32 +263,87 @@ public class MergeHandler extends BaseSketchesQueryHandler {
         }
 
         final Family skFamily = familyFromString(sourceObj.get(SketchConstants.QUERY_FAMILY_FIELD).getAsString());
+        final ValueType skType = SketchStorage.itemType(skFamily, sourceObj.has(SketchConstants.QUERY_TYPE_FIELD)
+            ? sourceObj.get(SketchConstants.QUERY_TYPE_FIELD).getAsString() : null);
         final String skString = sourceObj.get(SketchConstants.QUERY_DATA_FIELD).getAsString();
-        if (skString == null || (family != null
-            && ((family != Family.UNION && family != skFamily) || (family == Family.UNION && skFamily != Family.QUICKSELECT)))) {
+        if (skString == null || (kind != null
+            && ((kind.family_ != Family.UNION && !kind.accepts(skFamily, skType))
+                || (kind.family_ == Family.UNION && skFamily != Family.QUICKSELECT)))) {
           throw new SketchesException("Input sketches must exist and be of the same family as the target");
         }
 
         // add to list, save family if we didn't have one yet
-        // use hashcode of sketch as name -- we'll later create a needless lock but cleaner than conditional locking
-        final Object sketch = deserializeSketch(skFamily, skString);
-        sketchList.add(new MergeEntry(Integer.toString(sketch.hashCode()), sketch));
-        if (family == null) {
-          family = skFamily;
+        sketchList.add(new MergeEntry(null, deserializeSketch(skFamily, skType, skString)));
+        if (kind == null) {
+          kind = new MergeKind(skFamily, skType);
         }
       }
     }
 
-    return family;
+    return kind;
   }
 
-  private static Object deserializeSketch(final Family family, final String b64String) {
+  // a rollup already holds everything merged into its members, so merging it into one would count it twice
+  private void checkNotRollupOf(final SketchStorage.SketchEntry entry, final String dst) {
+    if (entry == null || dst == null) {
+      return;
+    }
+    for (final SketchStorage.SketchEntry rollup : sketches.getRollups(dst)) {
+      if (rollup == entry) {
+        throw new SketchesException("Cannot merge rollup " + entry.name_ + " into its member " + dst);
+      }
+    }
+  }
+
+  // adds a stored sketch unless already present, returning the kind to use for the remaining inputs
+  private static MergeKind addNamedSource(final SketchStorage.SketchEntry entry, final MergeKind kind,
+                                          final HashSet<String> namedSet, final ArrayList<MergeEntry> sketchList) {
+    // check family
+    if (entry == null || (kind != null && !kind.accepts(entry.family_, entry.type_))) {
+      throw new SketchesException("Input sketches must exist and be of the same family as the target");
+    }
+    if (entry.isTimed()) {
+      throw new SketchesException("Decayed or windowed sketches cannot be merged: " + entry.name_);
+    }
+
+    // add to set, save family if we didn't have one yet
+    if (namedSet.add(entry.name_)) {
+      sketchList.add(toMergeEntry(entry));
+    }
+    return kind == null ? new MergeKind(entry.family_, entry.type_) : kind;
+  }
+
+  private static Object deserializeSketch(final Family family, final ValueType type, final String b64String) {
     if (family == null || b64String == null) {
       return null;
     }
 
-    final Memory skBytes = Memory.wrap(Base64.getUrlDecoder().decode(b64String));
+    return heapifySketch(family, type, Memory.wrap(Base64.getUrlDecoder().decode(b64String)));
+  }
+
+  /**
+   * Reads a serialized image as produced by a <tt>SketchEntry</tt>'s <tt>Serializer</tt>. Theta, tuple and HLL
+   * images are wrapped read-only rather than copied onto the heap, so the memory must be left unchanged while
+   * the sketch is in use. Other families are heapified.
+   * @param family The family of the <tt>SketchEntry</tt>
+   * @param type The value type of the <tt>SketchEntry</tt>, or null if not applicable
+   * @param mem The serialized image
+   * @return The sketch, suitable as a merge input
+   */
+  static Object wrapImage(final Family family, final ValueType type, final Memory mem) {
+    switch (family) {
+      case UNION:
+        return Sketch.wrap(mem);
+      case TUPLE:
+        return ArrayOfDoublesSketches.wrapSketch(mem);
+      case HLL:
+        return HllSketch.wrap(mem);
+      default:
+        return heapifySketch(family, type, mem);
+    }
+  }
 
+  private static Object heapifySketch(final Family family, final ValueType type, final Memory skBytes) {
     switch (family) {
       case QUICKSELECT:
         return CompactSketch.heapify(skBytes);
@@ -217,150 +354,221 @@ public class MergeHandler extends BaseSketchesQueryHandler {
       case CPC:
         return CpcSketch.heapify(skBytes);
 
+      case TUPLE:
+        return ArrayOfDoublesSketches.heapifySketch(skBytes);
+
       case KLL:
         return KllFloatsSketch.heapify(skBytes);
 
+      case REQ:
+        return ReqSketch.heapify(skBytes);
+
+      case QUANTILES:
+        return DoublesSketch.heapify(skBytes);
+
       case FREQUENCY:
-        return ItemsSketch.getInstance(skBytes, new ArrayOfStringsSerDe());
+        return type == ValueType.LONG ? LongsSketch.getInstance(skBytes)
+            : ItemsSketch.getInstance(skBytes, new ArrayOfStringsSerDe());
 
       case RESERVOIR:
-        return ReservoirItemsSketch.heapify(skBytes, new ArrayOfStringsSerDe());
+        return type == ValueType.LONG ? ReservoirLongsSketch.heapify(skBytes)
+            : ReservoirItemsSketch.heapify(skBytes, new ArrayOfStringsSerDe());
 
       case VAROPT:
-        return VarOptItemsSketch.heapify(skBytes, new ArrayOfStringsSerDe());
+        return type == ValueType.LONG ? VarOptItemsSketch.heapify(skBytes, new ArrayOfLongsSerDe())
+            : VarOptItemsSketch.heapify(skBytes, new ArrayOfStringsSerDe());
 
       default:
         throw new SketchesException("Unsupported sketch family: " + family);
     }
   }
 
-  @SuppressWarnings("unchecked")
-  private static byte[] mergeSketches(final Family family, final int k,
+  private static byte[] mergeSketches(final MergeKind kind, final int k,
                                       final SketchStorage.SketchEntry dstEntry, final ArrayList<MergeEntry> sketchList) {
-    if (family == null || sketchList.size() == 0) {
+    if (kind == null || sketchList.size() == 0) {
       return null;
     }
 
+    final Family family = kind.family_;
+    if (dstEntry == null) {
+      final Object result = unionSketches(family, kind.type_, k, null, sketchList);
+      return SerializationHandler.createSerializer(family == Family.QUICKSELECT ? Family.UNION : family, kind.type_)
+          .toByteArray(result);
+    } else {
+      dstEntry.sketch_ = unionSketches(family, kind.type_, k, dstEntry.sketch_, sketchList);
+      return null;
+    }
+  }
+
+  /**
+   * Unions a list of sketches, optionally into an existing destination sketch. Large lists are split into
+   * chunks which are unioned in parallel before combining the partial results.
+   * @param family The sketch family
+   * @param type The value type, which selects the implementation for items sketches, or null
+   * @param k The configured size parameter to use for a new union (log2 of nominal entries for theta and tuple)
+   * @param dst An existing sketch to merge into, in the form stored in a <tt>SketchEntry</tt>, or null
+   * @param sketchList The list of sketches to merge
+   * @return The resulting sketch in the form stored in a <tt>SketchEntry</tt>, which may be <tt>dst</tt>
+   */
+  static Object unionSketches(final Family family, final ValueType type, final int k, final Object dst,
+                              final List<MergeEntry> sketchList) {
+    if (sketchList.size() < PARALLEL_UNION_THRESHOLD) {
+      return unionSequential(family, type, k, dst, sketchList);
+    }
+
+    final int numChunks = (sketchList.size() + PARALLEL_UNION_THRESHOLD - 1) / PARALLEL_UNION_THRESHOLD;
+    final List<MergeEntry> partials = IntStream.range(0, numChunks).parallel()
+        .mapToObj(i -> {
+          final List<MergeEntry> chunk = sketchList.subList(i * PARALLEL_UNION_THRESHOLD,
+              Math.min((i + 1) * PARALLEL_UNION_THRESHOLD, sketchList.size()));
+          Object partial = unionSequential(family, type, k, null, chunk);
+          // theta and tuple partials are Unions, so take the result to use as an input
+          if (partial instanceof Union) {
+            partial = ((Union) partial).getResult();
+          } else if (partial instanceof ArrayOfDoublesUnion) {
+            partial = ((ArrayOfDoublesUnion) partial).getResult();
+          }
+          return new MergeEntry(null, partial);
+        })
+        .collect(Collectors.toList());
+
+    return unionSequential(family, type, k, dst, partials);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object unionSequential(final Family family, final ValueType type, final int k, final Object dst,
+                                        final List<MergeEntry> sketchList) {
     switch (family) {
       case UNION:
       case QUICKSELECT: {
         // for theta, the destination is already a union so no need to add explicitly
-        final Union dst = dstEntry == null ? new SetOperationBuilder().setNominalEntries(1 << k).buildUnion()
-            : (Union) dstEntry.sketch_;
+        final Union union = dst == null ? new SetOperationBuilder().setNominalEntries(1 << k).buildUnion()
+            : (Union) dst;
         for (final MergeEntry me : sketchList) {
-          synchronized (me.name_.intern()) {
-            dst.union((CompactSketch) me.sketch_);
-          }
+          union.union((Sketch) me.sketch_);
         }
+        return union;
+      }
 
-        if (dstEntry == null) {
-          return dst.getResult().toByteArray();
-        } else {
-          dstEntry.sketch_ = dst;
-          return null;
+      case TUPLE: {
+        // as with theta, the destination is already a union. Values of matching keys are summed, and a new union
+        // takes the number of values from the first input
+        ArrayOfDoublesUnion union = (ArrayOfDoublesUnion) dst;
+        for (final MergeEntry me : sketchList) {
+          final ArrayOfDoublesSketch sk = (ArrayOfDoublesSketch) me.sketch_;
+          if (union == null) {
+            union = new ArrayOfDoublesSetOperationBuilder().setNominalEntries(1 << k)
+                .setNumberOfValues(sk.getNumValues()).buildUnion();
+          }
+          union.union(sk);
         }
+        return union;
       }
 
       case HLL: {
         final org.apache.datasketches.hll.Union union = new org.apache.datasketches.hll.Union(k);
-        if (dstEntry != null) {
-          union.update((HllSketch) dstEntry.sketch_);
-        }
-        for (final Object obj : sketchList) {
-          union.update((HllSketch) obj);
+        if (dst != null) {
+          union.update((HllSketch) dst);
         }
-
-        if (dstEntry == null) {
-          return union.getResult().toCompactByteArray();
-        } else {
-          dstEntry.sketch_ = union.getResult();
-          return null;
+        for (final MergeEntry me : sketchList) {
+          union.update((HllSketch) me.sketch_);
         }
+        return union.getResult();
       }
 
       case CPC: {
         final CpcUnion union = new CpcUnion(k);
-        if (dstEntry != null) {
-          union.update((CpcSketch) dstEntry.sketch_);
-        }
-        for (final Object obj : sketchList) {
-          union.update((CpcSketch) obj);
+        if (dst != null) {
+          union.update((CpcSketch) dst);
         }
-
-        if (dstEntry == null) {
-          return union.getResult().toByteArray();
-        } else {
-          dstEntry.sketch_ = union.getResult();
-          return null;
+        for (final MergeEntry me : sketchList) {
+          union.update((CpcSketch) me.sketch_);
         }
+        return union.getResult();
       }
 
       case KLL: {
         // Only merge(), no separate union. Slightly abusing terminology to call it union
-        final KllFloatsSketch union = dstEntry == null ? new KllFloatsSketch(k) : (KllFloatsSketch) dstEntry.sketch_;
+        final KllFloatsSketch union = dst == null ? new KllFloatsSketch(k) : (KllFloatsSketch) dst;
+        for (final MergeEntry me : sketchList) {
+          union.merge((KllFloatsSketch) me.sketch_);
+        }
+        return union;
+      }
 
-        for (final Object obj : sketchList) {
-          union.merge((KllFloatsSketch) obj);
+      case REQ: {
+        // sketches with different rank accuracy settings cannot be merged, so a new union takes the first input's
+        ReqSketch union = (ReqSketch) dst;
+        for (final MergeEntry me : sketchList) {
+          final ReqSketch sk = (ReqSketch) me.sketch_;
+          if (union == null) {
+            union = ReqSketch.builder().setK(k).setHighRankAccuracy(sk.getHighRankAccuracy()).build();
+          }
+          union.merge(sk);
         }
+        return union;
+      }
 
-        if (dstEntry == null) {
-          return union.toByteArray();
-        } else {
-          dstEntry.sketch_ = union;
-          return null;
+      case QUANTILES: {
+        final DoublesUnion union = DoublesUnion.builder().setMaxK(k).build();
+        if (dst != null) {
+          union.update((DoublesSketch) dst);
+        }
+        for (final MergeEntry me : sketchList) {
+          union.update((DoublesSketch) me.sketch_);
         }
+        return union.getResult();
       }
 
       case FREQUENCY: {
-        // Only merge(), no separate union. Slightly abusing terminology to call it union
-        final ItemsSketch<String> union = dstEntry == null ? new ItemsSketch<>(k) : (ItemsSketch<String>) dstEntry.sketch_;
-
-        for (final Object obj : sketchList) {
-          union.merge((ItemsSketch<String>) obj);
+        if (type == ValueType.LONG) {
+          final LongsSketch union = dst == null ? new LongsSketch(k) : (LongsSketch) dst;
+          for (final MergeEntry me : sketchList) {
+            union.merge((LongsSketch) me.sketch_);
+          }
+          return union;
         }
 
-        if (dstEntry == null) {
-          return union.toByteArray(new ArrayOfStringsSerDe());
-        } else {
-          dstEntry.sketch_ = union;
-          return null;
+        // Only merge(), no separate union. Slightly abusing terminology to call it union
+        final ItemsSketch<String> union = dst == null ? new ItemsSketch<>(k) : (ItemsSketch<String>) dst;
+        for (final MergeEntry me : sketchList) {
+          union.merge((ItemsSketch<String>) me.sketch_);
         }
+        return union;
       }
 
       case RESERVOIR: {
-        final ReservoirItemsUnion<String> union = ReservoirItemsUnion.newInstance(k);
-        if (dstEntry != null) {
-          union.update((ReservoirItemsSketch<String>) dstEntry.sketch_);
+        if (type == ValueType.LONG) {
+          final ReservoirLongsUnion union = ReservoirLongsUnion.newInstance(k);
+          if (dst != null) {
+            union.update((ReservoirLongsSketch) dst);
+          }
+          for (final MergeEntry me : sketchList) {
+            union.update((ReservoirLongsSketch) me.sketch_);
+          }
+          return union.getResult();
         }
 
-        for (final Object obj : sketchList) {
-          union.update((ReservoirItemsSketch<String>) obj);
+        final ReservoirItemsUnion<String> union = ReservoirItemsUnion.newInstance(k);
+        if (dst != null) {
+          union.update((ReservoirItemsSketch<String>) dst);
         }
-
-        if (dstEntry == null) {
-         return union.getResult().toByteArray(new ArrayOfStringsSerDe());
-        } else {
-          dstEntry.sketch_ = union.getResult();
-          return null;
+        for (final MergeEntry me : sketchList) {
+          union.update((ReservoirItemsSketch<String>) me.sketch_);
         }
+        return union.getResult();
       }
 
       case VAROPT: {
-        final VarOptItemsUnion<String> union = VarOptItemsUnion.newInstance(k);
-        if (dstEntry != null) {
-          union.update((VarOptItemsSketch<String>) dstEntry.sketch_);
-        }
-
-        for (final Object obj : sketchList) {
-          union.update((VarOptItemsSketch<String>) obj);
+        // the union does not depend on the item type, which only matters for serialization
+        final VarOptItemsUnion<Object> union = VarOptItemsUnion.newInstance(k);
+        if (dst != null) {
+          union.update((VarOptItemsSketch<Object>) dst);
         }
-
-        if (dstEntry == null) {
-          return union.getResult().toByteArray(new ArrayOfStringsSerDe());
-        } else {
-          dstEntry.sketch_ = union.getResult();
-          return null;
+        for (final MergeEntry me : sketchList) {
+          union.update((VarOptItemsSketch<Object>) me.sketch_);
         }
+        return union.getResult();
       }
 
       default:
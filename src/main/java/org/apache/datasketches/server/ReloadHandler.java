@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Re-reads the server's configuration file and applies any changes to the set of sketches without a restart.
+ * There is no input to this query. Returns the number of sketches added, removed, changed, and retained. Only the
+ * sketch definitions are reloaded; other settings, such as the port, require a restart.
+ */
+public class ReloadHandler extends BaseSketchesQueryHandler {
+  private final String configFile;
+
+  ReloadHandler(final SketchStorage sketches, final String configFile) {
+    super(sketches, true);
+    this.configFile = configFile;
+  }
+
+  @Override
+  protected JsonObject processQuery(final JsonObject query) {
+    return reloadConfig(sketches, configFile);
+  }
+
+  static JsonObject reloadConfig(final SketchStorage sketches, final String configFile) {
+    try {
+      return sketches.reload(new SketchServerConfig(configFile).getSketchList());
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
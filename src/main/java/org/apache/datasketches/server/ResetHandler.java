@@ -21,16 +21,6 @@ package org.apache.datasketches.server;
 
 import static org.apache.datasketches.server.SketchConstants.QUERY_NAME_FIELD;
 
-
-import org.apache.datasketches.cpc.CpcSketch;
-import org.apache.datasketches.frequencies.ItemsSketch;
-import org.apache.datasketches.hll.HllSketch;
-import org.apache.datasketches.kll.KllFloatsSketch;
-import org.apache.datasketches.sampling.ReservoirItemsSketch;
-import org.apache.datasketches.sampling.VarOptItemsSketch;
-import org.apache.datasketches.theta.Union;
-
-
 import com.google.gson.JsonObject;
 
 public class ResetHandler extends BaseSketchesQueryHandler {
@@ -39,9 +29,16 @@ public class ResetHandler extends BaseSketchesQueryHandler {
   }
 
   @Override
-  @SuppressWarnings("unchecked")
   protected JsonObject processQuery(final JsonObject query) {
     if (!query.has(QUERY_NAME_FIELD)) {
+      if (isGroupQuery(query)) {
+        for (final SketchStorage.SketchEntry se : resolveSketchGroup(query)) {
+          synchronized (se.name_.intern()) {
+            se.clearSketch();
+          }
+        }
+        return null;
+      }
       throw new IllegalArgumentException("Query missing sketch name field");
     }
 
@@ -52,30 +49,8 @@ public class ResetHandler extends BaseSketchesQueryHandler {
 
     synchronized (key.intern()) {
       final SketchStorage.SketchEntry se = sketches.getSketch(key);
-
-      switch (se.family_) {
-        case UNION:
-          ((Union) se.sketch_).reset();
-          break;
-        case KLL:
-          se.sketch_ = new KllFloatsSketch(se.configK_);
-          break;
-        case FREQUENCY:
-          ((ItemsSketch<String>) se.sketch_).reset();
-          break;
-        case HLL:
-          ((HllSketch) se.sketch_).reset();
-          break;
-        case CPC:
-          ((CpcSketch) se.sketch_).reset();
-          break;
-        case RESERVOIR:
-          ((ReservoirItemsSketch<String>) se.sketch_).reset();
-          break;
-        case VAROPT:
-          ((VarOptItemsSketch<String>) se.sketch_).reset();
-          break;
-      }
+      // drop the sketch; a new one is created on the next write
+      se.clearSketch();
     }
 
     // nothing to return from reset calls
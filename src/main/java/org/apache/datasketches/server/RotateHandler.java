@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.eclipse.jetty.server.Request;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Atomically serializes and resets a group of sketches, allowing per-interval export without losing any
+ * updates between separate <tt>/serialize</tt> and <tt>/reset</tt> calls. The group is specified by a list
+ * of names, a name prefix, and/or a configured tag:
+ * <pre>
+ *   {
+ *     "names": [ "&lt;sketch_name_1&gt;", "&lt;sketch_name_2&gt;", ... ],
+ *     "prefix": "&lt;name_prefix&gt;",
+ *     "tag": "&lt;key&gt;=&lt;value&gt;"
+ *   }
+ * </pre>
+ * A JSON Array of such objects may also be used. Each sketch is swapped for an empty one in a single
+ * short critical section, after which the retired sketch is serialized outside the lock. Every sketch is
+ * serialized before the response is written, and if either step fails the retired sketches are merged back
+ * into their entries, so a failed rotation loses no data.
+ * <p>
+ * The response is streamed as <tt>application/octet-stream</tt>, with one record per sketch written as
+ * with <tt>java.io.DataOutputStream</tt>:
+ * </p>
+ * <pre>
+ *   UTF    sketch name
+ *   UTF    sketch family, using the short names from the configuration
+ *   UTF    value type, or an empty string if none
+ *   int    length of the serialized image in bytes
+ *   byte[] serialized image
+ * </pre>
+ */
+public class RotateHandler extends BaseSketchesHandler {
+  private static final String CONTENT_TYPE_BINARY = "application/octet-stream";
+
+  RotateHandler(final SketchStorage sketches) {
+    super(sketches);
+  }
+
+  @Override
+  public void handle(final String target,
+                     final Request baseRequest,
+                     final HttpServletRequest request,
+                     final HttpServletResponse response) throws IOException {
+    final JsonElement query = checkMethodAndReadJson(baseRequest, request, response);
+    if (query == null) {
+      return;
+    }
+
+    // resolve the full group, and serialize every retired sketch, before writing anything so that an error
+    // can still be reported
+    final List<SketchStorage.SketchEntry> group;
+    try {
+      group = resolveGroup(query);
+    } catch (final Exception e) {
+      sendError(response, e);
+      baseRequest.setHandled(true);
+      return;
+    }
+
+    final Object[] retired = new Object[group.size()];
+    final byte[][] images = new byte[group.size()][];
+    try {
+      for (int i = 0; i < retired.length; ++i) {
+        final SketchStorage.SketchEntry se = group.get(i);
+        retired[i] = se.swapSketch();
+        images[i] = se.serializer_.toByteArray(
+            retired[i] != null ? retired[i] : SketchStorage.emptySketch(se.family_, se.type_, se.configK_,
+                se.configHra_, se.configMetrics_, se.configHalfLife_, se.configWindow_));
+      }
+    } catch (final Exception e) {
+      restore(group, retired);
+      sendError(response, e);
+      baseRequest.setHandled(true);
+      return;
+    }
+
+    response.setContentType(CONTENT_TYPE_BINARY);
+    response.setStatus(HttpServletResponse.SC_OK);
+
+    try (final DataOutputStream out = new DataOutputStream(response.getOutputStream())) {
+      for (int i = 0; i < images.length; ++i) {
+        final SketchStorage.SketchEntry se = group.get(i);
+        out.writeUTF(se.name_);
+        out.writeUTF(BaseSketchesQueryHandler.familyToString(se.family_));
+        out.writeUTF(se.type_ != null ? se.type_.getTypeName() : "");
+        out.writeInt(images[i].length);
+        out.write(images[i]);
+      }
+    } catch (final IOException | RuntimeException e) {
+      // the client cannot be relied on to have read any of the response, so keep all of the data
+      restore(group, retired);
+      throw e;
+    }
+
+    baseRequest.setHandled(true);
+  }
+
+  // the sketches named by a query or array of queries, in order and without duplicates
+  private List<SketchStorage.SketchEntry> resolveGroup(final JsonElement query) {
+    final LinkedHashMap<String, SketchStorage.SketchEntry> entries = new LinkedHashMap<>();
+    if (query.isJsonArray()) {
+      for (final JsonElement subQuery : query.getAsJsonArray()) {
+        for (final SketchStorage.SketchEntry se : resolveSketchGroup(subQuery.getAsJsonObject())) {
+          entries.put(se.name_, se);
+        }
+      }
+    } else {
+      for (final SketchStorage.SketchEntry se : resolveSketchGroup(query.getAsJsonObject())) {
+        entries.put(se.name_, se);
+      }
+    }
+    return new ArrayList<>(entries.values());
+  }
+
+  // returns retired sketches to their entries after a failed rotation
+  private static void restore(final List<SketchStorage.SketchEntry> group, final Object[] retired) {
+    for (int i = 0; i < retired.length; ++i) {
+      group.get(i).restoreSketch(retired[i]);
+    }
+  }
+}
@@ -21,15 +21,25 @@ package org.apache.datasketches.server;
 
 import java.util.Base64;
 
+import org.apache.datasketches.ArrayOfLongsSerDe;
 import org.apache.datasketches.ArrayOfStringsSerDe;
+import org.apache.datasketches.Family;
 import org.apache.datasketches.cpc.CpcSketch;
 import org.apache.datasketches.frequencies.ItemsSketch;
+import org.apache.datasketches.frequencies.LongsSketch;
 import org.apache.datasketches.hll.HllSketch;
 import org.apache.datasketches.kll.KllFloatsSketch;
+import org.apache.datasketches.quantiles.DoublesSketch;
+import org.apache.datasketches.req.ReqSketch;
 import org.apache.datasketches.sampling.ReservoirItemsSketch;
+import org.apache.datasketches.sampling.ReservoirLongsSketch;
 import org.apache.datasketches.sampling.VarOptItemsSketch;
+import org.apache.datasketches.theta.Sketch;
 import org.apache.datasketches.theta.Union;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesSketch;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesUnion;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 import static org.apache.datasketches.server.SketchConstants.*;
@@ -42,16 +52,35 @@ import static org.apache.datasketches.server.SketchConstants.*;
  *     "name": "&lt;sketch_name&gt;"
  *   }
  * </pre>
+ * A group may be selected by <tt>names</tt>, <tt>prefix</tt> and/or <tt>tag</tt> in place of <tt>name</tt>, in
+ * which case the result holds a <tt>count</tt> and an array of <tt>sketches</tt> in the same format.
  */
 public class SerializationHandler extends BaseSketchesQueryHandler {
+  /**
+   * Produces the serialized image of a sketch. Each <tt>SketchEntry</tt> holds a <tt>Serializer</tt>
+   * specific to its family, created once with the entry. The caller is responsible for any needed locking.
+   */
+  interface Serializer {
+    byte[] toByteArray(Object sketch);
+  }
+
   public SerializationHandler(final SketchStorage sketches) {
     super(sketches, false);
   }
 
   @Override
-  @SuppressWarnings("unchecked")
   protected JsonObject processQuery(final JsonObject query) {
     if (!query.has(QUERY_NAME_FIELD)) {
+      if (isGroupQuery(query)) {
+        final JsonArray sketchList = new JsonArray();
+        for (final SketchStorage.SketchEntry se : resolveSketchGroup(query)) {
+          sketchList.add(serializeEntry(se));
+        }
+        final JsonObject result = new JsonObject();
+        result.addProperty(RESPONSE_SKETCH_COUNT_FIELD, sketchList.size());
+        result.add(CONFIG_SKETCHES_PREFIX, sketchList);
+        return result;
+      }
       throw new IllegalArgumentException("Query missing sketch name field");
     }
 
@@ -60,44 +89,21 @@ public class SerializationHandler extends BaseSketchesQueryHandler {
       throw new IllegalArgumentException("Invalid sketch name: " + name);
     }
 
+    return serializeEntry(sketches.getSketch(name));
+  }
+
+  private static JsonObject serializeEntry(final SketchStorage.SketchEntry se) {
     final byte[] bytes;
-    final SketchStorage.SketchEntry se;
 
     // need to lock the sketch even when just reading
-    synchronized (name.intern()) {
-      se = sketches.getSketch(name);
-
-      switch (se.family_) {
-        case UNION:
-          bytes = ((Union) se.sketch_).getResult().toByteArray();
-          break;
-        case KLL:
-          bytes = ((KllFloatsSketch) se.sketch_).toByteArray();
-          break;
-        case FREQUENCY:
-          bytes = ((ItemsSketch<String>) se.sketch_).toByteArray(new ArrayOfStringsSerDe());
-          break;
-        case HLL:
-          bytes = ((HllSketch) se.sketch_).toCompactByteArray();
-          break;
-        case CPC:
-          bytes = ((CpcSketch) se.sketch_).toByteArray();
-          break;
-        case RESERVOIR:
-          bytes = ((ReservoirItemsSketch<String>) se.sketch_).toByteArray(new ArrayOfStringsSerDe());
-          break;
-        case VAROPT:
-          bytes = ((VarOptItemsSketch<String>) se.sketch_).toByteArray(new ArrayOfStringsSerDe());
-          break;
-        default:
-          throw new IllegalStateException("Unexpected value: " + se.family_);
-      }
+    synchronized (se.name_.intern()) {
+      bytes = se.readImage();
     }
 
     final String b64Sketch = Base64.getUrlEncoder().encodeToString(bytes);
 
     final JsonObject result = new JsonObject();
-    result.addProperty(QUERY_NAME_FIELD, name);
+    result.addProperty(QUERY_NAME_FIELD, se.name_);
     result.addProperty(CONFIG_FAMILY_FIELD, se.family_.getFamilyName());
     if (se.type_ != null)
       result.addProperty(CONFIG_TYPE_FIELD, se.type_.getTypeName());
@@ -105,4 +111,59 @@ public class SerializationHandler extends BaseSketchesQueryHandler {
 
     return result;
   }
+
+  /**
+   * Creates the <tt>Serializer</tt> for a sketch family and, for items sketches, item type. Theta and tuple
+   * Unions are compacted prior to serialization, while compact sketches are serialized directly.
+   * @param family The family of the <tt>SketchEntry</tt>
+   * @param type The value type of the <tt>SketchEntry</tt>, or null if not applicable
+   * @return A <tt>Serializer</tt> for the given configuration
+   */
+  @SuppressWarnings("unchecked")
+  static Serializer createSerializer(final Family family, final ValueType type) {
+    final boolean longItems = type == ValueType.LONG;
+    switch (family) {
+      case UNION:
+        // a cached compact result from a SketchEntry, or a Union retired by a swap
+        return sketch -> sketch instanceof Union
+            ? ((Union) sketch).getResult().toByteArray() : ((Sketch) sketch).toByteArray();
+      case TUPLE:
+        return sketch -> sketch instanceof ArrayOfDoublesUnion
+            ? ((ArrayOfDoublesUnion) sketch).getResult().toByteArray() : ((ArrayOfDoublesSketch) sketch).toByteArray();
+      case KLL:
+        return sketch -> ((KllFloatsSketch) unwrapWindowed(sketch)).toByteArray();
+      case REQ:
+        return sketch -> ((ReqSketch) sketch).toByteArray();
+      case QUANTILES:
+        return sketch -> ((DoublesSketch) sketch).toByteArray(true);
+      case FREQUENCY:
+        if (longItems)
+          return sketch -> ((LongsSketch) unwrapDecayed(sketch)).toByteArray();
+        return sketch -> ((ItemsSketch<String>) unwrapDecayed(sketch)).toByteArray(new ArrayOfStringsSerDe());
+      case HLL:
+        return sketch -> ((HllSketch) sketch).toCompactByteArray();
+      case CPC:
+        return sketch -> ((CpcSketch) sketch).toByteArray();
+      case RESERVOIR:
+        if (longItems)
+          return sketch -> ((ReservoirLongsSketch) sketch).toByteArray();
+        return sketch -> ((ReservoirItemsSketch<String>) sketch).toByteArray(new ArrayOfStringsSerDe());
+      case VAROPT:
+        if (longItems)
+          return sketch -> ((VarOptItemsSketch<Long>) sketch).toByteArray(new ArrayOfLongsSerDe());
+        return sketch -> ((VarOptItemsSketch<String>) sketch).toByteArray(new ArrayOfStringsSerDe());
+      default:
+        throw new IllegalArgumentException("Unsupported sketch family: " + family);
+    }
+  }
+
+  // decayed frequent items are serialized as the underlying sketch, with counts relative to its landmark
+  private static Object unwrapDecayed(final Object sketch) {
+    return sketch instanceof DecayedFrequencySketch ? ((DecayedFrequencySketch) sketch).getSketch() : sketch;
+  }
+
+  // a windowed kll sketch retired by a rotation is serialized as the merge of everything it still holds
+  private static Object unwrapWindowed(final Object sketch) {
+    return sketch instanceof WindowedKllSketch ? ((WindowedKllSketch) sketch).getWindow(Long.MAX_VALUE) : sketch;
+  }
 }
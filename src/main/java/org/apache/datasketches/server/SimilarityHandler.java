@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.SketchConstants.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.apache.datasketches.Family;
+import org.apache.datasketches.theta.JaccardSimilarity;
+import org.apache.datasketches.theta.SetOperationBuilder;
+import org.apache.datasketches.theta.Sketch;
+import org.eclipse.jetty.server.Request;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Computes pairwise similarity between the members of a group of theta sketches. The group is specified as
+ * for other group operations, along with an optional metric:
+ * <pre>
+ *   {
+ *     "names": [ "&lt;sketch_name_1&gt;", "&lt;sketch_name_2&gt;", ... ],
+ *     "prefix": "&lt;name_prefix&gt;",
+ *     "metric": "jaccard" | "overlap"
+ *   }
+ * </pre>
+ * <tt>jaccard</tt>, the default, estimates the Jaccard similarity of each pair, while <tt>overlap</tt> estimates
+ * the number of distinct items in their intersection.
+ * <p>
+ * Each sketch's compact result is read once, after which rows are computed in parallel. The matrix is symmetric,
+ * so only the upper triangle is returned: the row for each member holds the values for the members after it in
+ * the group. Rows are streamed as <tt>application/x-ndjson</tt>, one JSON Object per line, in the order they
+ * complete:
+ * </p>
+ * <pre>
+ *   { "name": "&lt;sketch_name_1&gt;", "values": { "&lt;sketch_name_2&gt;": &lt;value&gt;, ... } }
+ * </pre>
+ * An error after rows have started streaming is reported on a final line holding only an <tt>error</tt>
+ * message, so a response is complete only if every line is a row.
+ */
+public class SimilarityHandler extends BaseSketchesHandler {
+  private static final String CONTENT_TYPE_NDJSON = "application/x-ndjson";
+
+  SimilarityHandler(final SketchStorage sketches) {
+    super(sketches);
+  }
+
+  @Override
+  public void handle(final String target,
+                     final Request baseRequest,
+                     final HttpServletRequest request,
+                     final HttpServletResponse response) throws IOException {
+    final JsonElement query = checkMethodAndReadJson(baseRequest, request, response);
+    if (query == null) {
+      return;
+    }
+
+    // everything is validated before the response starts
+    final List<SketchStorage.SketchEntry> group;
+    final boolean overlap;
+    final Sketch[] inputs;
+    try {
+      if (!query.isJsonObject()) {
+        throw new IllegalArgumentException("Query must be a JSON Object");
+      }
+      final JsonObject queryObj = query.getAsJsonObject();
+      final String metric = queryObj.has(QUERY_METRIC_FIELD)
+          ? queryObj.get(QUERY_METRIC_FIELD).getAsString() : QUERY_METRIC_JACCARD;
+      if (!metric.equals(QUERY_METRIC_JACCARD) && !metric.equals(QUERY_METRIC_OVERLAP)) {
+        throw new IllegalArgumentException("Unknown similarity metric: " + metric);
+      }
+      overlap = metric.equals(QUERY_METRIC_OVERLAP);
+
+      group = resolveSketchGroup(queryObj);
+      inputs = new Sketch[group.size()];
+      for (int i = 0; i < inputs.length; ++i) {
+        final SketchStorage.SketchEntry se = group.get(i);
+        if (se.family_ != Family.UNION) {
+          throw new IllegalArgumentException("Similarity requires theta sketches: " + se.name_);
+        }
+        // the cached compact result is immutable, so it can be used outside the lock
+        synchronized (se.name_.intern()) {
+          inputs[i] = (Sketch) se.readResult();
+        }
+      }
+    } catch (final Exception e) {
+      sendError(response, e);
+      baseRequest.setHandled(true);
+      return;
+    }
+
+    response.setContentType(CONTENT_TYPE_NDJSON);
+    response.setCharacterEncoding("utf-8");
+    response.setStatus(HttpServletResponse.SC_OK);
+
+    final PrintWriter writer = response.getWriter();
+    try {
+      IntStream.range(0, inputs.length).parallel().forEach(i -> {
+        final JsonObject values = new JsonObject();
+        for (int j = i + 1; j < inputs.length; ++j) {
+          values.addProperty(group.get(j).name_, overlap
+              ? new SetOperationBuilder().buildIntersection().intersect(inputs[i], inputs[j]).getEstimate()
+              : JaccardSimilarity.jaccard(inputs[i], inputs[j])[1]);
+        }
+
+        final JsonObject row = new JsonObject();
+        row.addProperty(RESPONSE_NAME_FIELD, group.get(i).name_);
+        row.add(RESPONSE_VALUES_FIELD, values);
+        synchronized (writer) {
+          writer.println(row.toString());
+          writer.flush();
+        }
+      });
+    } catch (final RuntimeException e) {
+      // the status has already been sent, so mark the response as incomplete with a final error line
+      final JsonObject error = new JsonObject();
+      error.addProperty(ERROR_KEY, e.getMessage());
+      synchronized (writer) {
+        writer.println(error.toString());
+        writer.flush();
+      }
+    }
+    // PrintWriter hides write errors, so abort the connection rather than end a response the client did not
+    // fully receive
+    if (writer.checkError()) {
+      baseRequest.getHttpChannel().abort(new IOException("Unable to write similarity response"));
+    }
+
+    baseRequest.setHandled(true);
+  }
+}
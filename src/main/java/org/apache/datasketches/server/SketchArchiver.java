@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.ArchiveStore.DAY;
+import static org.apache.datasketches.server.ArchiveStore.HOUR;
+import static org.apache.datasketches.server.ArchiveStore.LEVEL_MS;
+import static org.apache.datasketches.server.ArchiveStore.MINUTE;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.datasketches.memory.Memory;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Keeps a history of archived sketches in an <tt>ArchiveStore</tt>. At the end of every minute, each non-empty
+ * archived sketch is swapped for a new, empty one under the sketch lock, as with a push upstream, and the
+ * retired sketch is appended to the store labeled with that minute. As each hour and then day ends, its
+ * records are unioned into a single record at the coarser level, so a query over any range needs at most a
+ * few records per level.
+ * <p>
+ * Queries over a time range union the covering records, read from the store without deserializing into heap
+ * sketches where the family allows. Only archived data is included, so values received during the current
+ * minute appear once it has been archived. To keep a live total as well, make the archived sketch a member of
+ * a rollup.
+ * </p>
+ * <p>
+ * Stopping archives the current, partial minute, so a server restarted within the same minute archives it a
+ * second time at its end. Both records are kept and unioned by queries and compaction, so the minute is still
+ * counted once.
+ * </p>
+ */
+class SketchArchiver {
+  private static final Logger LOG = Log.getLogger(SketchArchiver.class);
+  // delay past the end of a minute before archiving it, so the scheduled run never fires early
+  private static final long ARCHIVE_DELAY_MS = 100;
+  private static final long STOP_TIMEOUT_MS = 30000;
+
+  private final SketchStorage sketches;
+  private final ArchiveStore store;
+  private final Object archiveLock; // serializes archive runs, separate from start/stop
+  private ScheduledExecutorService executor;
+
+  SketchArchiver(@NonNull final SketchStorage sketches, @NonNull final Path dir) throws IOException {
+    this.sketches = sketches;
+    store = new ArchiveStore(dir);
+    archiveLock = new Object();
+  }
+
+  /**
+   * Starts archiving sketches at the end of every minute.
+   */
+  synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r, "sketch-archiver");
+      t.setDaemon(true);
+      return t;
+    });
+    final long now = System.currentTimeMillis();
+    final long untilNextMinute = LEVEL_MS[MINUTE] - Math.floorMod(now, LEVEL_MS[MINUTE]);
+    executor.scheduleAtFixedRate(
+        () -> archiveInterval(minuteOf(System.currentTimeMillis() - ARCHIVE_DELAY_MS) - LEVEL_MS[MINUTE]),
+        untilNextMinute + ARCHIVE_DELAY_MS, LEVEL_MS[MINUTE], TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the scheduled runs and archives the current, partial minute so that no data is left behind. The
+   * hour and day are not compacted, since a restarted server may still archive the rest of the minute.
+   * @throws InterruptedException if interrupted while waiting for an in-progress run
+   * @throws IOException if the store could not be closed
+   */
+  synchronized void stop() throws InterruptedException, IOException {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    executor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    executor = null;
+    archiveMinute(minuteOf(System.currentTimeMillis()));
+    store.close();
+  }
+
+  /**
+   * Drains every archived sketch into the store as the minute starting at the given time, then compacts the
+   * hour and day ending with that minute, if any.
+   * @param startMs The start of the minute being archived
+   */
+  void archiveInterval(final long startMs) {
+    synchronized (archiveLock) {
+      archiveMinute(startMs);
+
+      final long endMs = startMs + LEVEL_MS[MINUTE];
+      for (final int level : new int[] {HOUR, DAY}) {
+        if (Math.floorMod(endMs, LEVEL_MS[level]) != 0) {
+          break;
+        }
+        for (final SketchStorage.SketchEntry se : sketches.getArchivedSketches()) {
+          compact(se, level, endMs - LEVEL_MS[level]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drains every archived sketch into the store as the minute starting at the given time, without compacting.
+   * @param startMs The start of the minute being archived
+   */
+  void archiveMinute(final long startMs) {
+    synchronized (archiveLock) {
+      for (final SketchStorage.SketchEntry se : sketches.getArchivedSketches()) {
+        final Object retired;
+        synchronized (se.name_.intern()) {
+          if (SketchStorage.isEmpty(se.family_, se.type_, se.sketch_)) {
+            continue;
+          }
+          retired = se.swapSketch();
+        }
+        append(se, MINUTE, startMs, se.serializer_.toByteArray(retired));
+      }
+    }
+  }
+
+  /**
+   * Returns the archived sketches covering a time range, ready to be unioned. The range is extended to whole
+   * minutes.
+   * @param se The SketchEntry whose history to read
+   * @param fromMs The start of the range, inclusive
+   * @param toMs The end of the range, exclusive
+   * @return A merge input for each covering record, possibly empty
+   */
+  List<MergeHandler.MergeEntry> readRange(final SketchStorage.SketchEntry se, final long fromMs,
+                                          final long toMs) {
+    if (se.isTimed()) {
+      throw new IllegalArgumentException("Decayed or windowed sketches are not archived: " + se.name_);
+    }
+    return read(se, store.cover(se.name_, DAY, fromMs, toMs));
+  }
+
+  // unions the records of the finer levels within the unit into one record, unless already done
+  private void compact(final SketchStorage.SketchEntry se, final int level, final long startMs) {
+    if (store.contains(se.name_, level, startMs)) {
+      return;
+    }
+    final List<MergeHandler.MergeEntry> inputs =
+        read(se, store.cover(se.name_, level - 1, startMs, startMs + LEVEL_MS[level]));
+    if (inputs.isEmpty()) {
+      return;
+    }
+    final Object union = MergeHandler.unionSketches(se.family_, se.type_, se.configK_, null, inputs);
+    append(se, level, startMs, se.serializer_.toByteArray(union));
+  }
+
+  private static List<MergeHandler.MergeEntry> read(final SketchStorage.SketchEntry se,
+                                                    final List<ArchiveStore.Record> records) {
+    final List<MergeHandler.MergeEntry> result = new ArrayList<>(records.size());
+    for (final Memory image : ArchiveStore.read(records)) {
+      // records are never written once appended, so they are detached inputs
+      result.add(new MergeHandler.MergeEntry(null, MergeHandler.wrapImage(se.family_, se.type_, image)));
+    }
+    return result;
+  }
+
+  private void append(final SketchStorage.SketchEntry se, final int level, final long startMs,
+                      final byte[] image) {
+    try {
+      store.append(se.name_, level, startMs, image);
+    } catch (final IOException | IllegalArgumentException e) {
+      // an exception would cancel all future runs, so report the loss and continue
+      LOG.warn("Unable to archive " + se.name_ + " at " + startMs + ", data is lost", e);
+    }
+  }
+
+  private static long minuteOf(final long timeMs) {
+    return Math.floorDiv(timeMs, LEVEL_MS[MINUTE]) * LEVEL_MS[MINUTE];
+  }
+}
@@ -27,14 +27,23 @@ public final class SketchConstants {
   public static final String QUERY_PATH = "query";
   public static final String MERGE_PATH = "merge";
   public static final String RESET_PATH = "reset";
+  public static final String ROTATE_PATH = "rotate";
+  public static final String RELOAD_PATH = "reload";
+  public static final String SIMILARITY_PATH = "similarity";
+  public static final String INGEST_PATH = "ingest";
 
   // JSON Query/Update/Merge Field Names
   public static final String QUERY_NAME_FIELD = "name";
+  public static final String QUERY_NAMES_FIELD = "names";
+  public static final String QUERY_PREFIX_FIELD = "prefix";
+  public static final String QUERY_TAG_FIELD = "tag";
   public static final String QUERY_FAMILY_FIELD = "family";
+  public static final String QUERY_TYPE_FIELD = "type"; // item type of a serialized items sketch
   public static final String QUERY_SKETCH_FIELD = "sketch";
   public static final String QUERY_DATA_FIELD = "data";
   public static final String QUERY_PAIR_ITEM_FIELD = "item";
   public static final String QUERY_PAIR_WEIGHT_FIELD = "weight";
+  public static final String QUERY_PAIR_VALUES_FIELD = "values"; // per-key values of a tuple sketch update
   public static final String QUERY_MERGE_TGT_FIELD = "target";
   public static final String QUERY_MERGE_SRC_FIELD = "source";
   public static final String QUERY_MERGE_K_FIELD = "k";
@@ -42,11 +51,26 @@ public final class SketchConstants {
   public static final String QUERY_ERRORTYPE_FIELD = "errorType";
   public static final String QUERY_ERRORTYPE_NO_FP = "noFalsePositives";
   public static final String QUERY_ERRORTYPE_NO_FN = "noFalseNegatives";
+  public static final String QUERY_THRESHOLD_FIELD = "threshold";
+  public static final String QUERY_TOPN_FIELD = "topN";
+  public static final String QUERY_EXPRESSION_FIELD = "expression";
+  public static final String QUERY_OP_FIELD = "op";
+  public static final String QUERY_ARGS_FIELD = "args";
+  public static final String QUERY_OP_UNION = "union";
+  public static final String QUERY_OP_INTERSECTION = "intersection";
+  public static final String QUERY_OP_ANOTB = "anotb";
+  public static final String QUERY_OP_JACCARD = "jaccard";
+  public static final String QUERY_METRIC_FIELD = "metric";
+  public static final String QUERY_METRIC_JACCARD = "jaccard";
+  public static final String QUERY_METRIC_OVERLAP = "overlap";
   public static final String QUERY_VALUES_FIELD_NAME = "values";
   public static final String QUERY_FRACTIONS_NAME_FIELD = "fractions";
   public static final String QUERY_RESULT_TYPE_NAME_FIELD = "resultType";
   public static final String QUERY_RESULT_TYPE_PMF = "pmf";
   public static final String QUERY_RESULT_TYPE_CDF = "cdf";
+  public static final String QUERY_WINDOW_FIELD = "window"; // seconds before now, for windowed kll sketches
+  public static final String QUERY_FROM_FIELD = "from"; // start of an archived time range, ms since the epoch
+  public static final String QUERY_TO_FIELD = "to"; // end of an archived time range, exclusive
 
   // JSON Query Response Field Names
   public static final String RESPONSE_SUMMARY_FIELD = QUERY_SUMMARY_FIELD;
@@ -75,8 +99,29 @@ public final class SketchConstants {
   public static final String RESPONSE_RESULT_RANK = "rank";
   public static final String RESPONSE_RESULT_MASS = "mass";
   public static final String RESPONSE_QUANTILE_LIST = "estimatedQuantiles";
+  public static final String RESPONSE_HRA_FIELD = "highRankAccuracy";
+  public static final String RESPONSE_WINDOW_START_FIELD = "windowStart"; // milliseconds since the epoch
+  public static final String RESPONSE_METRICS_LIST = "metrics";
+  public static final String RESPONSE_METRIC_SUM = "sum";
+  public static final String RESPONSE_METRIC_MEAN = "mean";
   public static final String RESPONSE_RESULT_QUANTILE = "quantile";
   public static final String RESPONSE_SKETCH_COUNT_FIELD = "count";
+  public static final String RESPONSE_JACCARD_FIELD = "jaccard";
+  public static final String RESPONSE_LOWER_BOUND_FIELD = "lowerBound";
+  public static final String RESPONSE_UPPER_BOUND_FIELD = "upperBound";
+  public static final String RESPONSE_NAME_FIELD = "name";
+  public static final String RESPONSE_VALUES_FIELD = "values";
+  public static final String RESPONSE_INGEST_QUEUE_FIELD = "ingestQueue";
+  public static final String RESPONSE_QUEUE_PARTITIONS_FIELD = "partitions";
+  public static final String RESPONSE_QUEUE_DEPTH_FIELD = "depth";
+  public static final String RESPONSE_QUEUE_LAG_FIELD = "lagMs";
+  public static final String RESPONSE_QUEUE_APPLIED_FIELD = "applied";
+  public static final String RESPONSE_QUEUE_FAILED_FIELD = "failed";
+  public static final String RESPONSE_QUEUE_REJECTED_FIELD = "rejected";
+  public static final String RESPONSE_ADDED_COUNT_FIELD = "added";
+  public static final String RESPONSE_REMOVED_COUNT_FIELD = "removed";
+  public static final String RESPONSE_CHANGED_COUNT_FIELD = "changed";
+  public static final String RESPONSE_RETAINED_COUNT_FIELD = "retained";
 
   // JSON Config Field Names
   public static final String CONFIG_PORT_FIELD = "port";
@@ -84,9 +129,29 @@ public final class SketchConstants {
   public static final String CONFIG_SET_PREFIX = "set";
   public static final String CONFIG_K_FIELD = "k";
   public static final String CONFIG_FAMILY_FIELD = "family";
-  public static final String CONFIG_TYPE_FIELD = "type"; // value type, only for distinct counting
+  public static final String CONFIG_TYPE_FIELD = "type"; // value type for distinct counting, item type otherwise
   public static final String CONFIG_SKETCH_NAME_FIELD = "name";
   public static final String CONFIG_SET_NAMES_FIELD = "names";
+  public static final String CONFIG_MEMBERS_FIELD = "members"; // sketches feeding a rollup
+  public static final String CONFIG_HRA_FIELD = "hra"; // req sketches: favor accuracy at high ranks
+  public static final String CONFIG_METRICS_FIELD = "metrics"; // tuple sketches: number of values per key
+  public static final String CONFIG_HALF_LIFE_FIELD = "halfLife"; // frequency sketches: decay half-life, seconds
+  public static final String CONFIG_WINDOW_FIELD = "window"; // kll sketches: sliding window length, seconds
+  public static final String CONFIG_TAGS_FIELD = "tags"; // key=value labels, usable to select groups
+  public static final String CONFIG_WATCH_FIELD = "watchConfig"; // reload config file on changes
+  public static final String CONFIG_ROUTES_FIELD = "routes"; // event fields routed to sketches by /ingest
+  public static final String CONFIG_ROUTE_FIELD_FIELD = "field";
+  public static final String CONFIG_ROUTE_SKETCHES_FIELD = "sketches";
+  public static final String CONFIG_ASYNC_FIELD = "asyncIngest"; // apply updates on background threads
+  public static final String CONFIG_ASYNC_PARTITIONS_FIELD = "partitions";
+  public static final String CONFIG_ASYNC_CAPACITY_FIELD = "capacity"; // per partition
+  public static final String CONFIG_PUSH_FIELD = "push"; // periodic push to an upstream server
+  public static final String CONFIG_PUSH_TARGET_FIELD = "target";
+  public static final String CONFIG_PUSH_INTERVAL_FIELD = "interval"; // seconds
+  public static final String CONFIG_PUSH_RETRIES_FIELD = "retries";
+  public static final String CONFIG_PUSH_SPOOL_DIR_FIELD = "spoolDir";
+  public static final String CONFIG_ARCHIVE_FIELD = "archive"; // on-disk history, or whether a sketch is archived
+  public static final String CONFIG_ARCHIVE_DIR_FIELD = "dir";
 
   // JSON Sketch Types
   public static final String SKETCH_FAMILY_THETA = "theta";
@@ -96,6 +161,9 @@ public final class SketchConstants {
   public static final String SKETCH_FAMILY_KLL = "kll";
   public static final String SKETCH_FAMILY_RESERVOIR = "reservoir";
   public static final String SKETCH_FAMILY_VAROPT = "varopt";
+  public static final String SKETCH_FAMILY_REQ = "req";
+  public static final String SKETCH_FAMILY_QUANTILES = "quantiles";
+  public static final String SKETCH_FAMILY_TUPLE = "tuple";
 
   // JSON Value Types (applicable only for distinct counting)
   public static final String VALUE_TYPE_INT = "int";
@@ -106,6 +174,12 @@ public final class SketchConstants {
 
   // server configuration
   public static final int DEFAULT_PORT = 8080;
+  public static final int DEFAULT_PUSH_INTERVAL_SEC = 60;
+  public static final int DEFAULT_PUSH_RETRIES = 3;
+  public static final int DEFAULT_ASYNC_CAPACITY = 16384;
+  public static final int CLOCK_INTERVAL_MS = 1000; // how often decayed and windowed sketches move forward in time
+  public static final long SERVER_STOP_TIMEOUT_MS = 30000; // how long in-flight requests may take on stopping
+  public static final int QUERY_RESULT_CACHE_SIZE = 1024; // rendered query results
 
   // response codes
   public static final int UNPROCESSABLE_ENTITY = 422; // defined, but not in HttpServletResponse.SC_* codes
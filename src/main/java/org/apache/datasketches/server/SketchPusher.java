@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.SketchConstants.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Periodically pushes the contents of every sketch to the <tt>/merge</tt> endpoint of an upstream server,
+ * allowing edge servers to aggregate locally before forwarding data to a central aggregator.
+ * <p>
+ * On each cycle, every non-empty sketch is swapped for a new, empty sketch while holding the sketch lock, so
+ * each update is applied to exactly one of the pushed or retained sketches. The retired sketch is then
+ * serialized outside the lock and sent to the upstream server as a merge into the sketch of the same name.
+ * </p>
+ * <p>
+ * Failed pushes are retried with a short backoff and, if still unsuccessful, written to a local spool
+ * directory. Spooled requests are sent, oldest first, at the start of the next cycle. A request whose
+ * response is lost after the upstream server applied it will be retried, so delivery is at-least-once
+ * with respect to network failures.
+ * </p>
+ * <p>
+ * Only connection failures and <tt>5xx</tt> responses are retried. A <tt>4xx</tt> response, for instance
+ * when the upstream server has no sketch of that name, would fail the same way every time, so the request
+ * is moved to the <tt>rejected</tt> subdirectory of the spool with a warning rather than blocking the requests
+ * behind it.
+ * </p>
+ */
+class SketchPusher {
+  private static final Logger LOG = Log.getLogger(SketchPusher.class);
+  private static final String SPOOL_FILE_PREFIX = "push-";
+  private static final String SPOOL_FILE_SUFFIX = ".json";
+  private static final String REJECTED_DIR = "rejected";
+  private static final int CONNECT_TIMEOUT_MS = 5000;
+  private static final int READ_TIMEOUT_MS = 30000;
+  private static final long INITIAL_BACKOFF_MS = 500;
+
+  // outcome of sending a request upstream
+  private enum SendResult {
+    ACCEPTED,
+    FAILED,  // connection failure or server error, so worth retrying
+    REJECTED // the request itself was refused, so retrying cannot help
+  }
+
+  private final SketchStorage sketches;
+  private final URL mergeUrl;
+  private final int intervalSec;
+  private final int retries;
+  private final Path spoolDir;
+  private final Path rejectedDir;
+  private final AtomicLong spoolSequence;
+  private final Object pushLock; // serializes push cycles, separate from start/stop
+  private ScheduledExecutorService executor;
+
+  SketchPusher(@NonNull final SketchStorage sketches, final SketchServerConfig.PushInfo info)
+      throws IOException {
+    this.sketches = sketches;
+    final String target = info.target.endsWith("/") ? info.target : info.target + "/";
+    mergeUrl = new URL(target + MERGE_PATH);
+    intervalSec = info.interval;
+    retries = info.retries;
+    spoolDir = info.spoolDir != null ? Paths.get(info.spoolDir)
+        : Paths.get(System.getProperty("java.io.tmpdir"), "datasketches-spool");
+    Files.createDirectories(spoolDir);
+    rejectedDir = spoolDir.resolve(REJECTED_DIR); // created on the first rejection
+    spoolSequence = new AtomicLong();
+    pushLock = new Object();
+  }
+
+  /**
+   * Starts pushing sketches on the configured schedule.
+   */
+  synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r, "sketch-pusher");
+      t.setDaemon(true);
+      return t;
+    });
+    executor.scheduleWithFixedDelay(this::pushAll, intervalSec, intervalSec, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stops the scheduled pushes and performs one final push so that no data is left behind.
+   * @throws InterruptedException if interrupted while waiting for an in-progress push
+   */
+  synchronized void stop() throws InterruptedException {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    executor.awaitTermination(READ_TIMEOUT_MS * (retries + 1L), TimeUnit.MILLISECONDS);
+    executor = null;
+    pushAll();
+  }
+
+  /**
+   * Runs a single push cycle: flushes any spooled requests, then swaps out and pushes each non-empty sketch.
+   */
+  void pushAll() {
+    synchronized (pushLock) {
+      // if the spool cannot be flushed, the upstream server is likely down so we spool new data directly
+      final boolean upstreamAvailable = flushSpool();
+
+      for (final SketchStorage.SketchEntry se : sketches.getSketches()) {
+        // decayed counts and windows only have meaning relative to the local clock, so they stay here, and
+        // archived sketches are drained into the archive instead. Rollups are neither pushed nor reset, since
+        // the upstream server rebuilds its own from the pushed members while the local ones keep their totals.
+        if (se.isTimed() || sketches.isArchived(se.name_) || sketches.isRollup(se.name_)) {
+          continue;
+        }
+
+        final Object retired;
+        synchronized (se.name_.intern()) {
+          if (SketchStorage.isEmpty(se.family_, se.type_, se.sketch_)) {
+            continue;
+          }
+          retired = se.swapSketch();
+        }
+
+        final String request = buildMergeRequest(se, retired);
+        final SendResult result = upstreamAvailable ? sendWithRetry(request) : SendResult.FAILED;
+        if (result == SendResult.FAILED) {
+          spool(se.name_, request, spoolDir);
+        } else if (result == SendResult.REJECTED) {
+          LOG.warn("Upstream server rejected push of " + se.name_ + ", keeping request in " + rejectedDir);
+          spool(se.name_, request, rejectedDir);
+        }
+      }
+    }
+  }
+
+  private static String buildMergeRequest(final SketchStorage.SketchEntry se, final Object sketch) {
+    final byte[] bytes = se.serializer_.toByteArray(sketch);
+
+    final JsonObject source = new JsonObject();
+    source.addProperty(QUERY_FAMILY_FIELD, BaseSketchesQueryHandler.familyToString(se.family_));
+    if (SketchStorage.hasItemType(se.family_) && se.type_ != null) {
+      source.addProperty(QUERY_TYPE_FIELD, se.type_.getTypeName());
+    }
+    source.addProperty(QUERY_DATA_FIELD, Base64.getUrlEncoder().encodeToString(bytes));
+    final JsonArray sourceList = new JsonArray(1);
+    sourceList.add(source);
+
+    final JsonObject request = new JsonObject();
+    request.addProperty(QUERY_MERGE_TGT_FIELD, se.name_);
+    request.add(QUERY_MERGE_SRC_FIELD, sourceList);
+    return request.toString();
+  }
+
+  // returns true if the spool is empty once done
+  private boolean flushSpool() {
+    final List<Path> spooled = new ArrayList<>();
+    try (final DirectoryStream<Path> files = Files.newDirectoryStream(spoolDir,
+        SPOOL_FILE_PREFIX + "*" + SPOOL_FILE_SUFFIX)) {
+      files.forEach(spooled::add);
+    } catch (final IOException e) {
+      return false;
+    }
+    // file names sort by creation time
+    Collections.sort(spooled);
+
+    for (final Path p : spooled) {
+      try {
+        final String request = new String(Files.readAllBytes(p), StandardCharsets.UTF_8);
+        final SendResult result = send(request);
+        if (result == SendResult.FAILED) {
+          return false;
+        } else if (result == SendResult.REJECTED) {
+          LOG.warn("Upstream server rejected spooled push " + p.getFileName() + ", moving it to " + rejectedDir);
+          Files.createDirectories(rejectedDir);
+          Files.move(p, rejectedDir.resolve(p.getFileName()));
+        } else {
+          Files.delete(p);
+        }
+      } catch (final IOException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void spool(final String name, final String request, final Path dir) {
+    final String fileName = String.format("%s%020d-%010d%s", SPOOL_FILE_PREFIX, System.currentTimeMillis(),
+        spoolSequence.getAndIncrement(), SPOOL_FILE_SUFFIX);
+    final Path tmp = dir.resolve(fileName + ".tmp");
+    try {
+      // write and rename so a partial file is never sent upstream
+      Files.createDirectories(dir);
+      Files.write(tmp, request.getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp, dir.resolve(fileName));
+    } catch (final IOException e) {
+      // an exception would cancel all future pushes, so report the loss and continue
+      LOG.warn("Unable to spool push request to " + dir + ", data for " + name + " is lost", e);
+    }
+  }
+
+  private SendResult sendWithRetry(final String request) {
+    long backoffMs = INITIAL_BACKOFF_MS;
+    for (int attempt = 0; attempt <= retries; ++attempt) {
+      final SendResult result = send(request);
+      if (result != SendResult.FAILED) {
+        return result;
+      }
+      if (attempt < retries) {
+        try {
+          Thread.sleep(backoffMs);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return SendResult.FAILED;
+        }
+        backoffMs *= 2;
+      }
+    }
+    return SendResult.FAILED;
+  }
+
+  private SendResult send(final String request) {
+    HttpURLConnection http = null;
+    try {
+      http = (HttpURLConnection) mergeUrl.openConnection();
+      http.setConnectTimeout(CONNECT_TIMEOUT_MS);
+      http.setReadTimeout(READ_TIMEOUT_MS);
+      http.setDoOutput(true);
+      http.setRequestMethod("POST");
+      http.setRequestProperty("Content-Type", "application/json");
+
+      final byte[] jsonBytes = request.getBytes(StandardCharsets.UTF_8);
+      http.setFixedLengthStreamingMode(jsonBytes.length);
+      try (final OutputStream os = http.getOutputStream()) {
+        os.write(jsonBytes);
+      }
+
+      final int status = http.getResponseCode();
+      if (status == HttpURLConnection.HTTP_OK) {
+        return SendResult.ACCEPTED;
+      }
+      return status >= 400 && status < 500 ? SendResult.REJECTED : SendResult.FAILED;
+    } catch (final IOException e) {
+      return SendResult.FAILED;
+    } finally {
+      if (http != null) {
+        http.disconnect();
+      }
+    }
+  }
+}
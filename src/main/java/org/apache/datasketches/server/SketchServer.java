@@ -20,6 +20,10 @@
 package org.apache.datasketches.server;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.eclipse.jetty.server.Server;
@@ -27,6 +31,7 @@ import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.server.handler.ErrorHandler;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
 
 import static org.apache.datasketches.server.SketchConstants.*;
 
@@ -35,9 +40,15 @@ import static org.apache.datasketches.server.SketchConstants.*;
  * file; for details @see SketchServerConfig.
  */
 public class SketchServer {
+  private final String configFile;
   private final SketchServerConfig config;
   private SketchStorage sketches;
   private Server server;
+  private SketchPusher pusher;
+  private SketchArchiver archiver;
+  private IngestQueue ingestQueue;
+  private ConfigWatcher configWatcher;
+  private ScheduledExecutorService clockExecutor;
 
   /**
    * Creates a server with the provided configuration
@@ -45,6 +56,7 @@ public class SketchServer {
    * @throws IOException on parse errors
    */
   public SketchServer(@NonNull final String configFile) throws IOException {
+    this.configFile = configFile;
     config = new SketchServerConfig(configFile);
   }
 
@@ -64,7 +76,7 @@ public class SketchServer {
 
     // Add specific handlers
     final ContextHandler contextStatus = new ContextHandler("/" + STATUS_PATH);
-    contextStatus.setHandler(new StatusHandler(sketches));
+    contextStatus.setHandler(new StatusHandler(sketches, ingestQueue));
     contextStatus.setAllowNullPathInfo(true);
 
     final ContextHandler contextSerialize = new ContextHandler("/" + SERIALIZE_PATH);
@@ -72,21 +84,37 @@ public class SketchServer {
     contextSerialize.setAllowNullPathInfo(true);
 
     final ContextHandler contextUpdate = new ContextHandler("/" + UPDATE_PATH);
-    contextUpdate.setHandler(new UpdateHandler(sketches));
+    contextUpdate.setHandler(new UpdateHandler(sketches, ingestQueue));
     contextUpdate.setAllowNullPathInfo(true);
 
     final ContextHandler contextMerge = new ContextHandler("/" + MERGE_PATH);
-    contextMerge.setHandler(new MergeHandler(sketches));
+    contextMerge.setHandler(new MergeHandler(sketches, archiver));
     contextMerge.setAllowNullPathInfo(true);
 
     final ContextHandler contextQuery = new ContextHandler("/" + QUERY_PATH);
-    contextQuery.setHandler(new DataQueryHandler(sketches));
+    contextQuery.setHandler(new DataQueryHandler(sketches, archiver));
     contextQuery.setAllowNullPathInfo(true);
 
     final ContextHandler contextReset = new ContextHandler("/" + RESET_PATH);
     contextReset.setHandler(new ResetHandler(sketches));
     contextReset.setAllowNullPathInfo(true);
 
+    final ContextHandler contextRotate = new ContextHandler("/" + ROTATE_PATH);
+    contextRotate.setHandler(new RotateHandler(sketches));
+    contextRotate.setAllowNullPathInfo(true);
+
+    final ContextHandler contextReload = new ContextHandler("/" + RELOAD_PATH);
+    contextReload.setHandler(new ReloadHandler(sketches, configFile));
+    contextReload.setAllowNullPathInfo(true);
+
+    final ContextHandler contextSimilarity = new ContextHandler("/" + SIMILARITY_PATH);
+    contextSimilarity.setHandler(new SimilarityHandler(sketches));
+    contextSimilarity.setAllowNullPathInfo(true);
+
+    final ContextHandler contextIngest = new ContextHandler("/" + INGEST_PATH);
+    contextIngest.setHandler(new IngestHandler(sketches, config.getRouteList(), ingestQueue));
+    contextIngest.setAllowNullPathInfo(true);
+
     final ContextHandlerCollection contexts =
         new ContextHandlerCollection(contextRoot,
             contextStatus,
@@ -94,8 +122,16 @@ public class SketchServer {
             contextUpdate,
             contextMerge,
             contextQuery,
-            contextReset);
-    server.setHandler(contexts);
+            contextReset,
+            contextRotate,
+            contextReload,
+            contextSimilarity,
+            contextIngest);
+    // tracks in-flight requests, so that stopping the server lets them finish rather than cutting them off
+    final StatisticsHandler stats = new StatisticsHandler();
+    stats.setHandler(contexts);
+    server.setHandler(stats);
+    server.setStopTimeout(SERVER_STOP_TIMEOUT_MS);
   }
 
   /**
@@ -104,8 +140,37 @@ public class SketchServer {
    */
   public void start() throws Exception {
     sketches = new SketchStorage(config.getSketchList());
+    if (config.getAsyncInfo() != null) {
+      ingestQueue = new IngestQueue(sketches, config.getAsyncInfo());
+      ingestQueue.start();
+    }
+    // created before the handlers, which read from it
+    if (config.getArchiveInfo() != null) {
+      archiver = new SketchArchiver(sketches, Paths.get(config.getArchiveInfo().dir));
+      archiver.start();
+    }
     createServer();
     server.start();
+
+    if (config.getPushInfo() != null) {
+      pusher = new SketchPusher(sketches, config.getPushInfo());
+      pusher.start();
+    }
+
+    if (config.getWatchConfig()) {
+      configWatcher = new ConfigWatcher(sketches, configFile);
+      configWatcher.start();
+    }
+
+    // decayed and windowed sketches move forward in time on a fixed schedule, regardless of updates. Started
+    // even if none are configured now, since a reload may add some.
+    clockExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r, "sketch-clock");
+      t.setDaemon(true);
+      return t;
+    });
+    clockExecutor.scheduleAtFixedRate(() -> sketches.advanceTime(System.currentTimeMillis()),
+        CLOCK_INTERVAL_MS, CLOCK_INTERVAL_MS, TimeUnit.MILLISECONDS);
   }
 
   /**
@@ -142,9 +207,31 @@ public class SketchServer {
    * @throws Exception Upon underlying server throwing an Exception
    */
   public void stop() throws Exception {
+    // stop accepting requests and wait for those in progress first, so that nothing is written to a sketch
+    // after its final push or archive
     if (server != null) {
       server.stop();
-      server.isStarted();
+    }
+    if (clockExecutor != null) {
+      clockExecutor.shutdownNow();
+      clockExecutor = null;
+    }
+    if (configWatcher != null) {
+      configWatcher.stop();
+      configWatcher = null;
+    }
+    // finish queued updates so the final push includes them
+    if (ingestQueue != null) {
+      ingestQueue.stop();
+      ingestQueue = null;
+    }
+    if (pusher != null) {
+      pusher.stop();
+      pusher = null;
+    }
+    if (archiver != null) {
+      archiver.stop();
+      archiver = null;
     }
   }
 
@@ -19,21 +19,27 @@
 
 package org.apache.datasketches.server;
 
+import static org.apache.datasketches.server.SketchStorage.hasItemType;
 import static org.apache.datasketches.server.SketchStorage.isDistinctCounting;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.lang.reflect.Type;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+
+import org.apache.datasketches.Family;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
 
 import static org.apache.datasketches.server.SketchConstants.*;
 
@@ -45,22 +51,63 @@ import org.checkerframework.checker.nullness.qual.NonNull;
  * TODO: define config options
  */
 class SketchServerConfig {
+  private static final Type TAGS_TYPE = new TypeToken<Map<String, String>>() {}.getType();
+
   public static class SketchInfo {
     public String name;
     public int k;
     public String family;
     public String type;
+    public Map<String, String> tags; // optional key=value labels for group operations
+    public String[] members; // if present, a rollup updated along with each of these sketches
+    public Boolean hra; // for req sketches, whether to favor accuracy at high ranks; true if absent
+    public Integer metrics; // for tuple sketches, the number of values per key; 1 if absent
+    public Double halfLife; // for frequency sketches, the decay half-life in seconds; no decay if absent
+    public Double window; // for kll sketches, the sliding window length in seconds; no window if absent
+    public Boolean archive; // whether to drain the sketch into the archive each minute; false if absent
 
     SketchInfo(final String name, final int k, final String family, final String type) {
+      this(name, k, family, type, null);
+    }
+
+    SketchInfo(final String name, final int k, final String family, final String type,
+               final Map<String, String> tags) {
       this.name = name;
       this.k = k;
       this.family = family;
       this.type = type;
+      this.tags = tags;
     }
   }
 
+  public static class PushInfo {
+    public String target;
+    public int interval = DEFAULT_PUSH_INTERVAL_SEC;
+    public int retries = DEFAULT_PUSH_RETRIES;
+    public String spoolDir;
+  }
+
+  public static class ArchiveInfo {
+    public String dir;
+  }
+
+  public static class AsyncInfo {
+    public int partitions = Runtime.getRuntime().availableProcessors();
+    public int capacity = DEFAULT_ASYNC_CAPACITY;
+  }
+
+  public static class RouteInfo {
+    public String field;
+    public String[] sketches;
+  }
+
   private int port = DEFAULT_PORT;
   private ArrayList<SketchInfo> sketchList;
+  private ArrayList<RouteInfo> routeList;
+  private PushInfo pushInfo;
+  private AsyncInfo asyncInfo;
+  private ArchiveInfo archiveInfo;
+  private boolean watchConfig = false;
 
   SketchServerConfig(@NonNull final String configFile) throws IOException {
     final JsonElement config = readJsonFromFile(configFile);
@@ -75,6 +122,29 @@ class SketchServerConfig {
     return sketchList;
   }
 
+  List<RouteInfo> getRouteList() {
+    return routeList;
+  }
+
+  boolean getWatchConfig() {
+    return watchConfig;
+  }
+
+  // null if updates are applied synchronously
+  AsyncInfo getAsyncInfo() {
+    return asyncInfo;
+  }
+
+  // null if no upstream push is configured
+  PushInfo getPushInfo() {
+    return pushInfo;
+  }
+
+  // null if no archive is configured
+  ArchiveInfo getArchiveInfo() {
+    return archiveInfo;
+  }
+
   // output should have a list with full info per sketch, even if input allows a
   // more condensed format
   private static JsonElement readJsonFromFile(final String configFile) throws IOException {
@@ -87,6 +157,7 @@ class SketchServerConfig {
     final Gson gson = new Gson();
 
     sketchList = new ArrayList<>();
+    routeList = new ArrayList<>();
 
     if (config.isJsonArray()) {
       // must be a list of fully-described sketches
@@ -98,6 +169,32 @@ class SketchServerConfig {
           // port the server should use
           port = confEntry.get(name).getAsInt();
         }
+        else if (name.equalsIgnoreCase(CONFIG_WATCH_FIELD)) {
+          // reload sketch definitions when the config file changes
+          watchConfig = confEntry.get(name).getAsBoolean();
+        }
+        else if (name.equalsIgnoreCase(CONFIG_PUSH_FIELD)) {
+          // periodic push of local sketches to an upstream server
+          pushInfo = gson.fromJson(confEntry.get(name), PushInfo.class);
+          if (pushInfo.target == null) {
+            throw new IOException("Push configuration must specify a " + CONFIG_PUSH_TARGET_FIELD);
+          }
+        }
+        else if (name.equalsIgnoreCase(CONFIG_ARCHIVE_FIELD)) {
+          // on-disk history of archived sketches
+          archiveInfo = gson.fromJson(confEntry.get(name), ArchiveInfo.class);
+          if (archiveInfo.dir == null) {
+            throw new IOException("Archive configuration must specify a " + CONFIG_ARCHIVE_DIR_FIELD);
+          }
+        }
+        else if (name.equalsIgnoreCase(CONFIG_ASYNC_FIELD)) {
+          // queue updates for background applier threads
+          asyncInfo = gson.fromJson(confEntry.get(name), AsyncInfo.class);
+        }
+        else if (name.equalsIgnoreCase(CONFIG_ROUTES_FIELD)) {
+          // event fields routed to sketches by /ingest
+          routeList.addAll(Arrays.asList(gson.fromJson(confEntry.get(name).getAsJsonArray(), RouteInfo[].class)));
+        }
         else if (name.toLowerCase().startsWith(CONFIG_SKETCHES_PREFIX)) {
           // sketches* is an array of fully qualified sketches
           sketchList.addAll(Arrays.asList(gson.fromJson(confEntry.get(name).getAsJsonArray(), SketchInfo[].class)));
@@ -107,13 +204,36 @@ class SketchServerConfig {
           final int k = sketchSetInfo.get(CONFIG_K_FIELD).getAsInt();
           final String family = sketchSetInfo.get(CONFIG_FAMILY_FIELD).getAsString();
           String type = null;
-          if (isDistinctCounting(BaseSketchesQueryHandler.familyFromString(family))) {
+          final Family setFamily = BaseSketchesQueryHandler.familyFromString(family);
+          if (isDistinctCounting(setFamily) || (hasItemType(setFamily) && sketchSetInfo.has(CONFIG_TYPE_FIELD))) {
             type = sketchSetInfo.get(CONFIG_TYPE_FIELD).getAsString();
           }
           final String[] nameList = gson.fromJson(sketchSetInfo.get(CONFIG_SET_NAMES_FIELD).getAsJsonArray(), String[].class);
+          Map<String, String> tags = null;
+          if (sketchSetInfo.has(CONFIG_TAGS_FIELD)) {
+            tags = gson.fromJson(sketchSetInfo.get(CONFIG_TAGS_FIELD), TAGS_TYPE);
+          }
 
-          for (final String n : nameList)
-            sketchList.add(new SketchInfo(n, k, family, type));
+          final Boolean hra = sketchSetInfo.has(CONFIG_HRA_FIELD)
+              ? sketchSetInfo.get(CONFIG_HRA_FIELD).getAsBoolean() : null;
+          final Integer metrics = sketchSetInfo.has(CONFIG_METRICS_FIELD)
+              ? sketchSetInfo.get(CONFIG_METRICS_FIELD).getAsInt() : null;
+          final Double halfLife = sketchSetInfo.has(CONFIG_HALF_LIFE_FIELD)
+              ? sketchSetInfo.get(CONFIG_HALF_LIFE_FIELD).getAsDouble() : null;
+          final Double window = sketchSetInfo.has(CONFIG_WINDOW_FIELD)
+              ? sketchSetInfo.get(CONFIG_WINDOW_FIELD).getAsDouble() : null;
+          final Boolean archive = sketchSetInfo.has(CONFIG_ARCHIVE_FIELD)
+              ? sketchSetInfo.get(CONFIG_ARCHIVE_FIELD).getAsBoolean() : null;
+
+          for (final String n : nameList) {
+            final SketchInfo info = new SketchInfo(n, k, family, type, tags);
+            info.hra = hra;
+            info.metrics = metrics;
+            info.halfLife = halfLife;
+            info.window = window;
+            info.archive = archive;
+            sketchList.add(info);
+          }
         }
       }
     } else {
@@ -19,18 +19,36 @@
 
 package org.apache.datasketches.server;
 
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.datasketches.Family;
 import org.apache.datasketches.cpc.CpcSketch;
 import org.apache.datasketches.frequencies.ItemsSketch;
+import org.apache.datasketches.frequencies.LongsSketch;
 import org.apache.datasketches.hll.HllSketch;
 import org.apache.datasketches.kll.KllFloatsSketch;
+import org.apache.datasketches.quantiles.DoublesSketch;
+import org.apache.datasketches.req.ReqSketch;
 import org.apache.datasketches.sampling.ReservoirItemsSketch;
+import org.apache.datasketches.sampling.ReservoirLongsSketch;
 import org.apache.datasketches.sampling.VarOptItemsSketch;
 import org.apache.datasketches.theta.SetOperationBuilder;
+import org.apache.datasketches.theta.Union;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesSetOperationBuilder;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesUnion;
 import org.checkerframework.checker.nullness.qual.NonNull;
 
 
@@ -45,30 +63,195 @@ import static org.apache.datasketches.server.SketchConstants.*;
  * order to ensure that data is presented in a consistent way.
  */
 public class SketchStorage {
-  // the set of SketchEntries held by this object
-  HashMap<String, SketchEntry> sketchMap;
+  // the set of SketchEntries held by this object, with secondary indices for group lookups. An index is never
+  // modified once published; a reload builds and swaps in a new one so readers never block.
+  volatile Index index;
+
+  private static final SketchEntry[] NO_ROLLUPS = new SketchEntry[0];
+
+  // random for each storage, so that entry ids and versions, which restart with the process, are only
+  // comparable within it; a server restarted with the same configuration never reproduces an old ETag
+  final long epoch_ = ThreadLocalRandom.current().nextLong();
 
   /**
-   * Returns true if the sketch family is for distinct counting.
+   * An immutable snapshot of the configured sketches. Entries are looked up by exact name, by name prefix
+   * using a sorted map, or by any of the <tt>key=value</tt> tags given in the configuration. The index also
+   * records which entries are rollups of which others, and which are archived.
+   */
+  static final class Index {
+    final HashMap<String, SketchEntry> byName_;
+    final TreeMap<String, SketchEntry> sorted_;
+    final HashMap<String, List<SketchEntry>> byTag_;
+    final HashMap<String, SketchEntry[]> rollupsByMember_;
+    final HashMap<String, List<SketchEntry>> membersByRollup_;
+    final LinkedHashMap<String, SketchEntry> archived_;
+
+    Index(@NonNull final HashMap<String, SketchEntry> byName,
+          @NonNull final List<SketchServerConfig.SketchInfo> list) throws IllegalArgumentException {
+      byName_ = byName;
+      sorted_ = new TreeMap<>(byName);
+      byTag_ = new HashMap<>();
+      for (final SketchServerConfig.SketchInfo info : list) {
+        if (info.tags == null) {
+          continue;
+        }
+        for (final Map.Entry<String, String> tag : info.tags.entrySet()) {
+          if (tag.getKey().indexOf('=') >= 0) {
+            throw new IllegalArgumentException("Tag keys may not contain '=': " + tag.getKey());
+          }
+          byTag_.computeIfAbsent(tag.getKey() + "=" + tag.getValue(), t -> new ArrayList<>())
+              .add(byName.get(info.name));
+        }
+      }
+
+      membersByRollup_ = new HashMap<>();
+      for (final SketchServerConfig.SketchInfo info : list) {
+        if (info.members != null) {
+          membersByRollup_.put(info.name, resolveMembers(byName, byName.get(info.name), info.members));
+        }
+      }
+
+      final HashMap<String, List<SketchEntry>> rollups = new HashMap<>();
+      for (final Map.Entry<String, List<SketchEntry>> e : membersByRollup_.entrySet()) {
+        for (final SketchEntry member : e.getValue()) {
+          if (membersByRollup_.containsKey(member.name_)) {
+            throw new IllegalArgumentException("Rollup " + e.getKey() + " cannot include another rollup: "
+                + member.name_);
+          }
+          rollups.computeIfAbsent(member.name_, m -> new ArrayList<>()).add(byName.get(e.getKey()));
+        }
+      }
+      rollupsByMember_ = new HashMap<>();
+      for (final Map.Entry<String, List<SketchEntry>> e : rollups.entrySet()) {
+        rollupsByMember_.put(e.getKey(), e.getValue().toArray(NO_ROLLUPS));
+      }
+
+      archived_ = new LinkedHashMap<>();
+      for (final SketchServerConfig.SketchInfo info : list) {
+        if (info.archive == null || !info.archive) {
+          continue;
+        }
+        final SketchEntry entry = byName.get(info.name);
+        // the archive holds plain sketches, merged over arbitrary ranges
+        if (entry.isTimed()) {
+          throw new IllegalArgumentException("Decayed or windowed sketches cannot be archived: " + info.name);
+        }
+        archived_.put(info.name, entry);
+      }
+    }
+
+    // members must exist and be configured like the rollup so the same updates and merges apply to both
+    private static List<SketchEntry> resolveMembers(final HashMap<String, SketchEntry> byName,
+                                                    final SketchEntry rollup,
+                                                    final String[] names) throws IllegalArgumentException {
+      final List<SketchEntry> members = new ArrayList<>(names.length);
+      for (final String name : names) {
+        final SketchEntry member = byName.get(name);
+        if (member == null || member == rollup) {
+          throw new IllegalArgumentException("Invalid member of rollup " + rollup.name_ + ": " + name);
+        }
+        if (member.family_ != rollup.family_ || member.type_ != rollup.type_
+            || (rollup.family_ == Family.REQ && member.configHra_ != rollup.configHra_)
+            || member.configMetrics_ != rollup.configMetrics_) {
+          throw new IllegalArgumentException("Rollup " + rollup.name_ + " must have the same family and type "
+              + "as its member " + name);
+        }
+        // decayed counts and windows depend on each sketch's own clock, so they cannot be combined
+        if (member.isTimed() || rollup.isTimed()) {
+          throw new IllegalArgumentException("Rollup " + rollup.name_ + " cannot include decayed or windowed "
+              + "sketches: " + name);
+        }
+        if (!members.contains(member)) {
+          members.add(member);
+        }
+      }
+      return members;
+    }
+  }
+
+  /**
+   * Returns true if the sketch family is for distinct counting. This includes tuple sketches, which count
+   * distinct keys while aggregating the values associated with each.
    * @param family A sketch Family (@see org.apache.datasketches.Family)
    * @return <tt>true</tt>e for distinct counting sketch families, otherwise <tt>false</tt>>.
    */
   static boolean isDistinctCounting(final Family family) {
-    return family == Family.QUICKSELECT || family == Family.UNION || family == Family.HLL || family == Family.CPC;
+    return family == Family.QUICKSELECT || family == Family.UNION || family == Family.HLL || family == Family.CPC
+        || family == Family.TUPLE;
+  }
+
+  /**
+   * Returns true if the sketch family retains individual items, which may be held as strings or as longs.
+   * @param family A sketch Family (@see org.apache.datasketches.Family)
+   * @return <tt>true</tt> for frequent items and sampling sketch families, otherwise <tt>false</tt>.
+   */
+  static boolean hasItemType(final Family family) {
+    return family == Family.FREQUENCY || family == Family.RESERVOIR || family == Family.VAROPT;
+  }
+
+  /**
+   * Returns the item type for a sketch family that retains items. Strings are the default and are represented
+   * by null, so only <tt>ValueType.LONG</tt> is ever returned.
+   * @param family A sketch Family (@see org.apache.datasketches.Family)
+   * @param typeName The configured type name, or null if none was given
+   * @return <tt>ValueType.LONG</tt> for long items, or null for string items or other families
+   * @throws IllegalArgumentException if the type is neither string nor long
+   */
+  static ValueType itemType(final Family family, final String typeName) throws IllegalArgumentException {
+    if (!hasItemType(family) || typeName == null) {
+      return null;
+    }
+
+    switch (ValueType.stringToType(typeName)) {
+      case LONG:
+        return ValueType.LONG;
+      case STRING:
+        return null;
+      default:
+        throw new IllegalArgumentException("Items in " + family.getFamilyName()
+            + " sketches must be of type string or long, found: " + typeName);
+    }
   }
 
   static class SketchEntry {
+    private static final AtomicLong nextId = new AtomicLong();
+
     public final Family family_;
     public final ValueType type_;
-    public Object sketch_;
+    public Object sketch_; // null until the first write, so unused sketches cost no memory
     public final String name_;
     public int configK_;
+    public final boolean configHra_; // high rank accuracy, only used by req sketches
+    public final int configMetrics_; // number of values per key, only used by tuple sketches
+    public final double configHalfLife_; // decay half-life in seconds, 0 unless a decayed frequency sketch
+    public final double configWindow_; // sliding window in seconds, 0 unless a windowed kll sketch
+    // family- and type-specific handling, created once so the request path avoids switching on family
+    final UpdateHandler.Updater updater_;
+    final DataQueryHandler.QueryProcessor querier_;
+    final SerializationHandler.Serializer serializer_;
+    // unique across all entries, including those from any reloaded configuration
+    final long id_ = nextId.incrementAndGet();
+    // incremented on every write, under the sketch lock, to invalidate anything derived from the sketch
+    volatile long version_;
+    // last theta or tuple Union result and the version it was computed from
+    private Object result_;
+    private long resultVersion_ = -1;
+    // last query view and the version it was created from
+    private Object view_;
+    private long viewVersion_ = -1;
+    // last serialized image, which may be reclaimed under memory pressure, and the version it was created from
+    private SoftReference<byte[]> image_;
+    private long imageVersion_ = -1;
 
     SketchEntry(@NonNull final Family family,
                 final ValueType type,
-                @NonNull final Object sketch,
+                final Object sketch,
                 @NonNull final String name,
-                final int configK) throws IllegalArgumentException {
+                final int configK,
+                final boolean configHra,
+                final int configMetrics,
+                final double configHalfLife,
+                final double configWindow) throws IllegalArgumentException {
       if (isDistinctCounting(family) && type == null)
         throw new IllegalArgumentException("Must specify a value type for distinct counting sketches");
 
@@ -77,20 +260,193 @@ public class SketchStorage {
       sketch_ = sketch;
       name_ = name;
       configK_ = configK;
+      configHra_ = configHra;
+      configMetrics_ = configMetrics;
+      configHalfLife_ = configHalfLife;
+      configWindow_ = configWindow;
+      updater_ = UpdateHandler.createUpdater(family, type, isTimed());
+      querier_ = DataQueryHandler.createQueryProcessor(family, type);
+      serializer_ = SerializationHandler.createSerializer(family, type);
     }
 
     SketchEntry(@NonNull final Family family,
-                @NonNull final Object sketch,
+                final ValueType type,
+                final Object sketch,
                 @NonNull final String name,
                 final int configK) throws IllegalArgumentException {
-      if (isDistinctCounting(family))
-        throw new IllegalArgumentException("Must specify a value type for distinct counting sketches");
+      this(family, type, sketch, name, configK, true, 1, 0, 0);
+    }
 
-      family_ = family;
-      type_ = null;
-      sketch_ = sketch;
-      name_ = name;
-      configK_ = configK;
+    SketchEntry(@NonNull final Family family,
+                final Object sketch,
+                @NonNull final String name,
+                final int configK) throws IllegalArgumentException {
+      this(family, null, sketch, name, configK, true, 1, 0, 0);
+    }
+
+    /**
+     * Returns true if this is a frequent items sketch with decaying counts, which holds a
+     * <tt>DecayedFrequencySketch</tt> and cannot be merged.
+     * @return <tt>true</tt> if counts decay, otherwise <tt>false</tt>
+     */
+    boolean isDecayed() {
+      return configHalfLife_ > 0;
+    }
+
+    /**
+     * Returns true if this is a kll sketch over a sliding window, which holds a <tt>WindowedKllSketch</tt> and
+     * cannot be merged into.
+     * @return <tt>true</tt> if the sketch keeps a window, otherwise <tt>false</tt>
+     */
+    boolean isWindowed() {
+      return configWindow_ > 0;
+    }
+
+    /**
+     * Returns true if the contents of the sketch depend on the time, as moved forward by
+     * <tt>SketchStorage.advanceTime()</tt>. Such sketches are held in a wrapper and are not mergeable.
+     * @return <tt>true</tt> for decayed or windowed sketches, otherwise <tt>false</tt>
+     */
+    boolean isTimed() {
+      return isDecayed() || isWindowed();
+    }
+
+    /**
+     * Returns the sketch for writing, creating it if this is the first write. The caller must hold the lock
+     * on <tt>name_.intern()</tt>.
+     * @return The sketch held by this entry
+     */
+    Object getOrCreateSketch() {
+      ++version_;
+      if (sketch_ == null) {
+        sketch_ = createSketch(family_, type_, configK_, configHra_, configMetrics_, configHalfLife_, configWindow_);
+      }
+      return sketch_;
+    }
+
+    /**
+     * Returns the sketch for reading. If the sketch has never been written, returns a shared, empty sketch of
+     * the same configuration which must not be modified. The caller must hold the lock on
+     * <tt>name_.intern()</tt>.
+     * @return The sketch held by this entry, or an equivalent empty sketch
+     */
+    Object readSketch() {
+      return sketch_ != null ? sketch_
+          : emptySketch(family_, type_, configK_, configHra_, configMetrics_, configHalfLife_, configWindow_);
+    }
+
+    /**
+     * Returns the sketch in the form used for queries and serialization. For theta and tuple sketches, this is
+     * the compact result of the Union, and for windowed kll sketches the merge of the full window, either of
+     * which is cached until the next write. For other families, this is the same as <tt>readSketch()</tt>.
+     * The caller must hold the lock on <tt>name_.intern()</tt>.
+     * @return The result to use when reading this entry
+     */
+    Object readResult() {
+      if (family_ != Family.UNION && family_ != Family.TUPLE && !isWindowed()) {
+        return readSketch();
+      }
+
+      final long version = version_;
+      if (result_ == null || resultVersion_ != version) {
+        if (family_ == Family.UNION) {
+          result_ = ((Union) readSketch()).getResult();
+        } else if (family_ == Family.TUPLE) {
+          result_ = ((ArrayOfDoublesUnion) readSketch()).getResult();
+        } else {
+          result_ = ((WindowedKllSketch) readSketch()).getWindow(windowMs());
+        }
+        resultVersion_ = version;
+      }
+      return result_;
+    }
+
+    /**
+     * Returns the configured window in milliseconds, for use with a <tt>WindowedKllSketch</tt>.
+     * @return The window length, or 0 if the sketch is not windowed
+     */
+    long windowMs() {
+      return Math.round(configWindow_ * 1000);
+    }
+
+    /**
+     * Returns a view of the sketch for queries, as created by the entry's <tt>QueryProcessor</tt>, which is
+     * cached until the next write. The caller must hold the lock on <tt>name_.intern()</tt>.
+     * @return The view to use when querying this entry
+     */
+    Object readQueryView() {
+      final long version = version_;
+      if (view_ == null || viewVersion_ != version) {
+        view_ = querier_.createView(readResult());
+        viewVersion_ = version;
+      }
+      return view_;
+    }
+
+    /**
+     * Returns the serialized image of the sketch, as produced by the entry's <tt>Serializer</tt>. The image
+     * is cached until the next write, or until reclaimed under memory pressure, and is shared between callers
+     * so it must be treated as read-only. The caller must hold the lock on <tt>name_.intern()</tt>.
+     * @return The serialized image of this entry
+     */
+    byte[] readImage() {
+      final long version = version_;
+      byte[] image = (image_ != null && imageVersion_ == version) ? image_.get() : null;
+      if (image == null) {
+        image = serializer_.toByteArray(readResult());
+        image_ = new SoftReference<>(image);
+        imageVersion_ = version;
+      }
+      return image;
+    }
+
+    /**
+     * Drops the held sketch, leaving a new one to be created on the next write. The caller must hold the
+     * lock on <tt>name_.intern()</tt>.
+     */
+    void clearSketch() {
+      ++version_;
+      sketch_ = null;
+    }
+
+    /**
+     * Atomically replaces the held sketch with a new, empty one of the same configuration and returns the
+     * retired sketch. Every update applied under the sketch lock lands in exactly one of the two sketches.
+     * As with a newly configured sketch, the replacement is only allocated on the next write.
+     * @return The sketch held prior to the swap, or null if it was never written
+     */
+    Object swapSketch() {
+      synchronized (name_.intern()) {
+        final Object retired = sketch_;
+        clearSketch();
+        return retired;
+      }
+    }
+
+    /**
+     * Returns a sketch retired by <tt>swapSketch()</tt> that could not be delivered. If the entry has not been
+     * written since the swap, the retired sketch is reinstated as is, and otherwise it is merged into the current
+     * sketch. Decayed and windowed sketches cannot be merged, so the retired sketch is reinstated in place of any
+     * values written in the meantime.
+     * @param retired The sketch returned by <tt>swapSketch()</tt>, or null
+     */
+    void restoreSketch(final Object retired) {
+      if (retired == null) {
+        return;
+      }
+      synchronized (name_.intern()) {
+        if (sketch_ == null || isTimed()) {
+          ++version_;
+          sketch_ = retired;
+          return;
+        }
+        // theta and tuple sketches are held as unions, so merge in the result
+        final Object input = family_ == Family.UNION ? ((Union) retired).getResult()
+            : family_ == Family.TUPLE ? ((ArrayOfDoublesUnion) retired).getResult() : retired;
+        getOrCreateSketch();
+        sketch_ = MergeHandler.unionSketches(family_, type_, configK_, sketch_,
+            Collections.singletonList(new MergeHandler.MergeEntry(null, input)));
+      }
     }
   }
 
@@ -100,9 +456,10 @@ public class SketchStorage {
 
   JsonObject listSketches() {
     final JsonObject summary = new JsonObject();
+    final HashMap<String, SketchEntry> map = index.byName_;
 
-    final JsonArray sketchList = new JsonArray(sketchMap.size());
-    for (final Map.Entry<String, SketchEntry> e : sketchMap.entrySet()) {
+    final JsonArray sketchList = new JsonArray(map.size());
+    for (final Map.Entry<String, SketchEntry> e : map.entrySet()) {
       final JsonObject item = new JsonObject();
       item.addProperty(CONFIG_SKETCH_NAME_FIELD, e.getKey());
       switch (e.getValue().family_) {
@@ -120,9 +477,15 @@ public class SketchStorage {
           break;
         case FREQUENCY:
           item.addProperty(CONFIG_FAMILY_FIELD, SKETCH_FAMILY_FREQUENCY);
+          if (e.getValue().isDecayed()) {
+            item.addProperty(CONFIG_HALF_LIFE_FIELD, e.getValue().configHalfLife_);
+          }
           break;
         case KLL:
           item.addProperty(CONFIG_FAMILY_FIELD, SKETCH_FAMILY_KLL);
+          if (e.getValue().isWindowed()) {
+            item.addProperty(CONFIG_WINDOW_FIELD, e.getValue().configWindow_);
+          }
           break;
         case RESERVOIR:
           item.addProperty(CONFIG_FAMILY_FIELD, SKETCH_FAMILY_RESERVOIR);
@@ -130,74 +493,424 @@ public class SketchStorage {
         case VAROPT:
           item.addProperty(CONFIG_FAMILY_FIELD, SKETCH_FAMILY_VAROPT);
           break;
+        case REQ:
+          item.addProperty(CONFIG_FAMILY_FIELD, SKETCH_FAMILY_REQ);
+          item.addProperty(CONFIG_HRA_FIELD, e.getValue().configHra_);
+          break;
+        case QUANTILES:
+          item.addProperty(CONFIG_FAMILY_FIELD, SKETCH_FAMILY_QUANTILES);
+          break;
+        case TUPLE:
+          item.addProperty(CONFIG_TYPE_FIELD, e.getValue().type_.getTypeName());
+          item.addProperty(CONFIG_FAMILY_FIELD, SKETCH_FAMILY_TUPLE);
+          item.addProperty(CONFIG_METRICS_FIELD, e.getValue().configMetrics_);
+          break;
+      }
+      // items sketches only list a type when holding longs
+      if (hasItemType(e.getValue().family_) && e.getValue().type_ != null) {
+        item.addProperty(CONFIG_TYPE_FIELD, e.getValue().type_.getTypeName());
       }
       sketchList.add(item);
     }
 
-    summary.addProperty(RESPONSE_SKETCH_COUNT_FIELD, sketchMap.size());
+    summary.addProperty(RESPONSE_SKETCH_COUNT_FIELD, map.size());
     summary.add(SketchConstants.CONFIG_SKETCHES_PREFIX, sketchList); // bare prefix, sketches fully qualified
 
     return summary;
   }
 
+  /**
+   * Creates a new, empty sketch for the given family as stored in a <tt>SketchEntry</tt>. Theta and tuple
+   * sketches are held as a union so that they can later be used as merge targets, and items sketches with
+   * long items use the library's primitive <tt>long</tt> implementations where available. Decayed and
+   * windowed sketches are held in their time-dependent wrappers.
+   * @param family The family of the <tt>SketchEntry</tt>
+   * @param type The value type of the <tt>SketchEntry</tt>, or null if not applicable
+   * @param k The configured size parameter
+   * @param hra Whether a req sketch favors accuracy at high ranks, ignored for other families
+   * @param metrics The number of values per key of a tuple sketch, ignored for other families
+   * @param halfLife The decay half-life in seconds of a frequent items sketch, or 0 for no decay
+   * @param window The sliding window in seconds of a kll sketch, or 0 for no window
+   * @return A newly constructed sketch
+   */
+  static Object createSketch(final Family family, final ValueType type, final int k, final boolean hra,
+                             final int metrics, final double halfLife, final double window) {
+    if (family == Family.FREQUENCY && halfLife > 0) {
+      return new DecayedFrequencySketch(k, type == ValueType.LONG, halfLife * 1000, System.currentTimeMillis());
+    }
+    if (family == Family.KLL && window > 0) {
+      return new WindowedKllSketch(k, Math.round(window * 1000), System.currentTimeMillis());
+    }
+
+    switch (family) {
+      case QUICKSELECT:
+      case UNION:
+        return new SetOperationBuilder().setNominalEntries(1 << k).buildUnion();
+      case HLL:
+        return new HllSketch(k);
+      case CPC:
+        return new CpcSketch(k);
+      case TUPLE:
+        return new ArrayOfDoublesSetOperationBuilder().setNominalEntries(1 << k).setNumberOfValues(metrics)
+            .buildUnion();
+      case KLL:
+        return new KllFloatsSketch(k);
+      case REQ:
+        return ReqSketch.builder().setK(k).setHighRankAccuracy(hra).build();
+      case QUANTILES:
+        return DoublesSketch.builder().setK(k).build();
+      case FREQUENCY:
+        return type == ValueType.LONG ? new LongsSketch(k) : new ItemsSketch<String>(k);
+      case RESERVOIR:
+        return type == ValueType.LONG ? ReservoirLongsSketch.newInstance(k) : ReservoirItemsSketch.<String>newInstance(k);
+      case VAROPT:
+        return type == ValueType.LONG ? VarOptItemsSketch.<Long>newInstance(k) : VarOptItemsSketch.<String>newInstance(k);
+      default:
+        throw new IllegalArgumentException("Unsupported sketch family: " + family);
+    }
+  }
+
+  // shared empty sketches to answer reads of never-written entries, keyed by family ordinal, options and k
+  private static final ConcurrentHashMap<Long, Object> emptySketches = new ConcurrentHashMap<>();
+
+  /**
+   * Returns a shared, empty sketch for the given configuration. The result must never be modified.
+   * @param family The family of the <tt>SketchEntry</tt>
+   * @param type The value type of the <tt>SketchEntry</tt>, or null if not applicable
+   * @param k The configured size parameter
+   * @param hra Whether a req sketch favors accuracy at high ranks, ignored for other families
+   * @param metrics The number of values per key of a tuple sketch, ignored for other families
+   * @param halfLife The decay half-life in seconds of a frequent items sketch, or 0 for no decay
+   * @param window The sliding window in seconds of a kll sketch, or 0 for no window
+   * @return An empty sketch
+   */
+  static Object emptySketch(final Family family, final ValueType type, final int k, final boolean hra,
+                            final int metrics, final double halfLife, final double window) {
+    // only the item type, the req rank accuracy, the tuple value count and whether counts decay or are windowed
+    // change the kind of sketch created. An empty decayed or windowed sketch reads the same for any period.
+    final long typeBit = hasItemType(family) && type == ValueType.LONG ? 1 : 0;
+    final long hraBit = family == Family.REQ && hra ? 2 : 0;
+    final long metricBits = family == Family.TUPLE ? (metrics & 0xFFL) << 2 : 0;
+    final long timeBit = (family == Family.FREQUENCY && halfLife > 0) || (family == Family.KLL && window > 0)
+        ? 1 << 10 : 0;
+    final long key = ((((long) family.ordinal() << 11) | timeBit | metricBits | hraBit | typeBit) << 32)
+        | (k & 0xFFFFFFFFL);
+    return emptySketches.computeIfAbsent(key, x -> createSketch(family, type, k, hra, metrics, halfLife, window));
+  }
+
+  /**
+   * Returns true if the sketch has not received any data.
+   * @param family The family of the <tt>SketchEntry</tt>
+   * @param type The value type of the <tt>SketchEntry</tt>, or null if not applicable
+   * @param sketch The sketch to check, possibly null if never written
+   * @return <tt>true</tt> if the sketch is empty, otherwise <tt>false</tt>
+   */
+  static boolean isEmpty(final Family family, final ValueType type, final Object sketch) {
+    if (sketch == null) {
+      return true;
+    }
+
+    switch (family) {
+      case UNION:
+        return ((Union) sketch).getResult().isEmpty();
+      case HLL:
+        return ((HllSketch) sketch).isEmpty();
+      case CPC:
+        return ((CpcSketch) sketch).isEmpty();
+      case TUPLE:
+        return ((ArrayOfDoublesUnion) sketch).getResult().isEmpty();
+      case KLL:
+        if (sketch instanceof WindowedKllSketch) {
+          return ((WindowedKllSketch) sketch).isEmpty();
+        }
+        return ((KllFloatsSketch) sketch).isEmpty();
+      case REQ:
+        return ((ReqSketch) sketch).isEmpty();
+      case QUANTILES:
+        return ((DoublesSketch) sketch).isEmpty();
+      case FREQUENCY:
+        if (sketch instanceof DecayedFrequencySketch) {
+          return ((DecayedFrequencySketch) sketch).isEmpty();
+        }
+        return type == ValueType.LONG ? ((LongsSketch) sketch).isEmpty() : ((ItemsSketch<?>) sketch).isEmpty();
+      case RESERVOIR:
+        return type == ValueType.LONG ? ((ReservoirLongsSketch) sketch).getN() == 0
+            : ((ReservoirItemsSketch<?>) sketch).getN() == 0;
+      case VAROPT:
+        return ((VarOptItemsSketch<?>) sketch).getN() == 0;
+      default:
+        throw new IllegalArgumentException("Unsupported sketch family: " + family);
+    }
+  }
+
+  /**
+   * Moves decayed and windowed sketches forward to the given time, so that queries see their counts or window
+   * as of then. Each such sketch counts as written, invalidating any cached results.
+   * @param nowMs The current time in milliseconds
+   */
+  void advanceTime(final long nowMs) {
+    for (final SketchEntry se : getSketches()) {
+      if (!se.isTimed()) {
+        continue;
+      }
+      synchronized (se.name_.intern()) {
+        if (se.sketch_ == null) {
+          continue;
+        }
+        if (se.isDecayed()) {
+          ((DecayedFrequencySketch) se.sketch_).advance(nowMs);
+        } else {
+          ((WindowedKllSketch) se.sketch_).advance(nowMs);
+        }
+        ++se.version_;
+      }
+    }
+  }
+
   boolean contains(final String key) {
-     return sketchMap.containsKey(key);
+     return index.byName_.containsKey(key);
   }
 
   SketchEntry getSketch(final String key) {
-    return sketchMap.get(key);
+    return index.byName_.get(key);
   }
 
-  // instantiate the actual sketches, throwing if there's a duplicate key
-  private void createSketches(final List<SketchServerConfig.SketchInfo> list) throws IllegalArgumentException {
-    sketchMap = new HashMap<>(list.size());
+  Collection<SketchEntry> getSketches() {
+    return index.byName_.values();
+  }
+
+  /**
+   * Returns the sketches whose names start with the given prefix, in name order. Only the matching range of
+   * the sorted index is visited.
+   * @param prefix The name prefix
+   * @return A list of matching SketchEntries, possibly empty
+   */
+  List<SketchEntry> getSketchesWithPrefix(@NonNull final String prefix) {
+    final List<SketchEntry> result = new ArrayList<>();
+    for (final Map.Entry<String, SketchEntry> e : index.sorted_.tailMap(prefix).entrySet()) {
+      if (!e.getKey().startsWith(prefix)) {
+        break;
+      }
+      result.add(e.getValue());
+    }
+    return result;
+  }
 
+  /**
+   * Returns the rollups that include the given sketch as a member. Every update or merge applied to the member
+   * must also be applied to each of these.
+   * @param name The member sketch name
+   * @return An array of rollup SketchEntries, possibly empty
+   */
+  SketchEntry[] getRollups(@NonNull final String name) {
+    final SketchEntry[] result = index.rollupsByMember_.get(name);
+    return result != null ? result : NO_ROLLUPS;
+  }
+
+  /**
+   * Returns true if the named sketch is a rollup of other sketches.
+   * @param name The sketch name
+   * @return <tt>true</tt> if the sketch is a rollup, otherwise <tt>false</tt>
+   */
+  boolean isRollup(@NonNull final String name) {
+    return index.membersByRollup_.containsKey(name);
+  }
+
+  /**
+   * Returns the sketches to be drained into the archive each interval.
+   * @return The archived SketchEntries, possibly empty
+   */
+  Collection<SketchEntry> getArchivedSketches() {
+    return index.archived_.values();
+  }
+
+  /**
+   * Returns true if the named sketch is drained into the archive each interval.
+   * @param name The sketch name
+   * @return <tt>true</tt> if the sketch is archived, otherwise <tt>false</tt>
+   */
+  boolean isArchived(@NonNull final String name) {
+    return index.archived_.containsKey(name);
+  }
+
+  /**
+   * Returns the sketches configured with the given tag.
+   * @param tag A tag of the form <tt>key=value</tt>
+   * @return A list of matching SketchEntries, possibly empty
+   */
+  List<SketchEntry> getSketchesWithTag(@NonNull final String tag) {
+    final List<SketchEntry> result = index.byTag_.get(tag);
+    return result != null ? result : Collections.emptyList();
+  }
+
+  /**
+   * Applies a new sketch configuration in place. Sketches with a new name are created, those no longer present
+   * are dropped, and those with an unchanged configuration retain their data. A sketch whose family, type,
+   * or k changed is replaced with a new, empty sketch. The new set of sketches is published atomically once
+   * fully built, so in-flight requests continue against the prior set without blocking.
+   * @param list The new list of sketch definitions
+   * @return A summary with the number of sketches added, removed, changed, and retained, where a changed
+   *         sketch is one whose name remains but is replaced
+   * @throws IllegalArgumentException if the configuration is invalid, in which case nothing changes
+   */
+  synchronized JsonObject reload(@NonNull final List<SketchServerConfig.SketchInfo> list)
+      throws IllegalArgumentException {
+    final Index oldIndex = index;
+    final HashMap<String, SketchEntry> oldMap = oldIndex.byName_;
+    final HashMap<String, SketchEntry> newMap = new HashMap<>(list.size());
+    final List<SketchEntry> newRollups = new ArrayList<>();
+
+    int added = 0;
+    int changed = 0;
+    int retained = 0;
     for (final SketchServerConfig.SketchInfo info : list) {
-      if (sketchMap.containsKey(info.name)) {
+      if (newMap.containsKey(info.name)) {
         throw new IllegalArgumentException("Duplicate sketch key: " + info.name);
       }
 
-      SketchEntry sketchEntry = null;
-      final Family family = BaseSketchesQueryHandler.familyFromString(info.family);
-      final int k = info.k; // to reduce derferences in code later
+      final SketchEntry existing = oldMap.get(info.name);
+      if (existing != null && hasConfig(existing, info) && hasMembers(oldIndex, info)) {
+        newMap.put(info.name, existing);
+        ++retained;
+      } else {
+        final SketchEntry entry = createEntry(info);
+        newMap.put(info.name, entry);
+        if (info.members != null) {
+          newRollups.add(entry);
+        }
+        if (existing != null) {
+          ++changed;
+        } else {
+          ++added;
+        }
+      }
+    }
 
-      switch (family) {
-        case QUICKSELECT:
-          // make a Union so we can handle merges later
-          sketchEntry = new SketchEntry(Family.UNION, ValueType.stringToType(info.type),
-              new SetOperationBuilder().setNominalEntries(1 << k).buildUnion(), info.name, k);
-          break;
+    final Index newIndex = new Index(newMap, list);
+    index = newIndex;
 
-        case HLL:
-          sketchEntry = new SketchEntry(Family.HLL, ValueType.stringToType(info.type),
-              new HllSketch(k), info.name, k);
-          break;
+    // seed new rollups from snapshots of their members' current data, taken before the rollup is locked. Once
+    // published, member writes also reach the rollup, so any that race with this may be counted twice. Only
+    // families that ignore repeated items can absorb that, so the others start empty rather than inflated.
+    for (final SketchEntry rollup : newRollups) {
+      if (!isIdempotent(rollup.family_)) {
+        continue;
+      }
+      final List<MergeHandler.MergeEntry> sources = new ArrayList<>();
+      for (final SketchEntry member : newIndex.membersByRollup_.get(rollup.name_)) {
+        sources.add(MergeHandler.toMergeEntry(member));
+      }
+      synchronized (rollup.name_.intern()) {
+        rollup.getOrCreateSketch();
+        rollup.sketch_ = MergeHandler.unionSketches(rollup.family_, rollup.type_, rollup.configK_, rollup.sketch_,
+            sources);
+      }
+    }
 
-        case CPC:
-          sketchEntry = new SketchEntry(Family.CPC, ValueType.stringToType(info.type),
-              new CpcSketch(k), info.name, k);
-          break;
+    final JsonObject summary = new JsonObject();
+    summary.addProperty(RESPONSE_ADDED_COUNT_FIELD, added);
+    summary.addProperty(RESPONSE_REMOVED_COUNT_FIELD, oldMap.size() - retained - changed);
+    summary.addProperty(RESPONSE_CHANGED_COUNT_FIELD, changed);
+    summary.addProperty(RESPONSE_RETAINED_COUNT_FIELD, retained);
+    return summary;
+  }
 
-        case KLL:
-          sketchEntry = new SketchEntry(Family.KLL, new KllFloatsSketch(k), info.name, k);
-          break;
+  // returns true if applying the same data twice leaves the sketch unchanged
+  private static boolean isIdempotent(final Family family) {
+    return family == Family.QUICKSELECT || family == Family.UNION || family == Family.HLL || family == Family.CPC;
+  }
 
-        case FREQUENCY:
-          sketchEntry = new SketchEntry(Family.FREQUENCY, new ItemsSketch<String>(k), info.name, k);
-          break;
+  // returns true if the entry has the same rollup members, if any, as in the index
+  private static boolean hasMembers(final Index index, final SketchServerConfig.SketchInfo info) {
+    final List<SketchEntry> members = index.membersByRollup_.get(info.name);
+    if (members == null || info.members == null) {
+      return members == null && info.members == null;
+    }
+    final HashSet<String> names = new HashSet<>(Arrays.asList(info.members));
+    if (names.size() != members.size()) {
+      return false;
+    }
+    for (final SketchEntry member : members) {
+      if (!names.contains(member.name_)) {
+        return false;
+      }
+    }
+    return true;
+  }
 
-        case RESERVOIR:
-          sketchEntry = new SketchEntry(Family.RESERVOIR, ReservoirItemsSketch.<String>newInstance(k), info.name, k);
-          break;
+  // returns true if the entry was created from an equivalent configuration
+  private static boolean hasConfig(final SketchEntry entry, final SketchServerConfig.SketchInfo info) {
+    final Family family = BaseSketchesQueryHandler.familyFromString(info.family);
+    final Family entryFamily = family == Family.QUICKSELECT ? Family.UNION : family;
+    final ValueType type = isDistinctCounting(entryFamily) ? ValueType.stringToType(info.type)
+        : itemType(entryFamily, info.type);
+    return entry.family_ == entryFamily && entry.type_ == type && entry.configK_ == info.k
+        && entry.configHra_ == configHra(entryFamily, info)
+        && entry.configMetrics_ == configMetrics(entryFamily, info)
+        && entry.configHalfLife_ == configHalfLife(entryFamily, info)
+        && entry.configWindow_ == configWindow(entryFamily, info);
+  }
 
-        case VAROPT:
-          sketchEntry = new SketchEntry(Family.VAROPT, VarOptItemsSketch.<String>newInstance(k), info.name, k);
-          break;
-      }
+  // req sketches favor accuracy at high ranks unless configured otherwise; other families ignore the setting
+  private static boolean configHra(final Family family, final SketchServerConfig.SketchInfo info) {
+    return family != Family.REQ || info.hra == null || info.hra;
+  }
+
+  // tuple sketches hold a single value per key unless configured otherwise; other families ignore the setting
+  private static int configMetrics(final Family family, final SketchServerConfig.SketchInfo info) {
+    return family != Family.TUPLE || info.metrics == null ? 1 : info.metrics;
+  }
+
+  // only frequent items sketches decay, and only if configured with a half-life
+  private static double configHalfLife(final Family family, final SketchServerConfig.SketchInfo info)
+      throws IllegalArgumentException {
+    if (family != Family.FREQUENCY || info.halfLife == null) {
+      return 0;
+    }
+    if (!(info.halfLife > 0)) {
+      throw new IllegalArgumentException("Decay half-life must be positive for sketch " + info.name);
+    }
+    return info.halfLife;
+  }
+
+  // only kll sketches keep a sliding window, and only if configured with one
+  private static double configWindow(final Family family, final SketchServerConfig.SketchInfo info)
+      throws IllegalArgumentException {
+    if (family != Family.KLL || info.window == null) {
+      return 0;
+    }
+    if (!(info.window > 0)) {
+      throw new IllegalArgumentException("Window must be positive for sketch " + info.name);
+    }
+    return info.window;
+  }
+
+  private static SketchEntry createEntry(final SketchServerConfig.SketchInfo info) {
+    final Family family = BaseSketchesQueryHandler.familyFromString(info.family);
+    final int k = info.k; // to reduce derferences in code later
+
+    // make a Union for theta so we can handle merges later
+    final Family entryFamily = family == Family.QUICKSELECT ? Family.UNION : family;
+    // sketches are only allocated on the first write
+    if (isDistinctCounting(entryFamily)) {
+      return new SketchEntry(entryFamily, ValueType.stringToType(info.type), null, info.name, k, true,
+          configMetrics(entryFamily, info), 0, 0);
+    }
+    return new SketchEntry(entryFamily, itemType(entryFamily, info.type), null, info.name, k,
+        configHra(entryFamily, info), 1, configHalfLife(entryFamily, info), configWindow(entryFamily, info));
+  }
 
-      if (sketchEntry != null) {
-        sketchMap.put(info.name, sketchEntry);
+  // instantiate the actual sketches, throwing if there's a duplicate key
+  private void createSketches(final List<SketchServerConfig.SketchInfo> list) throws IllegalArgumentException {
+    final HashMap<String, SketchEntry> map = new HashMap<>(list.size());
+
+    for (final SketchServerConfig.SketchInfo info : list) {
+      if (map.containsKey(info.name)) {
+        throw new IllegalArgumentException("Duplicate sketch key: " + info.name);
       }
+      map.put(info.name, createEntry(info));
     }
+
+    index = new Index(map, list);
   }
 }
@@ -19,19 +19,32 @@
 
 package org.apache.datasketches.server;
 
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_INGEST_QUEUE_FIELD;
+
 import com.google.gson.JsonObject;
 
 /**
- * Returns a JSON list of sketches held by the server and their types.
+ * Returns a JSON list of sketches held by the server and their types, along with the state of the ingest
+ * queue if updates are applied asynchronously.
  */
 public class StatusHandler extends BaseSketchesQueryHandler {
+  private final IngestQueue queue; // null if updates are applied synchronously
 
   public StatusHandler(final SketchStorage sketches) {
+    this(sketches, null);
+  }
+
+  StatusHandler(final SketchStorage sketches, final IngestQueue queue) {
     super(sketches, true);
+    this.queue = queue;
   }
 
   @Override
   protected JsonObject processQuery(final JsonObject query) {
-    return sketches.listSketches();
+    final JsonObject result = sketches.listSketches();
+    if (queue != null) {
+      result.add(RESPONSE_INGEST_QUEUE_FIELD, queue.getStatus());
+    }
+    return result;
   }
 }
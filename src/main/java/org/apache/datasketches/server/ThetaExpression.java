@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.SketchConstants.*;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.apache.datasketches.Family;
+import org.apache.datasketches.Util;
+import org.apache.datasketches.memory.Memory;
+import org.apache.datasketches.theta.AnotB;
+import org.apache.datasketches.theta.Intersection;
+import org.apache.datasketches.theta.JaccardSimilarity;
+import org.apache.datasketches.theta.SetOperationBuilder;
+import org.apache.datasketches.theta.Sketch;
+import org.apache.datasketches.theta.Union;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Evaluates set expressions over theta sketches. An expression is a JSON Object with an operation and an
+ * array of arguments:
+ * <pre>
+ *   {
+ *     "op": "union" | "intersection" | "anotb" | "jaccard",
+ *     "args": [ "&lt;sketch_name&gt;",
+ *               { "family": "theta", "data": "&lt;base64_encoded_sketch&gt;" },
+ *               { "op": ..., "args": [ ... ] } ],
+ *     "k": &lt;lg_nominal_entries&gt; // optional, union only
+ *   }
+ * </pre>
+ * <tt>anotb</tt> removes each subsequent argument from the first, and <tt>jaccard</tt> takes exactly two
+ * arguments and may appear only at the top level as it does not produce a set. If <tt>k</tt> is not given, a
+ * union is sized to fit the largest input, with a minimum of the library's default.
+ * <p>
+ * Arguments are evaluated in parallel. Each distinct subexpression, including each named sketch, is evaluated
+ * once per memo, so a memo shared by the sub-queries of a request both avoids repeated work and ensures every
+ * reference to a sketch sees the same state.
+ * </p>
+ */
+final class ThetaExpression {
+  private final SketchStorage sketches;
+  private final ConcurrentHashMap<String, CompletableFuture<Sketch>> memo;
+
+  ThetaExpression(final SketchStorage sketches, final ConcurrentHashMap<String, CompletableFuture<Sketch>> memo) {
+    this.sketches = sketches;
+    this.memo = memo;
+  }
+
+  static boolean isJaccard(final JsonObject expression) {
+    return expression.has(QUERY_OP_FIELD) && QUERY_OP_JACCARD.equals(expression.get(QUERY_OP_FIELD).getAsString());
+  }
+
+  /**
+   * Computes the Jaccard similarity of the two arguments of a <tt>jaccard</tt> expression.
+   * @param expression The expression
+   * @return An array with the lower bound, estimate and upper bound of the similarity
+   */
+  double[] jaccard(final JsonObject expression) {
+    final List<Sketch> inputs = evaluateArgs(expression);
+    if (inputs.size() != 2) {
+      throw new IllegalArgumentException("\"" + QUERY_OP_JACCARD + "\" requires exactly two arguments");
+    }
+    return JaccardSimilarity.jaccard(inputs.get(0), inputs.get(1));
+  }
+
+  /**
+   * Evaluates an expression, a sketch name or an encoded sketch.
+   * @param node The element to evaluate
+   * @return The resulting sketch, which must not be modified
+   */
+  Sketch evaluate(final JsonElement node) {
+    final String key = DataQueryHandler.normalizeQuery(node);
+    final CompletableFuture<Sketch> future = new CompletableFuture<>();
+    final CompletableFuture<Sketch> existing = memo.putIfAbsent(key, future);
+    if (existing != null) {
+      try {
+        return existing.join();
+      } catch (final CompletionException e) {
+        throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+      }
+    }
+
+    try {
+      final Sketch result = compute(node);
+      future.complete(result);
+      return result;
+    } catch (final RuntimeException e) {
+      future.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  private Sketch compute(final JsonElement node) {
+    if (node.isJsonPrimitive()) {
+      return readNamedSketch(node.getAsString());
+    }
+    if (!node.isJsonObject()) {
+      throw new IllegalArgumentException("Invalid expression argument: " + node);
+    }
+
+    final JsonObject obj = node.getAsJsonObject();
+    if (obj.has(QUERY_DATA_FIELD)) {
+      if (!obj.has(QUERY_FAMILY_FIELD)
+          || BaseSketchesQueryHandler.familyFromString(obj.get(QUERY_FAMILY_FIELD).getAsString()) != Family.QUICKSELECT) {
+        throw new IllegalArgumentException("Encoded expression arguments must be theta sketches");
+      }
+      return Sketch.wrap(Memory.wrap(Base64.getUrlDecoder().decode(obj.get(QUERY_DATA_FIELD).getAsString())));
+    }
+
+    if (!obj.has(QUERY_OP_FIELD)) {
+      throw new IllegalArgumentException("Expression missing \"" + QUERY_OP_FIELD + "\" field");
+    }
+    final String op = obj.get(QUERY_OP_FIELD).getAsString();
+    final List<Sketch> inputs = evaluateArgs(obj);
+
+    switch (op) {
+      case QUERY_OP_UNION: {
+        final int nominalEntries;
+        if (obj.has(QUERY_MERGE_K_FIELD)) {
+          nominalEntries = 1 << obj.get(QUERY_MERGE_K_FIELD).getAsInt();
+        } else {
+          int maxRetained = Util.DEFAULT_NOMINAL_ENTRIES;
+          for (final Sketch sk : inputs) {
+            maxRetained = Math.max(maxRetained, sk.getRetainedEntries(true));
+          }
+          nominalEntries = Math.min(Util.ceilingPowerOf2(maxRetained),
+              1 << Util.MAX_LG_NOM_LONGS);
+        }
+        final Union union = new SetOperationBuilder().setNominalEntries(nominalEntries).buildUnion();
+        for (final Sketch sk : inputs) {
+          union.union(sk);
+        }
+        return union.getResult();
+      }
+
+      case QUERY_OP_INTERSECTION: {
+        final Intersection intersection = new SetOperationBuilder().buildIntersection();
+        for (final Sketch sk : inputs) {
+          intersection.intersect(sk);
+        }
+        return intersection.getResult();
+      }
+
+      case QUERY_OP_ANOTB: {
+        final AnotB anotb = new SetOperationBuilder().buildANotB();
+        Sketch result = inputs.get(0);
+        for (int i = 1; i < inputs.size(); ++i) {
+          result = anotb.aNotB(result, inputs.get(i));
+        }
+        return result;
+      }
+
+      case QUERY_OP_JACCARD:
+        throw new IllegalArgumentException("\"" + QUERY_OP_JACCARD + "\" may only be used at the top level");
+
+      default:
+        throw new IllegalArgumentException("Unknown set operation: " + op);
+    }
+  }
+
+  private List<Sketch> evaluateArgs(final JsonObject expression) {
+    final JsonElement argsElement = expression.get(QUERY_ARGS_FIELD);
+    if (argsElement == null || !argsElement.isJsonArray() || argsElement.getAsJsonArray().size() == 0) {
+      throw new IllegalArgumentException("Expression requires a non-empty \"" + QUERY_ARGS_FIELD + "\" array");
+    }
+
+    final JsonArray args = argsElement.getAsJsonArray();
+    final List<JsonElement> argList = new ArrayList<>(args.size());
+    args.forEach(argList::add);
+    // ordered, so the results line up with the arguments
+    return argList.parallelStream().map(this::evaluate).collect(Collectors.toList());
+  }
+
+  // reads a read-only wrap of the entry's cached image, which is then safe to use without the lock
+  private Sketch readNamedSketch(final String name) {
+    final SketchStorage.SketchEntry entry = sketches.getSketch(name);
+    if (entry == null) {
+      throw new IllegalArgumentException("Invalid sketch name: " + name);
+    }
+    if (entry.family_ != Family.UNION) {
+      throw new IllegalArgumentException("Set expressions require theta sketches: " + name);
+    }
+
+    final byte[] image;
+    synchronized (name.intern()) {
+      image = entry.readImage();
+    }
+    return Sketch.wrap(Memory.wrap(image));
+  }
+}
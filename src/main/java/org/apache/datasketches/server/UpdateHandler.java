@@ -19,15 +19,29 @@
 
 package org.apache.datasketches.server;
 
+import javax.servlet.http.HttpServletResponse;
+
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.function.Function;
 
+import org.apache.datasketches.Family;
+import org.apache.datasketches.Util;
 import org.apache.datasketches.cpc.CpcSketch;
 import org.apache.datasketches.frequencies.ItemsSketch;
+import org.apache.datasketches.frequencies.LongsSketch;
 import org.apache.datasketches.hll.HllSketch;
 import org.apache.datasketches.kll.KllFloatsSketch;
+import org.apache.datasketches.quantiles.UpdateDoublesSketch;
+import org.apache.datasketches.req.ReqSketch;
 import org.apache.datasketches.sampling.ReservoirItemsSketch;
+import org.apache.datasketches.sampling.ReservoirLongsSketch;
 import org.apache.datasketches.sampling.VarOptItemsSketch;
 import org.apache.datasketches.theta.Union;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesUnion;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesUpdatableSketch;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesUpdatableSketchBuilder;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -55,6 +69,10 @@ import static org.apache.datasketches.server.SketchConstants.*;
  * may contain a mux of weighted and unweighted items, as long s the sketch accepts weighted values.
  * </p>
  * <p>
+ * Tuple sketches take a key along with the values to add for that key, with as many values as configured for
+ * the sketch: <tt>{ "item": &lt;key&gt;, "values": [&lt;value_1&gt;, &lt;value_2&gt;, ...] }</tt>.
+ * </p>
+ * <p>
  * The JSON parsing library does not allow duplicate key names; to send multiple values into the same sketch
  * in a single request, the multi-value option <em>must</em> be used.
  * </p>
@@ -63,10 +81,70 @@ import static org.apache.datasketches.server.SketchConstants.*;
  * if one is encountered at any point in the process. Any updates processed prior to the error will be
  * retained by the server.
  * </p>
+ * <p>
+ * If the server is configured for asynchronous ingest, the sketch names and values are validated and the values
+ * queued for the sketch's applier thread, returning <tt>202 Accepted</tt>. If a queue is full, the request fails with
+ * <tt>503 Service Unavailable</tt>, although values for any sketches earlier in the request remain queued.
+ * </p>
  */
 public class UpdateHandler extends BaseSketchesQueryHandler {
+  /**
+   * Applies input values to a sketch. Each <tt>SketchEntry</tt> holds an <tt>Updater</tt> specific to its
+   * family and value type, created once with the entry, so updates need not dispatch on family or type.
+   */
+  interface Updater {
+    /**
+     * Applies a single value to the sketch.
+     * @param sketch The sketch to update
+     * @param value The value to apply
+     */
+    void update(Object sketch, JsonElement value);
+
+    /**
+     * Applies an array of values to the sketch.
+     * @param sketch The sketch to update
+     * @param values The values to apply
+     */
+    void update(Object sketch, JsonArray values);
+
+    /**
+     * Prepares an array of values before the sketch is locked, so that work which does not need the sketch
+     * does not hold up other writers or readers.
+     * @param values The values to prepare
+     * @param k The configured size parameter of the sketch
+     * @return The prepared values, to be applied under the lock, or null to apply the array with
+     * <tt>update()</tt> instead
+     */
+    default Prepared prepare(final JsonArray values, final int k) {
+      return null;
+    }
+  }
+
+  /**
+   * Values prepared by an <tt>Updater</tt>, ready to be applied to the sketch under its lock.
+   */
+  interface Prepared {
+    /**
+     * Applies the prepared values to the sketch.
+     * @param sketch The sketch to update
+     */
+    void apply(Object sketch);
+  }
+
+  private final IngestQueue queue; // null if updates are applied synchronously
+
   public UpdateHandler(final SketchStorage sketches) {
+    this(sketches, null);
+  }
+
+  UpdateHandler(final SketchStorage sketches, final IngestQueue queue) {
     super(sketches);
+    this.queue = queue;
+  }
+
+  @Override
+  protected int getSuccessStatus() {
+    return queue != null ? HttpServletResponse.SC_ACCEPTED : HttpServletResponse.SC_OK;
   }
 
   @Override
@@ -79,13 +157,14 @@ public class UpdateHandler extends BaseSketchesQueryHandler {
       if (name == null || se == null || data == null) {
         throw new IllegalArgumentException("Attempt to call update with missing name or sketch not found");
       }
+      if (sketches.isRollup(name)) {
+        throw new IllegalArgumentException("Cannot update rollup, update its members instead: " + name);
+      }
 
-      synchronized (name.intern()) {
-        if (data.isJsonArray()) {
-          processBatchUpdate(se, data.getAsJsonArray());
-        } else {
-          processSingleUpdate(se, data);
-        }
+      if (queue != null) {
+        queue.enqueue(se, data);
+      } else {
+        applyUpdate(sketches, se, data);
       }
     }
 
@@ -93,193 +172,770 @@ public class UpdateHandler extends BaseSketchesQueryHandler {
     return null;
   }
 
-  @SuppressWarnings("unchecked")
-  private static void processBatchUpdate(final SketchStorage.SketchEntry entry,
-                                         final JsonArray data) {
-    switch (entry.family_) {
-      case UNION: // theta
-        assert(entry.type_ != null);
-        switch (entry.type_) {
-          case FLOAT: case DOUBLE:
-            for (final JsonElement e : data) { ((Union) entry.sketch_).update(e.getAsDouble()); }
-            break;
-          case INT: case LONG:
-            for (final JsonElement e : data) { ((Union) entry.sketch_).update(e.getAsLong()); }
-            break;
-          case STRING: default:
-            for (final JsonElement e : data) { ((Union) entry.sketch_).update(e.getAsString()); }
-            break;
-        }
-        break;
+  /**
+   * Applies a single value, or an array of values, to a sketch and to any rollups that include it. Each sketch is
+   * locked once for the whole update.
+   * @param sketches The storage holding the sketch
+   * @param se The SketchEntry to update
+   * @param data A single value or JSON Array of values
+   */
+  static void applyUpdate(final SketchStorage sketches, final SketchStorage.SketchEntry se, final JsonElement data) {
+    update(se, data);
+    // rollups see the same values, so they stay current without a separate merge
+    for (final SketchStorage.SketchEntry rollup : sketches.getRollups(se.name_)) {
+      update(rollup, data);
+    }
+  }
 
-      case CPC:
-        assert(entry.type_ != null);
-        switch (entry.type_) {
-          case FLOAT: case DOUBLE:
-            for (final JsonElement e : data) { ((CpcSketch) entry.sketch_).update(e.getAsDouble()); }
-            break;
-          case INT: case LONG:
-            for (final JsonElement e : data) { ((CpcSketch) entry.sketch_).update(e.getAsLong()); }
-            break;
-          case STRING: default:
-            for (final JsonElement e : data) { ((CpcSketch) entry.sketch_).update(e.getAsString()); }
-            break;
-        }
-        break;
+  private static void update(final SketchStorage.SketchEntry se, final JsonElement data) {
+    if (!data.isJsonArray()) {
+      synchronized (se.name_.intern()) {
+        se.updater_.update(se.getOrCreateSketch(), data);
+      }
+      return;
+    }
 
-      case HLL:
-        assert(entry.type_ != null);
-        switch (entry.type_) {
-          case FLOAT: case DOUBLE:
-            for (final JsonElement e : data) { ((HllSketch) entry.sketch_).update(e.getAsDouble()); }
-            break;
-          case INT: case LONG:
-            for (final JsonElement e : data) { ((CpcSketch) entry.sketch_).update(e.getAsLong()); }
-            break;
-          case STRING: default:
-            for (final JsonElement e : data) { ((CpcSketch) entry.sketch_).update(e.getAsString()); }
-            break;
+    final JsonArray values = data.getAsJsonArray();
+    final Prepared prepared = se.updater_.prepare(values, se.configK_);
+    synchronized (se.name_.intern()) {
+      if (prepared != null) {
+        prepared.apply(se.getOrCreateSketch());
+      } else {
+        se.updater_.update(se.getOrCreateSketch(), values);
+      }
+    }
+  }
+
+  /**
+   * Checks that a single value, or an array of values, can be applied to a sketch without applying them. Used
+   * before queueing values for asynchronous ingest, where a failure once dequeued could not be reported.
+   * @param se The SketchEntry the values are for
+   * @param data A single value or JSON Array of values
+   * @throws RuntimeException if a value is not of the type, or in the form, the sketch accepts
+   */
+  static void checkUpdate(final SketchStorage.SketchEntry se, final JsonElement data) {
+    if (data.isJsonArray()) {
+      for (final JsonElement e : data.getAsJsonArray()) {
+        checkValue(se, e);
+      }
+    } else {
+      checkValue(se, data);
+    }
+  }
+
+  // parses the value as its updater would, discarding the result
+  private static void checkValue(final SketchStorage.SketchEntry se, final JsonElement value) {
+    switch (se.family_) {
+      case TUPLE:
+        final JsonObject input = TupleUpdater.checkTupleInput(value);
+        checkItem(se.type_, input.get(QUERY_PAIR_ITEM_FIELD));
+        if (TupleUpdater.parseValues(input.get(QUERY_PAIR_VALUES_FIELD)).length != se.configMetrics_) {
+          throw new IllegalArgumentException("Tuple sketch inputs must all have " + se.configMetrics_ + " values");
         }
-        break;
+        return;
 
-      case KLL:
-        for (final JsonElement e : data) { ((KllFloatsSketch) entry.sketch_).update(e.getAsFloat()); }
-        break;
+      case KLL: case REQ:
+        value.getAsFloat();
+        return;
 
-      case FREQUENCY:
-        for (final JsonElement e : data) {
-          if (e.isJsonObject()) {
-            final JsonObject inputPair = e.getAsJsonObject();
-            if (!inputPair.has(QUERY_PAIR_ITEM_FIELD) || !inputPair.has(QUERY_PAIR_WEIGHT_FIELD)) {
-              throw new IllegalArgumentException("Frequent Items input pairs must include both "
-                  + QUERY_PAIR_ITEM_FIELD + " and " + QUERY_PAIR_WEIGHT_FIELD + " values");
-            }
-            final String item = inputPair.get(QUERY_PAIR_ITEM_FIELD).getAsString();
-            final int weight = inputPair.get(QUERY_PAIR_WEIGHT_FIELD).getAsInt();
-            ((ItemsSketch<String>) entry.sketch_).update(item, weight);
+      case QUANTILES:
+        value.getAsDouble();
+        return;
+
+      case FREQUENCY: case VAROPT:
+        if (value.isJsonObject()) {
+          final JsonObject inputPair = checkInputPair(value, se.family_ == Family.VAROPT ? "VarOpt" : "Frequent Items");
+          checkItem(se.type_ == ValueType.LONG ? ValueType.LONG : ValueType.STRING,
+              inputPair.get(QUERY_PAIR_ITEM_FIELD));
+          if (se.family_ == Family.VAROPT) {
+            checkWeight(inputPair.get(QUERY_PAIR_WEIGHT_FIELD).getAsDouble(), "VarOpt");
           } else {
-            ((ItemsSketch<String>) entry.sketch_).update(e.getAsString());
+            final long weight = se.type_ == ValueType.LONG ? inputPair.get(QUERY_PAIR_WEIGHT_FIELD).getAsLong()
+                : inputPair.get(QUERY_PAIR_WEIGHT_FIELD).getAsInt();
+            checkWeight(weight, "Frequent Items");
+            if (se.isDecayed()) {
+              checkDecayedWeight(weight);
+            }
           }
+          return;
         }
-        break;
+        checkItem(se.type_ == ValueType.LONG ? ValueType.LONG : ValueType.STRING, value);
+        return;
 
       case RESERVOIR:
-        for (final JsonElement e : data) { ((ReservoirItemsSketch<String>) entry.sketch_).update(e.getAsString()); }
-        break;
+        checkItem(se.type_ == ValueType.LONG ? ValueType.LONG : ValueType.STRING, value);
+        return;
 
-      case VAROPT:
-        for (final JsonElement e : data) {
-          if (e.isJsonObject()) {
-            final JsonObject inputPair = e.getAsJsonObject();
-            if (!inputPair.has(QUERY_PAIR_ITEM_FIELD) || !inputPair.has(QUERY_PAIR_WEIGHT_FIELD)) {
-              throw new IllegalArgumentException("VarOpt input pairs must include both "
-                  + QUERY_PAIR_ITEM_FIELD + " and " + QUERY_PAIR_WEIGHT_FIELD + " values");
-            }
-            final String item = inputPair.get(QUERY_PAIR_ITEM_FIELD).getAsString();
-            final double weight = inputPair.get(QUERY_PAIR_WEIGHT_FIELD).getAsDouble();
-            ((VarOptItemsSketch<String>) entry.sketch_).update(item, weight);
-          } else {
-            ((VarOptItemsSketch<String>) entry.sketch_).update(e.getAsString(), 1.0);
-          }
-        }
-        break;
+      default: // distinct counting
+        checkItem(se.type_, value);
+    }
+  }
 
-      default:
-        throw new IllegalArgumentException("Unsupported sketch type: " + entry.family_);
+  private static void checkItem(final ValueType type, final JsonElement item) {
+    switch (type) {
+      case FLOAT: case DOUBLE:
+        item.getAsDouble();
+        return;
+      case INT: case LONG:
+        item.getAsLong();
+        return;
+      case STRING: default:
+        item.getAsString();
     }
   }
 
-  @SuppressWarnings("unchecked")
-  private static void processSingleUpdate(final SketchStorage.SketchEntry entry,
-                                          final JsonElement data) {
-    switch (entry.family_) {
-      case UNION:
-        assert(entry.type_ != null);
-        switch (entry.type_) {
+  /**
+   * Creates the <tt>Updater</tt> for a sketch family and, for distinct counting and items sketches, value type.
+   * @param family The family of the <tt>SketchEntry</tt>
+   * @param type The value type of the <tt>SketchEntry</tt>, or null if not applicable
+   * @param timed Whether the sketch is held in a time-dependent wrapper, either a <tt>DecayedFrequencySketch</tt>
+   *              for frequent items or a <tt>WindowedKllSketch</tt> for kll
+   * @return An <tt>Updater</tt> for the given sketch configuration
+   */
+  static Updater createUpdater(final Family family, final ValueType type, final boolean timed) {
+    switch (family) {
+      case UNION: // theta
+        switch (type) {
           case FLOAT: case DOUBLE:
-            ((Union) entry.sketch_).update(data.getAsDouble());
-            break;
+            return new ThetaDoubleUpdater();
           case INT: case LONG:
-            ((Union) entry.sketch_).update(data.getAsLong());
-            break;
+            return new ThetaLongUpdater();
           case STRING: default:
-            ((Union) entry.sketch_).update(data.getAsString());
-            break;
+            return new ThetaStringUpdater();
         }
-        break;
 
       case CPC:
-        assert(entry.type_ != null);
-        switch (entry.type_) {
+        switch (type) {
           case FLOAT: case DOUBLE:
-            ((CpcSketch) entry.sketch_).update(data.getAsDouble());
-            break;
+            return new CpcDoubleUpdater();
           case INT: case LONG:
-            ((CpcSketch) entry.sketch_).update(data.getAsLong());
-            break;
+            return new CpcLongUpdater();
           case STRING: default:
-            ((CpcSketch) entry.sketch_).update(data.getAsString());
-            break;
+            return new CpcStringUpdater();
         }
-        break;
 
       case HLL:
-        assert(entry.type_ != null);
-        switch (entry.type_) {
+        switch (type) {
+          case FLOAT: case DOUBLE:
+            return new HllDoubleUpdater();
+          case INT: case LONG:
+            return new HllLongUpdater();
+          case STRING: default:
+            return new HllStringUpdater();
+        }
+
+      case TUPLE:
+        switch (type) {
           case FLOAT: case DOUBLE:
-            ((HllSketch) entry.sketch_).update(data.getAsDouble());
-            break;
+            return new TupleUpdater((sk, key, values) -> sk.update(key.getAsDouble(), values));
           case INT: case LONG:
-            ((HllSketch) entry.sketch_).update(data.getAsLong());
-            break;
+            return new TupleUpdater((sk, key, values) -> sk.update(key.getAsLong(), values));
           case STRING: default:
-            ((HllSketch) entry.sketch_).update(data.getAsString());
-            break;
+            return new TupleUpdater((sk, key, values) -> sk.update(key.getAsString(), values));
         }
-        break;
 
       case KLL:
-        ((KllFloatsSketch) entry.sketch_).update(data.getAsFloat());
-        break;
+        return timed ? new WindowedKllUpdater() : new KllUpdater();
+
+      case REQ:
+        return new ReqUpdater();
+
+      case QUANTILES:
+        return new DoublesUpdater();
 
       case FREQUENCY:
-        if (data.isJsonObject()) {
-          final JsonObject inputPair = data.getAsJsonObject();
-          if (!inputPair.has(QUERY_PAIR_ITEM_FIELD) || !inputPair.has(QUERY_PAIR_WEIGHT_FIELD)) {
-            throw new IllegalArgumentException("Frequent Items input pairs must include both "
-                + QUERY_PAIR_ITEM_FIELD + " and " + QUERY_PAIR_WEIGHT_FIELD + " values");
-          }
-          final String item = inputPair.get(QUERY_PAIR_ITEM_FIELD).getAsString();
-          final int weight = inputPair.get(QUERY_PAIR_WEIGHT_FIELD).getAsInt();
-          ((ItemsSketch<String>) entry.sketch_).update(item, weight);
-        } else {
-          ((ItemsSketch<String>) entry.sketch_).update(data.getAsString());
+        if (timed) {
+          return new DecayedFrequencyUpdater(type == ValueType.LONG);
         }
-        break;
+        return type == ValueType.LONG ? new FrequencyLongsUpdater() : new FrequencyUpdater();
 
       case RESERVOIR:
-        ((ReservoirItemsSketch<String>) entry.sketch_).update(data.getAsString());
-        break;
+        return type == ValueType.LONG ? new ReservoirLongsUpdater() : new ReservoirUpdater();
 
       case VAROPT:
-        if (data.isJsonObject()) {
-          final JsonObject inputPair = data.getAsJsonObject();
-          if (!inputPair.has(QUERY_PAIR_ITEM_FIELD) || !inputPair.has(QUERY_PAIR_WEIGHT_FIELD)) {
-            throw new IllegalArgumentException("VarOpt input pairs must include both "
-                + QUERY_PAIR_ITEM_FIELD + " and " + QUERY_PAIR_WEIGHT_FIELD + " values");
-          }
-          final String item = inputPair.get(QUERY_PAIR_ITEM_FIELD).getAsString();
-          final double weight = inputPair.get(QUERY_PAIR_WEIGHT_FIELD).getAsDouble();
-          ((VarOptItemsSketch<String>) entry.sketch_).update(item, weight);
+        return type == ValueType.LONG ? new VarOptUpdater<>(JsonElement::getAsLong)
+            : new VarOptUpdater<>(JsonElement::getAsString);
+
+      default:
+        throw new IllegalArgumentException("Unsupported sketch type: " + family);
+    }
+  }
+
+  // returns the input pair object after checking that it has both an item and a weight
+  private static JsonObject checkInputPair(final JsonElement value, final String familyName) {
+    final JsonObject inputPair = value.getAsJsonObject();
+    if (!inputPair.has(QUERY_PAIR_ITEM_FIELD) || !inputPair.has(QUERY_PAIR_WEIGHT_FIELD)) {
+      throw new IllegalArgumentException(familyName + " input pairs must include both "
+          + QUERY_PAIR_ITEM_FIELD + " and " + QUERY_PAIR_WEIGHT_FIELD + " values");
+    }
+    return inputPair;
+  }
+
+  private static final class ThetaDoubleUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      ((Union) sketch).update(value.getAsDouble());
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      final Union sk = (Union) sketch;
+      final LongHashSet seen = new LongHashSet(values.size());
+      for (final JsonElement e : values) {
+        final double v = e.getAsDouble();
+        if (seen.add(Double.doubleToLongBits(v))) { sk.update(v); }
+      }
+    }
+  }
+
+  private static final class ThetaLongUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      ((Union) sketch).update(value.getAsLong());
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      final Union sk = (Union) sketch;
+      final LongHashSet seen = new LongHashSet(values.size());
+      for (final JsonElement e : values) {
+        final long v = e.getAsLong();
+        if (seen.add(v)) { sk.update(v); }
+      }
+    }
+  }
+
+  private static final class ThetaStringUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      ((Union) sketch).update(value.getAsString());
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      final Union sk = (Union) sketch;
+      final HashSet<String> seen = new HashSet<>(values.size() * 2);
+      for (final JsonElement e : values) {
+        final String v = e.getAsString();
+        if (seen.add(v)) { sk.update(v); }
+      }
+    }
+  }
+
+  private static final class CpcDoubleUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      ((CpcSketch) sketch).update(value.getAsDouble());
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      final CpcSketch sk = (CpcSketch) sketch;
+      final LongHashSet seen = new LongHashSet(values.size());
+      for (final JsonElement e : values) {
+        final double v = e.getAsDouble();
+        if (seen.add(Double.doubleToLongBits(v))) { sk.update(v); }
+      }
+    }
+  }
+
+  private static final class CpcLongUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      ((CpcSketch) sketch).update(value.getAsLong());
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      final CpcSketch sk = (CpcSketch) sketch;
+      final LongHashSet seen = new LongHashSet(values.size());
+      for (final JsonElement e : values) {
+        final long v = e.getAsLong();
+        if (seen.add(v)) { sk.update(v); }
+      }
+    }
+  }
+
+  private static final class CpcStringUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      ((CpcSketch) sketch).update(value.getAsString());
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      final CpcSketch sk = (CpcSketch) sketch;
+      final HashSet<String> seen = new HashSet<>(values.size() * 2);
+      for (final JsonElement e : values) {
+        final String v = e.getAsString();
+        if (seen.add(v)) { sk.update(v); }
+      }
+    }
+  }
+
+  private static final class HllDoubleUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      ((HllSketch) sketch).update(value.getAsDouble());
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      final HllSketch sk = (HllSketch) sketch;
+      final LongHashSet seen = new LongHashSet(values.size());
+      for (final JsonElement e : values) {
+        final double v = e.getAsDouble();
+        if (seen.add(Double.doubleToLongBits(v))) { sk.update(v); }
+      }
+    }
+  }
+
+  private static final class HllLongUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      ((HllSketch) sketch).update(value.getAsLong());
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      final HllSketch sk = (HllSketch) sketch;
+      final LongHashSet seen = new LongHashSet(values.size());
+      for (final JsonElement e : values) {
+        final long v = e.getAsLong();
+        if (seen.add(v)) { sk.update(v); }
+      }
+    }
+  }
+
+  private static final class HllStringUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      ((HllSketch) sketch).update(value.getAsString());
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      final HllSketch sk = (HllSketch) sketch;
+      final HashSet<String> seen = new HashSet<>(values.size() * 2);
+      for (final JsonElement e : values) {
+        final String v = e.getAsString();
+        if (seen.add(v)) { sk.update(v); }
+      }
+    }
+  }
+
+  /**
+   * Applies one key and its values to an updatable tuple sketch, hashing the key as its value type requires.
+   */
+  private interface TupleKeyUpdater {
+    void update(ArrayOfDoublesUpdatableSketch sketch, JsonElement key, double[] values);
+  }
+
+  // the stored sketch is a union so it can also be a merge target, so inputs are first collected in a sketch
+  // of their own, which hashes each key once and sums the values of repeated keys before locking
+  private static final class TupleUpdater implements Updater {
+    private static final int MIN_BATCH_NOMINAL_ENTRIES = 16;
+
+    private final TupleKeyUpdater keyUpdater_;
+
+    TupleUpdater(final TupleKeyUpdater keyUpdater) {
+      keyUpdater_ = keyUpdater;
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      final JsonArray values = new JsonArray(1);
+      values.add(value);
+      update(sketch, values);
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      union(sketch, collect(values, values.size()));
+    }
+
+    @Override
+    public Prepared prepare(final JsonArray values, final int k) {
+      final ArrayOfDoublesUpdatableSketch batch = collect(values, Math.min(values.size(), 1 << k));
+      return sketch -> union(sketch, batch);
+    }
+
+    // a batch with at least as many nominal entries as keys stays exact, leaving any sampling to the union
+    private ArrayOfDoublesUpdatableSketch collect(final JsonArray values, final int maxKeys) {
+      final int nominalEntries = Util.ceilingPowerOf2(Math.max(maxKeys, MIN_BATCH_NOMINAL_ENTRIES));
+      ArrayOfDoublesUpdatableSketch batch = null;
+      for (final JsonElement e : values) {
+        final JsonObject input = checkTupleInput(e);
+        final double[] metrics = parseValues(input.get(QUERY_PAIR_VALUES_FIELD));
+        if (batch == null) {
+          batch = new ArrayOfDoublesUpdatableSketchBuilder().setNominalEntries(nominalEntries)
+              .setNumberOfValues(metrics.length).build();
+        } else if (metrics.length != batch.getNumValues()) {
+          throw new IllegalArgumentException("Tuple sketch inputs must all have " + batch.getNumValues() + " values");
+        }
+        keyUpdater_.update(batch, input.get(QUERY_PAIR_ITEM_FIELD), metrics);
+      }
+      return batch;
+    }
+
+    private static void union(final Object sketch, final ArrayOfDoublesUpdatableSketch batch) {
+      // an empty batch has nothing to add; the union rejects a batch with the wrong number of values
+      if (batch != null) {
+        ((ArrayOfDoublesUnion) sketch).union(batch);
+      }
+    }
+
+    static JsonObject checkTupleInput(final JsonElement value) {
+      if (!value.isJsonObject() || !value.getAsJsonObject().has(QUERY_PAIR_ITEM_FIELD)
+          || !value.getAsJsonObject().has(QUERY_PAIR_VALUES_FIELD)) {
+        throw new IllegalArgumentException("Tuple inputs must include both " + QUERY_PAIR_ITEM_FIELD + " and "
+            + QUERY_PAIR_VALUES_FIELD);
+      }
+      return value.getAsJsonObject();
+    }
+
+    static double[] parseValues(final JsonElement element) {
+      final JsonArray array = element.getAsJsonArray();
+      final double[] values = new double[array.size()];
+      for (int i = 0; i < values.length; ++i) {
+        values[i] = array.get(i).getAsDouble();
+      }
+      return values;
+    }
+  }
+
+  // values are parsed before locking; sketching a batch first and merging it would cost more than it saves
+  private static final class KllUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      ((KllFloatsSketch) sketch).update(value.getAsFloat());
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      prepare(values, 0).apply(sketch);
+    }
+
+    @Override
+    public Prepared prepare(final JsonArray values, final int k) {
+      final float[] floats = parseFloats(values);
+      return sketch -> {
+        final KllFloatsSketch sk = (KllFloatsSketch) sketch;
+        for (final float f : floats) { sk.update(f); }
+      };
+    }
+  }
+
+  private static float[] parseFloats(final JsonArray values) {
+    final float[] floats = new float[values.size()];
+    for (int i = 0; i < floats.length; ++i) {
+      floats[i] = values.get(i).getAsFloat();
+    }
+    return floats;
+  }
+
+  // values go into the open bucket of the window, prepared as for a plain kll sketch
+  private static final class WindowedKllUpdater implements Updater {
+    private final KllUpdater kll_ = new KllUpdater();
+
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      kll_.update(((WindowedKllSketch) sketch).getCurrent(), value);
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      kll_.update(((WindowedKllSketch) sketch).getCurrent(), values);
+    }
+
+    @Override
+    public Prepared prepare(final JsonArray values, final int k) {
+      final Prepared prepared = kll_.prepare(values, k);
+      return sketch -> prepared.apply(((WindowedKllSketch) sketch).getCurrent());
+    }
+  }
+
+  // values are parsed before locking, as for kll
+  private static final class ReqUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      ((ReqSketch) sketch).update(value.getAsFloat());
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      prepare(values, 0).apply(sketch);
+    }
+
+    @Override
+    public Prepared prepare(final JsonArray values, final int k) {
+      final float[] floats = parseFloats(values);
+      return sketch -> {
+        final ReqSketch sk = (ReqSketch) sketch;
+        for (final float f : floats) { sk.update(f); }
+      };
+    }
+  }
+
+  private static final class DoublesUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      ((UpdateDoublesSketch) sketch).update(value.getAsDouble());
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      prepare(values, 0).apply(sketch);
+    }
+
+    @Override
+    public Prepared prepare(final JsonArray values, final int k) {
+      final double[] doubles = new double[values.size()];
+      for (int i = 0; i < doubles.length; ++i) {
+        doubles[i] = values.get(i).getAsDouble();
+      }
+      return sketch -> {
+        final UpdateDoublesSketch sk = (UpdateDoublesSketch) sketch;
+        for (final double d : doubles) { sk.update(d); }
+      };
+    }
+  }
+
+  private static final class FrequencyUpdater implements Updater {
+    @Override
+    @SuppressWarnings("unchecked")
+    public void update(final Object sketch, final JsonElement value) {
+      update((ItemsSketch<String>) sketch, value, 1);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void update(final Object sketch, final JsonArray values) {
+      update((ItemsSketch<String>) sketch, values, 1);
+    }
+
+    // counts are additive, so each distinct item in a batch is applied once with its total weight
+    static void update(final ItemsSketch<String> sketch, final JsonArray values, final long unitWeight) {
+      final HashMap<String, long[]> counts = new HashMap<>();
+      for (final JsonElement e : values) {
+        final long[] count;
+        final long weight;
+        if (e.isJsonObject()) {
+          final JsonObject inputPair = checkInputPair(e, "Frequent Items");
+          count = counts.computeIfAbsent(inputPair.get(QUERY_PAIR_ITEM_FIELD).getAsString(), x -> new long[1]);
+          weight = inputPair.get(QUERY_PAIR_WEIGHT_FIELD).getAsInt();
+          checkWeight(weight, "Frequent Items");
         } else {
-          ((VarOptItemsSketch<String>) entry.sketch_).update(data.getAsString(), 1.0);
+          count = counts.computeIfAbsent(e.getAsString(), x -> new long[1]);
+          weight = 1;
+        }
+        count[0] = addWeight(count[0], scaleWeight(weight, unitWeight));
+      }
+      for (final Map.Entry<String, long[]> c : counts.entrySet()) {
+        if (c.getValue()[0] != 0) {
+          sketch.update(c.getKey(), c.getValue()[0]);
         }
-        break;
+      }
+    }
 
-      default:
-        throw new IllegalArgumentException("Unsupported sketch type: " + entry.family_);
+    static void update(final ItemsSketch<String> sketch, final JsonElement value, final long unitWeight) {
+      if (value.isJsonObject()) {
+        final JsonObject inputPair = checkInputPair(value, "Frequent Items");
+        final String item = inputPair.get(QUERY_PAIR_ITEM_FIELD).getAsString();
+        final int weight = inputPair.get(QUERY_PAIR_WEIGHT_FIELD).getAsInt();
+        checkWeight(weight, "Frequent Items");
+        sketch.update(item, scaleWeight(weight, unitWeight));
+      } else {
+        sketch.update(value.getAsString(), unitWeight);
+      }
     }
   }
 
-}
+  private static final class FrequencyLongsUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      update((LongsSketch) sketch, value, 1);
+    }
+
+    // LongsSketch already counts in a primitive hash map, so there is nothing to gain from aggregating first
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      update((LongsSketch) sketch, values, 1);
+    }
+
+    static void update(final LongsSketch sketch, final JsonArray values, final long unitWeight) {
+      for (final JsonElement e : values) { update(sketch, e, unitWeight); }
+    }
+
+    static void update(final LongsSketch sketch, final JsonElement value, final long unitWeight) {
+      if (value.isJsonObject()) {
+        final JsonObject inputPair = checkInputPair(value, "Frequent Items");
+        final long item = inputPair.get(QUERY_PAIR_ITEM_FIELD).getAsLong();
+        final long weight = inputPair.get(QUERY_PAIR_WEIGHT_FIELD).getAsLong();
+        checkWeight(weight, "Frequent Items");
+        sketch.update(item, scaleWeight(weight, unitWeight));
+      } else {
+        sketch.update(value.getAsLong(), unitWeight);
+      }
+    }
+  }
+
+  /**
+   * Returns a weight scaled by the unit weight of a decayed frequent items sketch. Plain sketches have a unit
+   * weight of 1 and are not scaled, while decayed sketches only accept weights up to
+   * <tt>DecayedFrequencySketch.MAX_WEIGHT</tt>.
+   * @param weight The weight of an input
+   * @param unitWeight The scaled weight of a single item
+   * @return The weight to apply to the underlying sketch
+   */
+  static long scaleWeight(final long weight, final long unitWeight) {
+    if (unitWeight == 1) {
+      return weight;
+    }
+    checkDecayedWeight(weight);
+    try {
+      return Math.multiplyExact(weight, unitWeight);
+    } catch (final ArithmeticException e) {
+      throw new IllegalArgumentException("Weight is too large: " + weight);
+    }
+  }
+
+  private static void checkDecayedWeight(final long weight) {
+    if (weight > DecayedFrequencySketch.MAX_WEIGHT) {
+      throw new IllegalArgumentException("Weights for decayed Frequent Items sketches must not exceed "
+          + DecayedFrequencySketch.MAX_WEIGHT + ", found: " + weight);
+    }
+  }
+
+  // frequent items and VarOpt sketches only count or sample positive weights, so a zero or negative weight is
+  // rejected before it can be folded into a batch total
+  private static void checkWeight(final long weight, final String familyName) {
+    if (weight <= 0) {
+      throw new IllegalArgumentException(familyName + " weights must be positive, found: " + weight);
+    }
+  }
+
+  private static void checkWeight(final double weight, final String familyName) {
+    if (!(weight > 0)) {
+      throw new IllegalArgumentException(familyName + " weights must be positive, found: " + weight);
+    }
+  }
+
+  // sums the weights of a repeated item within a batch
+  private static long addWeight(final long total, final long weight) {
+    try {
+      return Math.addExact(total, weight);
+    } catch (final ArithmeticException e) {
+      throw new IllegalArgumentException("Total weight of a repeated item is too large");
+    }
+  }
+
+  // weights are scaled up by the sketch's current unit weight, so that older counts are worth less in comparison
+  private static final class DecayedFrequencyUpdater implements Updater {
+    private final boolean longItems_;
+
+    DecayedFrequencyUpdater(final boolean longItems) {
+      longItems_ = longItems;
+    }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public void update(final Object sketch, final JsonElement value) {
+      final DecayedFrequencySketch sk = (DecayedFrequencySketch) sketch;
+      if (longItems_) {
+        FrequencyLongsUpdater.update((LongsSketch) sk.getSketch(), value, sk.getUnitWeight());
+      } else {
+        FrequencyUpdater.update((ItemsSketch<String>) sk.getSketch(), value, sk.getUnitWeight());
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void update(final Object sketch, final JsonArray values) {
+      final DecayedFrequencySketch sk = (DecayedFrequencySketch) sketch;
+      if (longItems_) {
+        FrequencyLongsUpdater.update((LongsSketch) sk.getSketch(), values, sk.getUnitWeight());
+      } else {
+        FrequencyUpdater.update((ItemsSketch<String>) sk.getSketch(), values, sk.getUnitWeight());
+      }
+    }
+  }
+
+  private static final class ReservoirUpdater implements Updater {
+    @Override
+    @SuppressWarnings("unchecked")
+    public void update(final Object sketch, final JsonElement value) {
+      ((ReservoirItemsSketch<String>) sketch).update(value.getAsString());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void update(final Object sketch, final JsonArray values) {
+      final ReservoirItemsSketch<String> sk = (ReservoirItemsSketch<String>) sketch;
+      for (final JsonElement e : values) { sk.update(e.getAsString()); }
+    }
+  }
+
+  private static final class ReservoirLongsUpdater implements Updater {
+    @Override
+    public void update(final Object sketch, final JsonElement value) {
+      ((ReservoirLongsSketch) sketch).update(value.getAsLong());
+    }
+
+    @Override
+    public void update(final Object sketch, final JsonArray values) {
+      final ReservoirLongsSketch sk = (ReservoirLongsSketch) sketch;
+      for (final JsonElement e : values) { sk.update(e.getAsLong()); }
+    }
+  }
+
+  // the library has no primitive VarOpt sketch, so long items are boxed in a VarOptItemsSketch<Long>
+  private static final class VarOptUpdater<T> implements Updater {
+    private final Function<JsonElement, T> parser_;
+
+    VarOptUpdater(final Function<JsonElement, T> parser) {
+      parser_ = parser;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void update(final Object sketch, final JsonElement value) {
+      update((VarOptItemsSketch<T>) sketch, value);
+    }
+
+    // each distinct item in a batch is offered once with its total weight, which keeps subset sum estimates
+    // unbiased while sampling far fewer items from skewed batches
+    @Override
+    @SuppressWarnings("unchecked")
+    public void update(final Object sketch, final JsonArray values) {
+      final VarOptItemsSketch<T> sk = (VarOptItemsSketch<T>) sketch;
+      final HashMap<T, double[]> weights = new HashMap<>();
+      for (final JsonElement e : values) {
+        if (e.isJsonObject()) {
+          final JsonObject inputPair = checkInputPair(e, "VarOpt");
+          final double weight = inputPair.get(QUERY_PAIR_WEIGHT_FIELD).getAsDouble();
+          checkWeight(weight, "VarOpt");
+          weights.computeIfAbsent(parser_.apply(inputPair.get(QUERY_PAIR_ITEM_FIELD)), x -> new double[1])[0]
+              += weight;
+        } else {
+          weights.computeIfAbsent(parser_.apply(e), x -> new double[1])[0] += 1.0;
+        }
+      }
+      for (final Map.Entry<T, double[]> w : weights.entrySet()) {
+        sk.update(w.getKey(), w.getValue()[0]);
+      }
+    }
+
+    private void update(final VarOptItemsSketch<T> sketch, final JsonElement value) {
+      if (value.isJsonObject()) {
+        final JsonObject inputPair = checkInputPair(value, "VarOpt");
+        final T item = parser_.apply(inputPair.get(QUERY_PAIR_ITEM_FIELD));
+        final double weight = inputPair.get(QUERY_PAIR_WEIGHT_FIELD).getAsDouble();
+        checkWeight(weight, "VarOpt");
+        sketch.update(item, weight);
+      } else {
+        sketch.update(parser_.apply(value), 1.0);
+      }
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import java.util.ArrayList;
+
+import org.apache.datasketches.kll.KllFloatsSketch;
+
+/**
+ * A KLL sketch of the values received over a sliding window of time. Values go into an open bucket, which is
+ * closed each time the sketch is advanced. Closed buckets are kept in time order as an exponential histogram:
+ * once there are more than <tt>MAX_BUCKETS_PER_LEVEL</tt> buckets of the same level, the two oldest are merged
+ * into one of the next level, so each level spans twice the intervals of the one below. A query over any
+ * recent window then merges only the buckets that overlap it, of which there are O(log window) rather than one
+ * per interval.
+ * <p>
+ * The oldest bucket merged for a window may begin before the window does, so results cover at least the
+ * requested window and report where the included data starts. Buckets ending before the configured window are
+ * dropped when the sketch is advanced.
+ * </p>
+ */
+final class WindowedKllSketch {
+  // a level is merged up once it exceeds this many buckets, trading query cost against how closely a window fits
+  static final int MAX_BUCKETS_PER_LEVEL = 4;
+
+  private static final class Bucket {
+    final long startMs_;
+    long endMs_;
+    int level_;
+    final KllFloatsSketch sketch_;
+
+    Bucket(final long startMs, final long endMs, final KllFloatsSketch sketch) {
+      startMs_ = startMs;
+      endMs_ = endMs;
+      sketch_ = sketch;
+    }
+  }
+
+  private final int k_;
+  private final long windowMs_;
+  private final ArrayList<Bucket> buckets_; // closed buckets, oldest first
+  private KllFloatsSketch current_;
+  private long currentStartMs_;
+  private long nowMs_;
+
+  WindowedKllSketch(final int k, final long windowMs, final long nowMs) {
+    if (windowMs <= 0) {
+      throw new IllegalArgumentException("Window must be positive, found: " + windowMs);
+    }
+    k_ = k;
+    windowMs_ = windowMs;
+    buckets_ = new ArrayList<>();
+    current_ = new KllFloatsSketch(k);
+    currentStartMs_ = nowMs;
+    nowMs_ = nowMs;
+  }
+
+  /**
+   * Returns the sketch receiving values at the current time. It is replaced on the next advance, so a
+   * reference must not be kept past the sketch lock.
+   * @return The open bucket's sketch
+   */
+  KllFloatsSketch getCurrent() {
+    return current_;
+  }
+
+  /**
+   * Closes the open bucket as of the given time, merging older buckets as needed and dropping those that
+   * have left the window. Times earlier than the current time are ignored.
+   * @param nowMs The new current time in milliseconds
+   */
+  void advance(final long nowMs) {
+    if (nowMs <= nowMs_) {
+      return;
+    }
+    nowMs_ = nowMs;
+    if (!current_.isEmpty()) {
+      buckets_.add(new Bucket(currentStartMs_, nowMs, current_));
+      current_ = new KllFloatsSketch(k_);
+      compact();
+    }
+    currentStartMs_ = nowMs;
+
+    int expired = 0;
+    while (expired < buckets_.size() && buckets_.get(expired).endMs_ <= nowMs - windowMs_) {
+      ++expired;
+    }
+    buckets_.subList(0, expired).clear();
+  }
+
+  /**
+   * Returns a new sketch of the values received over at least the given window before the current time.
+   * @param windowMs The window length in milliseconds, at most the configured window for a complete result
+   * @return A sketch merging the open bucket with each closed bucket overlapping the window
+   */
+  KllFloatsSketch getWindow(final long windowMs) {
+    final KllFloatsSketch result = new KllFloatsSketch(k_);
+    result.merge(current_);
+    for (int i = buckets_.size() - 1; i >= 0 && buckets_.get(i).endMs_ > nowMs_ - windowMs; --i) {
+      result.merge(buckets_.get(i).sketch_);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the time from which <tt>getWindow()</tt> includes all values received, which is at or before the
+   * start of the requested window unless that precedes the oldest data kept.
+   * @param windowMs The window length in milliseconds
+   * @return The start of the data included for the window, in milliseconds
+   */
+  long getWindowStart(final long windowMs) {
+    long startMs = currentStartMs_;
+    for (int i = buckets_.size() - 1; i >= 0 && buckets_.get(i).endMs_ > nowMs_ - windowMs; --i) {
+      startMs = buckets_.get(i).startMs_;
+    }
+    return startMs;
+  }
+
+  int getNumBuckets() {
+    return buckets_.size();
+  }
+
+  boolean isEmpty() {
+    return current_.isEmpty() && buckets_.isEmpty();
+  }
+
+  // levels never decrease with age, so each level is a contiguous run ending where the level below begins
+  private void compact() {
+    int end = buckets_.size();
+    for (int level = 0; end > 0; ++level) {
+      int start = end;
+      while (start > 0 && buckets_.get(start - 1).level_ == level) {
+        --start;
+      }
+      if (end - start <= MAX_BUCKETS_PER_LEVEL) {
+        return;
+      }
+      final Bucket older = buckets_.get(start);
+      final Bucket newer = buckets_.remove(start + 1);
+      older.sketch_.merge(newer.sketch_);
+      older.endMs_ = newer.endMs_;
+      older.level_ = level + 1;
+      end = start + 1;
+    }
+  }
+}
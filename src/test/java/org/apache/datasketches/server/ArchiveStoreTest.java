@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.ArchiveStore.DAY;
+import static org.apache.datasketches.server.ArchiveStore.HOUR;
+import static org.apache.datasketches.server.ArchiveStore.LEVEL_MS;
+import static org.apache.datasketches.server.ArchiveStore.MINUTE;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.apache.datasketches.memory.Memory;
+import org.testng.annotations.Test;
+
+public class ArchiveStoreTest {
+  private static final long DAY0 = 19000 * LEVEL_MS[DAY];
+
+  // each image holds the minute it was written for
+  private static byte[] image(final long startMs) {
+    return ByteBuffer.allocate(Long.BYTES).putLong(startMs).array();
+  }
+
+  private static long[] starts(final List<ArchiveStore.Record> records) {
+    return imageStarts(ArchiveStore.read(records));
+  }
+
+  private static long[] imageStarts(final List<Memory> images) {
+    final long[] result = new long[images.size()];
+    int i = 0;
+    for (final Memory image : images) {
+      assertEquals(image.getCapacity(), Long.BYTES);
+      final byte[] bytes = new byte[Long.BYTES];
+      image.getByteArray(0, bytes, 0, Long.BYTES);
+      result[i++] = ByteBuffer.wrap(bytes).getLong();
+    }
+    return result;
+  }
+
+  @Test
+  public void coarsestCover() throws IOException {
+    final Path dir = Files.createTempDirectory("archiveTest");
+    try (final ArchiveStore store = new ArchiveStore(dir)) {
+      // two hours of minutes, with only the first hour compacted
+      for (int m = 0; m < 120; ++m) {
+        final long start = DAY0 + m * LEVEL_MS[MINUTE];
+        store.append("a", MINUTE, start, image(start));
+      }
+      store.append("a", HOUR, DAY0, image(DAY0));
+
+      List<ArchiveStore.Record> records = store.cover("a", DAY, DAY0, DAY0 + 2 * LEVEL_MS[HOUR]);
+      assertEquals(records.size(), 61);
+      assertEquals(records.get(0).startMs_, DAY0);
+      assertEquals(records.get(0).length_, Long.BYTES);
+      assertEquals(starts(records)[1], DAY0 + LEVEL_MS[HOUR]);
+
+      // partial minutes at either end are included in full, and finer levels fill in around whole hours
+      records = store.cover("a", DAY, DAY0 - 1, DAY0 + LEVEL_MS[HOUR] + 1);
+      assertEquals(starts(records), new long[] {DAY0, DAY0 + LEVEL_MS[HOUR]});
+      records = store.cover("a", DAY, DAY0 + 90 * 1000, DAY0 + 150 * 1000);
+      assertEquals(starts(records), new long[] {DAY0 + LEVEL_MS[MINUTE], DAY0 + 2 * LEVEL_MS[MINUTE]});
+
+      // limited to minutes, as when compacting an hour
+      assertEquals(store.cover("a", MINUTE, DAY0, DAY0 + LEVEL_MS[HOUR]).size(), 60);
+      assertTrue(store.cover("b", DAY, 0, Long.MAX_VALUE).isEmpty());
+      assertTrue(store.contains("a", HOUR, DAY0));
+      assertFalse(store.contains("a", HOUR, DAY0 + LEVEL_MS[HOUR]));
+
+      try {
+        store.append("a", MINUTE, DAY0, image(DAY0));
+        fail();
+      } catch (final IllegalArgumentException e) {
+        // expected: records are appended in time order
+      }
+      try {
+        store.append("a", HOUR, DAY0 + LEVEL_MS[MINUTE], image(DAY0));
+        fail();
+      } catch (final IllegalArgumentException e) {
+        // expected: not aligned to an hour
+      }
+    }
+  }
+
+  @Test
+  public void splitLongRuns() throws IOException {
+    final Path dir = Files.createTempDirectory("archiveTest");
+    try (final ArchiveStore store = new ArchiveStore(dir)) {
+      final long[] expected = new long[10];
+      for (int m = 0; m < expected.length; ++m) {
+        expected[m] = DAY0 + m * LEVEL_MS[MINUTE];
+        store.append("a", MINUTE, expected[m], image(expected[m]));
+      }
+      final List<ArchiveStore.Record> records = store.cover("a", DAY, DAY0, DAY0 + LEVEL_MS[HOUR]);
+
+      // runs of three records, with a shorter final run, and runs smaller than a single record
+      assertEquals(imageStarts(ArchiveStore.read(records, 3 * Long.BYTES)), expected);
+      assertEquals(imageStarts(ArchiveStore.read(records, 1)), expected);
+    }
+  }
+
+  @Test
+  public void reopenIgnoresPartialWrites() throws IOException {
+    final Path dir = Files.createTempDirectory("archiveTest");
+    try (final ArchiveStore store = new ArchiveStore(dir)) {
+      store.append("a/b", MINUTE, DAY0, image(DAY0));
+      store.append("a/b", MINUTE, DAY0 + LEVEL_MS[MINUTE], image(DAY0 + LEVEL_MS[MINUTE]));
+    }
+
+    // an index record pointing past the end of the data, as if interrupted mid-write, and a torn index record
+    final Path index = dir.resolve("a%2Fb.minute.idx");
+    try (final FileChannel ch = FileChannel.open(index, StandardOpenOption.APPEND)) {
+      ch.write(ByteBuffer.allocate(20).putLong(DAY0 + 2 * LEVEL_MS[MINUTE]).putLong(16).putInt(8).flip());
+      ch.write(ByteBuffer.allocate(7));
+    }
+
+    try (final ArchiveStore store = new ArchiveStore(dir)) {
+      assertEquals(starts(store.cover("a/b", DAY, 0, Long.MAX_VALUE)),
+          new long[] {DAY0, DAY0 + LEVEL_MS[MINUTE]});
+      // new records replace the partial ones
+      final long start = DAY0 + 3 * LEVEL_MS[MINUTE];
+      store.append("a/b", MINUTE, start, image(start));
+      assertEquals(starts(store.cover("a/b", DAY, 0, Long.MAX_VALUE)),
+          new long[] {DAY0, DAY0 + LEVEL_MS[MINUTE], start});
+    }
+  }
+}
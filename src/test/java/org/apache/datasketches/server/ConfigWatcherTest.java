@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.datasketches.server;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.testng.annotations.Test;
+
+public class ConfigWatcherTest {
+  private static final long WAIT_MS = 10000;
+
+  private static void writeConfig(final Path configFile, final String... names) throws IOException {
+    final StringBuilder sb = new StringBuilder("{ \"sketches\": [");
+    for (int i = 0; i < names.length; ++i) {
+      sb.append(i > 0 ? "," : "")
+          .append("{ \"name\": \"").append(names[i]).append("\", \"k\": 12, \"family\": \"hll\", \"type\": \"string\" }");
+    }
+    sb.append("] }");
+    Files.write(configFile, sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  // waits for the watcher to apply a change, returning false on a timeout
+  private static boolean awaitSketch(final SketchStorage sketches, final String name, final boolean present)
+      throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + WAIT_MS;
+    while (sketches.contains(name) != present) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      Thread.sleep(50);
+    }
+    return true;
+  }
+
+  @Test
+  public void reloadOnChange() throws IOException, InterruptedException {
+    final Path dir = Files.createTempDirectory("configWatcherTest");
+    final Path configFile = dir.resolve("config.json");
+    writeConfig(configFile, "first");
+    final SketchStorage sketches = new SketchStorage(new SketchServerConfig(configFile.toString()).getSketchList());
+
+    final ConfigWatcher watcher = new ConfigWatcher(sketches, configFile.toString());
+    watcher.start();
+    try {
+      writeConfig(configFile, "first", "second");
+      assertTrue(awaitSketch(sketches, "second", true));
+
+      // an invalid configuration leaves the sketches in place, and other files in the directory are ignored
+      Files.write(configFile, "{ \"sketches\": [".getBytes(StandardCharsets.UTF_8));
+      writeConfig(configFile.resolveSibling("other.json"), "third");
+      Thread.sleep(1000);
+      assertTrue(sketches.contains("second"));
+
+      writeConfig(configFile, "third");
+      assertTrue(awaitSketch(sketches, "third", true));
+      assertFalse(sketches.contains("first"));
+    } finally {
+      watcher.stop();
+    }
+  }
+}
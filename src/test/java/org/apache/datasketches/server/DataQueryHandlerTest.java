@@ -0,0 +1,656 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.SketchConstants.MERGE_PATH;
+import static org.apache.datasketches.server.SketchConstants.QUERY_ARGS_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_DATA_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_ERRORTYPE_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_ERRORTYPE_NO_FN;
+import static org.apache.datasketches.server.SketchConstants.QUERY_ERRORTYPE_NO_FP;
+import static org.apache.datasketches.server.SketchConstants.QUERY_EXPRESSION_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_FAMILY_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_FRACTIONS_NAME_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_MERGE_SRC_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_MERGE_TGT_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_NAMES_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_NAME_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_OP_ANOTB;
+import static org.apache.datasketches.server.SketchConstants.QUERY_OP_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_OP_INTERSECTION;
+import static org.apache.datasketches.server.SketchConstants.QUERY_OP_JACCARD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_OP_UNION;
+import static org.apache.datasketches.server.SketchConstants.QUERY_PAIR_ITEM_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_PAIR_VALUES_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_PAIR_WEIGHT_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_PATH;
+import static org.apache.datasketches.server.SketchConstants.QUERY_PREFIX_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_THRESHOLD_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_TOPN_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_VALUES_FIELD_NAME;
+import static org.apache.datasketches.server.SketchConstants.QUERY_WINDOW_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_CDF_LIST;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_ESTIMATE_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_HRA_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_ITEMS_ARRAY;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_ITEM_ESTIMATE;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_ITEM_VALUE;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_JACCARD_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_MAX_VALUE;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_METRICS_LIST;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_METRIC_MEAN;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_METRIC_SUM;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_MIN_VALUE;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_QUANTILE_LIST;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_RESULT_QUANTILE;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_RESULT_RANK;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_SKETCH_COUNT_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_STREAM_LENGTH;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_WINDOW_START_FIELD;
+import static org.apache.datasketches.server.SketchConstants.UNPROCESSABLE_ENTITY;
+import static org.apache.datasketches.server.SketchConstants.UPDATE_PATH;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Objects;
+
+import org.apache.datasketches.frequencies.ErrorType;
+import org.apache.datasketches.frequencies.ItemsSketch;
+import org.apache.datasketches.frequencies.LongsSketch;
+import org.apache.datasketches.kll.KllFloatsSketch;
+import org.apache.datasketches.sampling.ReservoirLongsSketch;
+import org.apache.datasketches.theta.UpdateSketch;
+import org.apache.datasketches.theta.UpdateSketchBuilder;
+import org.testng.annotations.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class DataQueryHandlerTest extends ServerTestBase {
+
+  // posts a query with an optional If-None-Match header, returning the status and saving the ETag in tag[0]
+  private int postQuery(final JsonObject query, final String ifNoneMatch, final String[] tag) {
+    HttpURLConnection http = null;
+    int status = -1;
+    try {
+      final URL url = new URL(serverUri_ + QUERY_PATH);
+      http = (HttpURLConnection) url.openConnection();
+      http.setDoOutput(true);
+      http.setRequestMethod("POST");
+      http.setRequestProperty("Content-Type", "application/json");
+      if (ifNoneMatch != null) {
+        http.setRequestProperty("If-None-Match", ifNoneMatch);
+      }
+      try (final OutputStream os = http.getOutputStream()) {
+        os.write(query.toString().getBytes(StandardCharsets.UTF_8));
+      }
+      status = http.getResponseCode();
+      tag[0] = http.getHeaderField("ETag");
+    } catch (final IOException e) {
+      fail();
+    } finally {
+      if (http != null)
+        http.disconnect();
+    }
+    return status;
+  }
+
+  @Test
+  public void etagsDifferAcrossServers() throws IOException {
+    // two servers from the same configuration, as before and after a restart, with identical writes
+    final String configFile = Objects.requireNonNull(Thread.currentThread().getContextClassLoader()
+        .getResource("test_config.json")).getFile();
+    final JsonObject query = new JsonObject();
+    query.addProperty(QUERY_NAME_FIELD, "cpcOfNumbers");
+    final String[] tags = new String[2];
+    for (int i = 0; i < tags.length; ++i) {
+      final SketchStorage storage = new SketchStorage(new SketchServerConfig(configFile).getSketchList());
+      final JsonObject update = new JsonObject();
+      update.addProperty("cpcOfNumbers", 1);
+      new UpdateHandler(storage).processQuery(update);
+      tags[i] = new DataQueryHandler(storage).computeETag(query);
+      assertNotNull(tags[i]);
+    }
+    assertNotEquals(tags[0], tags[1]);
+    // entry ids only differ here since both servers share a process; the leading epoch differs regardless
+    assertNotEquals(tags[0].substring(0, tags[0].indexOf('-')), tags[1].substring(0, tags[1].indexOf('-')));
+  }
+
+  @Test
+  public void etagRevalidation() {
+    final String sketchName = "cpcOfNumbers";
+    final JsonObject update = new JsonObject();
+    final JsonArray data = new JsonArray();
+    for (int i = 0; i < 100; ++i)
+      data.add(i);
+    update.add(sketchName, data);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final JsonObject query = new JsonObject();
+    query.addProperty(QUERY_NAME_FIELD, sketchName);
+    final String[] tag = new String[1];
+    assertEquals(postQuery(query, null, tag), HttpServletResponse.SC_OK);
+    final String etag = tag[0];
+    assertNotNull(etag);
+
+    // unchanged sketch
+    assertEquals(postQuery(query, etag, tag), HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals(tag[0], etag);
+
+    // a different query against the same sketch has a different tag
+    final JsonObject summaryQuery = query.deepCopy();
+    summaryQuery.addProperty("summary", true);
+    assertEquals(postQuery(summaryQuery, etag, tag), HttpServletResponse.SC_OK);
+    assertNotEquals(tag[0], etag);
+
+    // a write invalidates both the tag and any cached result
+    update.add(sketchName, new JsonArray());
+    update.get(sketchName).getAsJsonArray().add(1000);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+    assertEquals(postQuery(query, etag, tag), HttpServletResponse.SC_OK);
+    assertNotEquals(tag[0], etag);
+
+    final JsonObject response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+    final double estimate = response.get(RESPONSE_FIELD).getAsJsonObject().get(RESPONSE_ESTIMATE_FIELD).getAsDouble();
+    assertEquals(estimate, 101, 101 * 1e-2);
+  }
+
+  @Test
+  public void kllQuery() {
+    final String sketchName = "duration";
+    final JsonObject update = new JsonObject();
+    final JsonArray data = new JsonArray();
+    for (int i = 0; i < 1000; ++i)
+      data.add(i * 1.5);
+    update.add(sketchName, data);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final JsonObject query = new JsonObject();
+    query.addProperty(QUERY_NAME_FIELD, sketchName);
+    final JsonArray values = new JsonArray();
+    values.add(100.0);
+    values.add(750.0);
+    query.add(QUERY_VALUES_FIELD_NAME, values);
+    final JsonArray fractions = new JsonArray();
+    fractions.add(0.0);
+    fractions.add(0.5);
+    fractions.add(1.0);
+    query.add(QUERY_FRACTIONS_NAME_FIELD, fractions);
+
+    final JsonObject response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+    final JsonObject result = response.get(RESPONSE_FIELD).getAsJsonObject();
+
+    final KllFloatsSketch sk = (KllFloatsSketch) server_.getSketch(sketchName).sketch_;
+    final double[] cdf = sk.getCDF(new float[] {100.0f, 750.0f});
+    final JsonArray cdfList = result.get(RESPONSE_CDF_LIST).getAsJsonArray();
+    for (int i = 0; i < cdf.length; ++i) {
+      assertEquals(cdfList.get(i).getAsJsonObject().get(RESPONSE_RESULT_RANK).getAsDouble(), cdf[i]);
+    }
+    final float[] quantiles = sk.getQuantiles(new double[] {0.0, 0.5, 1.0});
+    final JsonArray quantileList = result.get(RESPONSE_QUANTILE_LIST).getAsJsonArray();
+    for (int i = 0; i < quantiles.length; ++i) {
+      assertEquals(quantileList.get(i).getAsJsonObject().get(RESPONSE_RESULT_QUANTILE).getAsFloat(), quantiles[i]);
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void frequencyTopNAndThreshold() {
+    final String sketchName = "topItems";
+    final JsonObject update = new JsonObject();
+    final JsonArray data = new JsonArray();
+    for (int i = 0; i < 1000; ++i) {
+      final JsonObject pair = new JsonObject();
+      pair.addProperty(QUERY_PAIR_ITEM_FIELD, "item" + i);
+      // a few heavy hitters among many light items
+      pair.addProperty(QUERY_PAIR_WEIGHT_FIELD, i < 20 ? 10000 + 100 * i : 1 + (i % 50) * (i % 7));
+      data.add(pair);
+    }
+    update.add(sketchName, data);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final ItemsSketch<String> sk = (ItemsSketch<String>) server_.getSketch(sketchName).sketch_;
+    final long threshold = sk.getMaximumError() + 100;
+
+    for (final ErrorType errorType : ErrorType.values()) {
+      final JsonObject query = new JsonObject();
+      query.addProperty(QUERY_NAME_FIELD, sketchName);
+      query.addProperty(QUERY_ERRORTYPE_FIELD,
+          errorType == ErrorType.NO_FALSE_POSITIVES ? QUERY_ERRORTYPE_NO_FP : QUERY_ERRORTYPE_NO_FN);
+
+      // matches the sketch with a threshold
+      query.addProperty(QUERY_THRESHOLD_FIELD, threshold);
+      JsonObject response = new JsonObject();
+      assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+      JsonArray items = response.get(RESPONSE_FIELD).getAsJsonObject().get(RESPONSE_ITEMS_ARRAY).getAsJsonArray();
+      final ItemsSketch.Row<String>[] expected = sk.getFrequentItems(threshold, errorType);
+      assertEquals(items.size(), expected.length);
+      for (int i = 0; i < expected.length; ++i) {
+        assertEquals(items.get(i).getAsJsonObject().get(RESPONSE_ITEM_VALUE).getAsString(), expected[i].getItem());
+      }
+
+      // including at thresholds equal to an item's bound, which the sketch keeps
+      for (final ItemsSketch.Row<String> row : sk.getFrequentItems(errorType)) {
+        final long bound = errorType == ErrorType.NO_FALSE_POSITIVES ? row.getLowerBound() : row.getUpperBound();
+        if (bound <= sk.getMaximumError()) {
+          continue;
+        }
+        query.addProperty(QUERY_THRESHOLD_FIELD, bound);
+        response = new JsonObject();
+        assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+        items = response.get(RESPONSE_FIELD).getAsJsonObject().get(RESPONSE_ITEMS_ARRAY).getAsJsonArray();
+        final ItemsSketch.Row<String>[] atBound = sk.getFrequentItems(bound, errorType);
+        assertEquals(items.size(), atBound.length);
+        assertEquals(items.get(items.size() - 1).getAsJsonObject().get(RESPONSE_ITEM_VALUE).getAsString(),
+            atBound[atBound.length - 1].getItem());
+      }
+
+      // and returns a prefix of the default result with topN
+      query.remove(QUERY_THRESHOLD_FIELD);
+      query.addProperty(QUERY_TOPN_FIELD, 5);
+      response = new JsonObject();
+      assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+      items = response.get(RESPONSE_FIELD).getAsJsonObject().get(RESPONSE_ITEMS_ARRAY).getAsJsonArray();
+      final ItemsSketch.Row<String>[] all = sk.getFrequentItems(errorType);
+      assertEquals(items.size(), 5);
+      for (int i = 0; i < 5; ++i) {
+        assertEquals(items.get(i).getAsJsonObject().get(RESPONSE_ITEM_ESTIMATE).getAsLong(), all[i].getEstimate());
+      }
+    }
+  }
+
+  @Test
+  public void tailQuantiles() {
+    final int n = 100000;
+    final JsonObject update = new JsonObject();
+    final JsonArray data = new JsonArray();
+    final JsonArray preciseData = new JsonArray();
+    for (int i = 1; i <= n; ++i) {
+      data.add(i);
+      // differences below float precision
+      preciseData.add(1.0 + i * 1e-12);
+    }
+    update.add("tail", data);
+    update.add("preciseDuration", preciseData);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final JsonArray fractions = new JsonArray();
+    fractions.add(0.5);
+    fractions.add(0.9999);
+    JsonObject query = new JsonObject();
+    query.addProperty(QUERY_NAME_FIELD, "tail");
+    query.add(QUERY_FRACTIONS_NAME_FIELD, fractions);
+    JsonObject response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+    JsonObject result = response.get(RESPONSE_FIELD).getAsJsonObject();
+    assertTrue(result.get(RESPONSE_HRA_FIELD).getAsBoolean());
+    JsonArray quantiles = result.get(RESPONSE_QUANTILE_LIST).getAsJsonArray();
+    assertEquals(quantiles.get(0).getAsJsonObject().get(RESPONSE_RESULT_QUANTILE).getAsDouble(), n / 2.0, n * 0.02);
+    // relative error at high ranks keeps the extreme tail close
+    assertEquals(quantiles.get(1).getAsJsonObject().get(RESPONSE_RESULT_QUANTILE).getAsDouble(), n * 0.9999, 2.0);
+
+    query = new JsonObject();
+    query.addProperty(QUERY_NAME_FIELD, "preciseDuration");
+    query.add(QUERY_FRACTIONS_NAME_FIELD, fractions);
+    response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+    result = response.get(RESPONSE_FIELD).getAsJsonObject();
+    assertEquals(result.get(RESPONSE_MAX_VALUE).getAsDouble(), 1.0 + n * 1e-12);
+    quantiles = result.get(RESPONSE_QUANTILE_LIST).getAsJsonArray();
+    final double median = quantiles.get(0).getAsJsonObject().get(RESPONSE_RESULT_QUANTILE).getAsDouble();
+    assertTrue(median > 1.0 + n * 0.45e-12 && median < 1.0 + n * 0.55e-12);
+  }
+
+  @Test
+  public void windowedQuantiles() {
+    final long now = System.currentTimeMillis();
+    final SketchStorage.SketchEntry se = server_.getSketch("recentLatency");
+
+    // older values, then newer ones, each closed into buckets as the server's clock would
+    JsonObject update = new JsonObject();
+    JsonArray data = new JsonArray();
+    for (int i = 1; i <= 100; ++i)
+      data.add(i);
+    update.add("recentLatency", data);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+    synchronized (se.name_.intern()) {
+      ((WindowedKllSketch) se.sketch_).advance(now + 30000);
+      ++se.version_;
+    }
+
+    update = new JsonObject();
+    data = new JsonArray();
+    for (int i = 1000; i < 1010; ++i)
+      data.add(i);
+    update.add("recentLatency", data);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+    synchronized (se.name_.intern()) {
+      ((WindowedKllSketch) se.sketch_).advance(now + 40000);
+      ++se.version_;
+    }
+
+    final JsonArray fractions = new JsonArray();
+    fractions.add(0.5);
+    JsonObject query = new JsonObject();
+    query.addProperty(QUERY_NAME_FIELD, "recentLatency");
+    query.add(QUERY_FRACTIONS_NAME_FIELD, fractions);
+    JsonObject response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+    JsonObject result = response.get(RESPONSE_FIELD).getAsJsonObject();
+    assertEquals(result.get(RESPONSE_STREAM_LENGTH).getAsLong(), 110);
+    assertFalse(result.has(RESPONSE_WINDOW_START_FIELD));
+
+    query.addProperty(QUERY_WINDOW_FIELD, 5);
+    response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+    result = response.get(RESPONSE_FIELD).getAsJsonObject();
+    assertEquals(result.get(RESPONSE_STREAM_LENGTH).getAsLong(), 10);
+    assertEquals(result.get(RESPONSE_MIN_VALUE).getAsFloat(), 1000.0f);
+    assertEquals(result.get(RESPONSE_WINDOW_START_FIELD).getAsLong(), now + 30000);
+
+    // longer than configured
+    query.addProperty(QUERY_WINDOW_FIELD, 61);
+    assertEquals(postData(QUERY_PATH, query, new JsonObject()), UNPROCESSABLE_ENTITY);
+
+    // not a windowed sketch
+    query.addProperty(QUERY_NAME_FIELD, "duration");
+    query.addProperty(QUERY_WINDOW_FIELD, 5);
+    assertEquals(postData(QUERY_PATH, query, new JsonObject()), UNPROCESSABLE_ENTITY);
+  }
+
+  @Test
+  public void tupleMetrics() {
+    // 1000 users, each with revenue equal to the user id over two updates and one session per update
+    final int nUsers = 1000;
+    final JsonObject update = new JsonObject();
+    final JsonArray data = new JsonArray();
+    for (int round = 0; round < 2; ++round) {
+      for (int i = 0; i < nUsers; ++i) {
+        final JsonObject input = new JsonObject();
+        input.addProperty(QUERY_PAIR_ITEM_FIELD, "user" + i);
+        final JsonArray values = new JsonArray();
+        values.add(i / 2.0);
+        values.add(1.0);
+        input.add(QUERY_PAIR_VALUES_FIELD, values);
+        data.add(input);
+      }
+    }
+    update.add("segmentUsers", data);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final JsonObject query = new JsonObject();
+    query.addProperty(QUERY_NAME_FIELD, "segmentUsers");
+    final JsonObject response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+    final JsonObject result = response.get(RESPONSE_FIELD).getAsJsonObject();
+    assertEquals(result.get(RESPONSE_ESTIMATE_FIELD).getAsDouble(), nUsers, 1e-6);
+    final JsonArray metrics = result.get(RESPONSE_METRICS_LIST).getAsJsonArray();
+    assertEquals(metrics.size(), 2);
+    final double revenue = nUsers * (nUsers - 1) / 2.0;
+    assertEquals(metrics.get(0).getAsJsonObject().get(RESPONSE_METRIC_SUM).getAsDouble(), revenue, 1e-6);
+    assertEquals(metrics.get(0).getAsJsonObject().get(RESPONSE_METRIC_MEAN).getAsDouble(), revenue / nUsers, 1e-6);
+    assertEquals(metrics.get(1).getAsJsonObject().get(RESPONSE_METRIC_SUM).getAsDouble(), 2.0 * nUsers, 1e-6);
+    assertEquals(metrics.get(1).getAsJsonObject().get(RESPONSE_METRIC_MEAN).getAsDouble(), 2.0, 1e-6);
+
+    // every input must carry the configured number of values
+    final JsonObject badInput = new JsonObject();
+    badInput.addProperty(QUERY_PAIR_ITEM_FIELD, "user0");
+    final JsonArray badValues = new JsonArray();
+    badValues.add(1.0);
+    badInput.add(QUERY_PAIR_VALUES_FIELD, badValues);
+    final JsonObject badUpdate = new JsonObject();
+    badUpdate.add("segmentUsers", badInput);
+    assertEquals(postData(UPDATE_PATH, badUpdate, new JsonObject()), UNPROCESSABLE_ENTITY);
+  }
+
+  @Test
+  public void decayedFrequency() {
+    JsonObject update = new JsonObject();
+    JsonArray data = new JsonArray();
+    for (int i = 0; i < 100; ++i)
+      data.add("old");
+    update.add("trending", data);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+
+    // one half-life later, as the server's periodic decay would do
+    final SketchStorage.SketchEntry se = server_.getSketch("trending");
+    synchronized (se.name_.intern()) {
+      ((DecayedFrequencySketch) se.sketch_).advance(System.currentTimeMillis() + 3600 * 1000L);
+      ++se.version_;
+    }
+
+    update = new JsonObject();
+    data = new JsonArray();
+    for (int i = 0; i < 80; ++i)
+      data.add("new");
+    update.add("trending", data);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final JsonObject query = new JsonObject();
+    query.addProperty(QUERY_NAME_FIELD, "trending");
+    query.addProperty(QUERY_ERRORTYPE_FIELD, QUERY_ERRORTYPE_NO_FP);
+    final JsonObject response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+    final JsonArray items = response.get(RESPONSE_FIELD).getAsJsonObject().get(RESPONSE_ITEMS_ARRAY).getAsJsonArray();
+    assertEquals(items.size(), 2);
+    assertEquals(items.get(0).getAsJsonObject().get(RESPONSE_ITEM_VALUE).getAsString(), "new");
+    assertEquals(items.get(0).getAsJsonObject().get(RESPONSE_ITEM_ESTIMATE).getAsDouble(), 80.0, 0.1);
+    assertEquals(items.get(1).getAsJsonObject().get(RESPONSE_ITEM_VALUE).getAsString(), "old");
+    assertEquals(items.get(1).getAsJsonObject().get(RESPONSE_ITEM_ESTIMATE).getAsDouble(), 50.0, 0.1);
+
+    // the threshold applies to decayed counts
+    query.addProperty(QUERY_THRESHOLD_FIELD, 60);
+    final JsonObject thresholdResponse = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, thresholdResponse), HttpServletResponse.SC_OK);
+    assertEquals(thresholdResponse.get(RESPONSE_FIELD).getAsJsonObject().get(RESPONSE_ITEMS_ARRAY)
+        .getAsJsonArray().size(), 1);
+
+    // counts relative to this sketch's landmark cannot be merged
+    final JsonObject merge = new JsonObject();
+    merge.addProperty(QUERY_MERGE_TGT_FIELD, "trending");
+    final JsonArray sources = new JsonArray();
+    sources.add("topItems");
+    merge.add(QUERY_MERGE_SRC_FIELD, sources);
+    assertEquals(postData(MERGE_PATH, merge, new JsonObject()), UNPROCESSABLE_ENTITY);
+  }
+
+  @Test
+  public void longItems() {
+    final JsonObject update = new JsonObject();
+    final JsonArray data = new JsonArray();
+    for (int i = 0; i < 10; ++i) {
+      final JsonObject pair = new JsonObject();
+      pair.addProperty(QUERY_PAIR_ITEM_FIELD, 1000L * i);
+      pair.addProperty(QUERY_PAIR_WEIGHT_FIELD, 100 - i);
+      data.add(pair);
+    }
+    update.add("topLongs", data);
+    update.add("voLongs", data);
+    final JsonArray values = new JsonArray();
+    for (long i = 0; i < 5; ++i)
+      values.add(Long.MAX_VALUE - i);
+    update.add("rsLongs", values);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+    assertTrue(server_.getSketch("topLongs").sketch_ instanceof LongsSketch);
+    assertTrue(server_.getSketch("rsLongs").sketch_ instanceof ReservoirLongsSketch);
+
+    // items are returned as numbers
+    JsonObject query = new JsonObject();
+    query.addProperty(QUERY_NAME_FIELD, "topLongs");
+    query.addProperty(QUERY_ERRORTYPE_FIELD, QUERY_ERRORTYPE_NO_FN);
+    JsonObject response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+    JsonArray items = response.get(RESPONSE_FIELD).getAsJsonObject().get(RESPONSE_ITEMS_ARRAY).getAsJsonArray();
+    assertEquals(items.size(), 10);
+    assertEquals(items.get(0).getAsJsonObject().get(RESPONSE_ITEM_VALUE).getAsLong(), 0L);
+    assertEquals(items.get(0).getAsJsonObject().get(RESPONSE_ITEM_ESTIMATE).getAsLong(), 100L);
+
+    query = new JsonObject();
+    query.addProperty(QUERY_NAME_FIELD, "rsLongs");
+    response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+    items = response.get(RESPONSE_FIELD).getAsJsonObject().get(RESPONSE_ITEMS_ARRAY).getAsJsonArray();
+    assertEquals(items.size(), 5);
+    assertTrue(items.get(0).getAsLong() > Long.MAX_VALUE - 5);
+
+    query = new JsonObject();
+    query.addProperty(QUERY_NAME_FIELD, "voLongs");
+    response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+    items = response.get(RESPONSE_FIELD).getAsJsonObject().get(RESPONSE_ITEMS_ARRAY).getAsJsonArray();
+    assertEquals(items.size(), 10);
+    assertEquals(items.get(0).getAsJsonObject().get(RESPONSE_ITEM_VALUE).getAsLong() % 1000, 0L);
+
+    // strings are rejected
+    update.add("topLongs", new JsonPrimitive("abc"));
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), UNPROCESSABLE_ENTITY);
+  }
+
+  @Test
+  public void groupQuery() {
+    // the same values in two sketches, and new values in a third
+    final JsonObject update = new JsonObject();
+    final JsonArray data = new JsonArray();
+    for (int i = 0; i < 1000; ++i)
+      data.add(Integer.toString(i));
+    update.add("hll1", data);
+    update.add("hll2", data);
+    final JsonArray moreData = new JsonArray();
+    for (int i = 1000; i < 1500; ++i)
+      moreData.add(Integer.toString(i));
+    update.add("hll3", moreData);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final JsonObject query = new JsonObject();
+    query.addProperty(QUERY_PREFIX_FIELD, "hll");
+    JsonObject response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, response), HttpServletResponse.SC_OK);
+    JsonObject result = response.get(RESPONSE_FIELD).getAsJsonObject();
+    assertEquals(result.get(RESPONSE_SKETCH_COUNT_FIELD).getAsInt(), 4);
+    assertEquals(result.get(RESPONSE_ESTIMATE_FIELD).getAsDouble(), 1500, 1500 * 2e-2);
+
+    final JsonObject namesQuery = new JsonObject();
+    final JsonArray names = new JsonArray();
+    names.add("hll1");
+    names.add("hll2");
+    namesQuery.add(QUERY_NAMES_FIELD, names);
+    response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, namesQuery, response), HttpServletResponse.SC_OK);
+    result = response.get(RESPONSE_FIELD).getAsJsonObject();
+    assertEquals(result.get(RESPONSE_SKETCH_COUNT_FIELD).getAsInt(), 2);
+    assertEquals(result.get(RESPONSE_ESTIMATE_FIELD).getAsDouble(), 1000, 1000 * 2e-2);
+
+    // mixed families are rejected
+    names.add("theta0");
+    assertEquals(postData(QUERY_PATH, namesQuery, new JsonObject()), UNPROCESSABLE_ENTITY);
+  }
+
+  private static JsonObject expression(final String op, final Object... args) {
+    final JsonObject expr = new JsonObject();
+    expr.addProperty(QUERY_OP_FIELD, op);
+    final JsonArray argArray = new JsonArray();
+    for (final Object arg : args) {
+      if (arg instanceof JsonObject) {
+        argArray.add((JsonObject) arg);
+      } else {
+        argArray.add((String) arg);
+      }
+    }
+    expr.add(QUERY_ARGS_FIELD, argArray);
+    return expr;
+  }
+
+  @Test
+  public void thetaExpression() {
+    // theta1 holds [0, 1000), theta2 holds [500, 1500)
+    final JsonObject update = new JsonObject();
+    final JsonArray data1 = new JsonArray();
+    for (int i = 0; i < 1000; ++i)
+      data1.add(i);
+    update.add("theta1", data1);
+    final JsonArray data2 = new JsonArray();
+    for (int i = 500; i < 1500; ++i)
+      data2.add(i);
+    update.add("theta2", data2);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+
+    // sub-queries of one request, sharing the intersection
+    final JsonArray queries = new JsonArray();
+    final JsonObject intersection = expression(QUERY_OP_INTERSECTION, "theta1", "theta2");
+    JsonObject query = new JsonObject();
+    query.add(QUERY_EXPRESSION_FIELD, intersection);
+    queries.add(query);
+    query = new JsonObject();
+    query.add(QUERY_EXPRESSION_FIELD, expression(QUERY_OP_ANOTB, "theta1", intersection));
+    queries.add(query);
+    query = new JsonObject();
+    query.add(QUERY_EXPRESSION_FIELD, expression(QUERY_OP_UNION, "theta1", "theta2"));
+    queries.add(query);
+    query = new JsonObject();
+    query.add(QUERY_EXPRESSION_FIELD, expression(QUERY_OP_JACCARD, "theta1", "theta2"));
+    queries.add(query);
+
+    final JsonObject response = new JsonObject();
+    assertEquals(postData(QUERY_PATH, queries, response), HttpServletResponse.SC_OK);
+    final JsonArray results = response.get(RESPONSE_FIELD).getAsJsonArray();
+    assertEquals(results.get(0).getAsJsonObject().get(RESPONSE_ESTIMATE_FIELD).getAsDouble(), 500, 500 * 5e-2);
+    assertEquals(results.get(1).getAsJsonObject().get(RESPONSE_ESTIMATE_FIELD).getAsDouble(), 500, 500 * 5e-2);
+    assertEquals(results.get(2).getAsJsonObject().get(RESPONSE_ESTIMATE_FIELD).getAsDouble(), 1500, 1500 * 2e-2);
+    final JsonObject jaccard = results.get(3).getAsJsonObject().get(RESPONSE_JACCARD_FIELD).getAsJsonObject();
+    assertEquals(jaccard.get(RESPONSE_ESTIMATE_FIELD).getAsDouble(), 1.0 / 3, 2e-2);
+
+    // encoded sketches can be mixed with named ones
+    final UpdateSketch sk = new UpdateSketchBuilder().setNominalEntries(1 << 12).build();
+    for (int i = 1000; i < 2000; ++i)
+      sk.update(i);
+    final JsonObject encoded = new JsonObject();
+    encoded.addProperty(QUERY_FAMILY_FIELD, "theta");
+    encoded.addProperty(QUERY_DATA_FIELD, Base64.getUrlEncoder().encodeToString(sk.compact().toByteArray()));
+    query = new JsonObject();
+    query.add(QUERY_EXPRESSION_FIELD, expression(QUERY_OP_INTERSECTION, "theta2", encoded));
+    JsonObject singleResponse = new JsonObject();
+    assertEquals(postData(QUERY_PATH, query, singleResponse), HttpServletResponse.SC_OK);
+    assertEquals(singleResponse.get(RESPONSE_FIELD).getAsJsonObject().get(RESPONSE_ESTIMATE_FIELD).getAsDouble(),
+        500, 500 * 5e-2);
+
+    // only theta sketches are allowed, and jaccard cannot be nested
+    query = new JsonObject();
+    query.add(QUERY_EXPRESSION_FIELD, expression(QUERY_OP_UNION, "theta1", "hll1"));
+    assertEquals(postData(QUERY_PATH, query, new JsonObject()), UNPROCESSABLE_ENTITY);
+    query = new JsonObject();
+    query.add(QUERY_EXPRESSION_FIELD,
+        expression(QUERY_OP_UNION, "theta1", expression(QUERY_OP_JACCARD, "theta1", "theta2")));
+    assertEquals(postData(QUERY_PATH, query, new JsonObject()), UNPROCESSABLE_ENTITY);
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.apache.datasketches.frequencies.ItemsSketch;
+import org.testng.annotations.Test;
+
+public class DecayedFrequencySketchTest {
+  private static final long HALF_LIFE_MS = 1000;
+
+  @SuppressWarnings("unchecked")
+  private static void update(final DecayedFrequencySketch sketch, final String item, final long weight) {
+    ((ItemsSketch<String>) sketch.getSketch()).update(item, weight * sketch.getUnitWeight());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static double estimate(final DecayedFrequencySketch sketch, final String item) {
+    return ((ItemsSketch<String>) sketch.getSketch()).getEstimate(item) / sketch.getScale();
+  }
+
+  @Test
+  public void halvesEachHalfLife() {
+    final DecayedFrequencySketch sketch = new DecayedFrequencySketch(64, false, HALF_LIFE_MS, 0);
+    update(sketch, "old", 1000);
+    assertEquals(estimate(sketch, "old"), 1000.0, 1e-9);
+
+    sketch.advance(HALF_LIFE_MS);
+    update(sketch, "new", 1000);
+    assertEquals(estimate(sketch, "old"), 500.0, 1e-9);
+    assertEquals(estimate(sketch, "new"), 1000.0, 1e-9);
+
+    // time never moves backwards
+    sketch.advance(0);
+    assertEquals(estimate(sketch, "old"), 500.0, 1e-9);
+
+    sketch.advance(3 * HALF_LIFE_MS);
+    assertEquals(estimate(sketch, "old"), 125.0, 1e-9);
+    assertEquals(estimate(sketch, "new"), 250.0, 1e-9);
+  }
+
+  @Test
+  public void rebaseKeepsDecayedCounts() {
+    final DecayedFrequencySketch sketch = new DecayedFrequencySketch(64, false, HALF_LIFE_MS, 0);
+    update(sketch, "heavy", 1 << 20);
+    update(sketch, "light", 1);
+
+    // past MAX_EXPONENT half-lives, so the counts are rebuilt relative to a new landmark
+    final long later = (long) (DecayedFrequencySketch.MAX_EXPONENT + 4) * HALF_LIFE_MS;
+    sketch.advance(later);
+    assertEquals(sketch.getUnitWeight(), 1L << DecayedFrequencySketch.SCALE_BITS);
+    assertEquals(estimate(sketch, "heavy"), 1.0, 1e-3);
+    // decayed to far less than a scaled unit, so dropped
+    assertEquals(estimate(sketch, "light"), 0.0);
+
+    update(sketch, "fresh", 3);
+    assertEquals(estimate(sketch, "fresh"), 3.0, 1e-9);
+    assertTrue(estimate(sketch, "fresh") > estimate(sketch, "heavy"));
+  }
+}
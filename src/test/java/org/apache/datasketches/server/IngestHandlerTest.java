@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.SketchConstants.INGEST_PATH;
+import static org.testng.Assert.assertEquals;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.datasketches.cpc.CpcSketch;
+import org.apache.datasketches.frequencies.ItemsSketch;
+import org.apache.datasketches.hll.HllSketch;
+import org.apache.datasketches.kll.KllFloatsSketch;
+import org.testng.annotations.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+public class IngestHandlerTest extends ServerTestBase {
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void routeEvents() {
+    final int nEvents = 500;
+    final JsonArray events = new JsonArray();
+    for (int i = 0; i < nEvents; ++i) {
+      final JsonObject event = new JsonObject();
+      event.addProperty("user", "user" + (i % 100));
+      event.addProperty("latency", i);
+      // only some events have a page
+      if (i % 5 == 0) {
+        final JsonObject page = new JsonObject();
+        page.addProperty("url", "/page" + (i % 2));
+        event.add("page", page);
+      }
+      events.add(event);
+    }
+    assertEquals(postData(INGEST_PATH, events, new JsonObject()), HttpServletResponse.SC_OK);
+
+    assertEquals(((HllSketch) server_.getSketch("hll4").sketch_).getEstimate(), 100, 100 * 2e-2);
+    assertEquals(((CpcSketch) server_.getSketch("cpcOfStrings").sketch_).getEstimate(), 100, 100 * 2e-2);
+    assertEquals(((KllFloatsSketch) server_.getSketch("duration").sketch_).getN(), nEvents);
+    final ItemsSketch<String> items = (ItemsSketch<String>) server_.getSketch("topItems").sketch_;
+    assertEquals(items.getEstimate("/page0"), nEvents / 10);
+    assertEquals(items.getEstimate("/page1"), nEvents / 10);
+
+    // a single event, with an array of values for one field
+    final JsonObject event = new JsonObject();
+    final JsonArray latencies = new JsonArray();
+    latencies.add(1.5);
+    latencies.add(2.5);
+    event.add("latency", latencies);
+    assertEquals(postData(INGEST_PATH, event, new JsonObject()), HttpServletResponse.SC_OK);
+    assertEquals(((KllFloatsSketch) server_.getSketch("duration").sketch_).getN(), nEvents + 2);
+  }
+
+  @Test
+  public void invalidEvents() {
+    // events must be JSON Objects
+    final JsonArray events = new JsonArray();
+    events.add("notAnEvent");
+    assertEquals(postData(INGEST_PATH, events, new JsonObject()), SketchConstants.UNPROCESSABLE_ENTITY);
+  }
+}
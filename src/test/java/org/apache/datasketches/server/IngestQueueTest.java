@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_QUEUE_APPLIED_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_QUEUE_DEPTH_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_QUEUE_FAILED_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_QUEUE_PARTITIONS_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_QUEUE_REJECTED_FIELD;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.datasketches.hll.HllSketch;
+import org.apache.datasketches.kll.KllFloatsSketch;
+import org.testng.annotations.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class IngestQueueTest {
+
+  private static SketchStorage createStorage() {
+    final List<SketchServerConfig.SketchInfo> list = new ArrayList<>();
+    list.add(new SketchServerConfig.SketchInfo("hll", 12, "hll", "string"));
+    list.add(new SketchServerConfig.SketchInfo("kll", 200, "kll", null));
+    return new SketchStorage(list);
+  }
+
+  private static SketchServerConfig.AsyncInfo createAsyncInfo(final int partitions, final int capacity) {
+    final SketchServerConfig.AsyncInfo info = new SketchServerConfig.AsyncInfo();
+    info.partitions = partitions;
+    info.capacity = capacity;
+    return info;
+  }
+
+  @Test
+  public void applyQueuedUpdates() throws InterruptedException {
+    final SketchStorage storage = createStorage();
+    final IngestQueue queue = new IngestQueue(storage, createAsyncInfo(2, 1000));
+    final UpdateHandler handler = new UpdateHandler(storage, queue);
+    assertEquals(handler.getSuccessStatus(), HttpServletResponse.SC_ACCEPTED);
+
+    // not accepting updates until started
+    try {
+      queue.enqueue(storage.getSketch("hll"), new JsonPrimitive("a"));
+      fail();
+    } catch (final IngestQueue.QueueFullException e) {
+      // expected
+    }
+
+    queue.start();
+    final int nRequests = 100;
+    for (int i = 0; i < nRequests; ++i) {
+      final JsonObject update = new JsonObject();
+      final JsonArray data = new JsonArray();
+      data.add("item" + i);
+      data.add("item" + (i + nRequests));
+      update.add("hll", data);
+      update.addProperty("kll", i);
+      handler.processQuery(update);
+    }
+    // a value the sketch cannot accept is rejected before it is queued
+    final JsonObject invalid = new JsonObject();
+    invalid.addProperty("kll", "notANumber");
+    try {
+      handler.processQuery(invalid);
+      fail();
+    } catch (final NumberFormatException e) {
+      // expected
+    }
+    final JsonArray invalidBatch = new JsonArray();
+    invalidBatch.add(1.0);
+    invalidBatch.add(new JsonObject());
+    try {
+      queue.enqueue(storage.getSketch("kll"), invalidBatch);
+      fail();
+    } catch (final UnsupportedOperationException e) {
+      // expected
+    }
+    queue.stop();
+
+    assertEquals(((HllSketch) storage.getSketch("hll").sketch_).getEstimate(), 2 * nRequests, 2 * nRequests * 2e-2);
+    assertEquals(((KllFloatsSketch) storage.getSketch("kll").sketch_).getN(), nRequests);
+
+    final JsonObject status = queue.getStatus();
+    assertEquals(status.get(RESPONSE_QUEUE_PARTITIONS_FIELD).getAsJsonArray().size(), 2);
+    assertEquals(status.get(RESPONSE_QUEUE_PARTITIONS_FIELD).getAsJsonArray().get(0).getAsJsonObject()
+        .get(RESPONSE_QUEUE_DEPTH_FIELD).getAsInt(), 0);
+    assertEquals(status.get(RESPONSE_QUEUE_APPLIED_FIELD).getAsLong(), 2 * nRequests);
+    assertEquals(status.get(RESPONSE_QUEUE_FAILED_FIELD).getAsLong(), 0);
+    assertEquals(status.get(RESPONSE_QUEUE_REJECTED_FIELD).getAsLong(), 1);
+  }
+
+  @Test
+  public void backpressure() throws InterruptedException {
+    final SketchStorage storage = createStorage();
+    final IngestQueue queue = new IngestQueue(storage, createAsyncInfo(1, 2));
+    queue.start();
+
+    // holding the sketch lock stalls the applier, so the queue fills
+    int rejected = 0;
+    synchronized ("hll".intern()) {
+      for (int i = 0; i < 4; ++i) {
+        try {
+          queue.enqueue(storage.getSketch("hll"), new JsonPrimitive("item" + i));
+        } catch (final IngestQueue.QueueFullException e) {
+          ++rejected;
+        }
+      }
+    }
+    queue.stop();
+
+    assertTrue(rejected > 0);
+    assertEquals(queue.getStatus().get(RESPONSE_QUEUE_REJECTED_FIELD).getAsLong(), rejected);
+    assertEquals(queue.getStatus().get(RESPONSE_QUEUE_APPLIED_FIELD).getAsLong(), 4 - rejected);
+    assertEquals(new UpdateHandler(storage).getSuccessStatus(), HttpServletResponse.SC_OK);
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.Random;
+
+import org.apache.datasketches.kll.KllFloatsSketch;
+import org.testng.annotations.Test;
+
+public class KllSortedViewTest {
+
+  private static void checkMatchesSketch(final KllFloatsSketch sk) {
+    final KllSortedView view = new KllSortedView(sk);
+
+    final float[] splitPoints = {-100.0f, 0.0f, 10.0f, 10.5f, 250.0f, 999.0f, 5000.0f};
+    assertEquals(view.getCDF(splitPoints), sk.getCDF(splitPoints));
+    assertEquals(view.getPMF(splitPoints), sk.getPMF(splitPoints));
+
+    final double[] fractions = new double[101];
+    for (int i = 0; i < fractions.length; ++i) {
+      fractions[i] = i / 100.0;
+    }
+    assertEquals(view.getQuantiles(fractions), sk.getQuantiles(fractions));
+  }
+
+  @Test
+  public void exactMode() {
+    final KllFloatsSketch sk = new KllFloatsSketch(200);
+    for (int i = 0; i < 100; ++i) {
+      sk.update(i % 20); // includes duplicates
+    }
+    checkMatchesSketch(sk);
+  }
+
+  @Test
+  public void estimationMode() {
+    final Random rand = new Random(42);
+    final KllFloatsSketch sk = new KllFloatsSketch(200);
+    for (int i = 0; i < 100000; ++i) {
+      sk.update(rand.nextFloat() * 1000.0f);
+    }
+    checkMatchesSketch(sk);
+
+    // after a merge, too
+    final KllFloatsSketch other = new KllFloatsSketch(200);
+    for (int i = 0; i < 50000; ++i) {
+      other.update(rand.nextFloat() * 2000.0f - 500.0f);
+    }
+    sk.merge(other);
+    checkMatchesSketch(sk);
+  }
+
+  @Test
+  public void emptySketch() {
+    final KllSortedView view = new KllSortedView(new KllFloatsSketch(200));
+    assertNull(view.getCDF(new float[] {1.0f}));
+    assertNull(view.getPMF(new float[] {1.0f}));
+    assertNull(view.getQuantiles(new double[] {0.5}));
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class LongHashSetTest {
+
+  @Test
+  public void addAndGrow() {
+    // starts small so the table must grow several times
+    final LongHashSet set = new LongHashSet(1);
+    final int n = 10000;
+    for (int i = 0; i < n; ++i) {
+      assertTrue(set.add(i * 31L - 5000));
+    }
+    for (int i = 0; i < n; ++i) {
+      assertFalse(set.add(i * 31L - 5000));
+    }
+    assertTrue(set.add(Long.MIN_VALUE));
+    assertFalse(set.add(Long.MIN_VALUE));
+    assertEquals(set.size(), n + 1);
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.SketchConstants.MERGE_PATH;
+import static org.apache.datasketches.server.SketchConstants.QUERY_DATA_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_FAMILY_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_MERGE_K_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_MERGE_SRC_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_MERGE_TGT_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_SKETCH_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_TYPE_FIELD;
+import static org.apache.datasketches.server.SketchConstants.UNPROCESSABLE_ENTITY;
+import static org.apache.datasketches.server.SketchConstants.UPDATE_PATH;
+import static org.testng.Assert.assertEquals;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.datasketches.Family;
+import org.apache.datasketches.frequencies.LongsSketch;
+import org.apache.datasketches.hll.HllSketch;
+import org.apache.datasketches.kll.KllFloatsSketch;
+import org.apache.datasketches.memory.Memory;
+import org.apache.datasketches.theta.Sketch;
+import org.apache.datasketches.theta.Union;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesSketch;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesSketchIterator;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesUnion;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesUpdatableSketch;
+import org.apache.datasketches.tuple.arrayofdoubles.ArrayOfDoublesUpdatableSketchBuilder;
+import org.testng.annotations.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+public class MergeHandlerTest extends ServerTestBase {
+
+  // updates the named sketch with the values [start, end)
+  private void update(final String name, final int start, final int end) {
+    final JsonObject request = new JsonObject();
+    final JsonArray data = new JsonArray();
+    for (int i = start; i < end; ++i)
+      data.add(i);
+    request.add(name, data);
+    assertEquals(postData(UPDATE_PATH, request, new JsonObject()), HttpServletResponse.SC_OK);
+  }
+
+  private static JsonObject mergeRequest(final String target, final String... sources) {
+    final JsonObject request = new JsonObject();
+    if (target != null)
+      request.addProperty(QUERY_MERGE_TGT_FIELD, target);
+    final JsonArray sourceList = new JsonArray();
+    for (final String s : sources)
+      sourceList.add(s);
+    request.add(QUERY_MERGE_SRC_FIELD, sourceList);
+    return request;
+  }
+
+  @Test
+  public void mergeNamedTheta() {
+    update("theta1", 0, 1000);
+    update("theta2", 500, 1500);
+
+    // returned as a serialized image
+    final JsonObject request = mergeRequest(null, "theta1", "theta2");
+    request.addProperty(QUERY_MERGE_K_FIELD, 12);
+    final JsonObject response = new JsonObject();
+    assertEquals(postData(MERGE_PATH, request, response), HttpServletResponse.SC_OK);
+    final String b64 = response.get(RESPONSE_FIELD).getAsJsonObject().get(QUERY_SKETCH_FIELD).getAsString();
+    final Sketch merged = Sketch.wrap(Memory.wrap(Base64.getUrlDecoder().decode(b64)));
+    assertEquals(merged.getEstimate(), 1500, 1500 * 2e-2);
+
+    // into a named target, with sources unchanged
+    assertEquals(postData(MERGE_PATH, mergeRequest("theta3", "theta1", "theta2"), new JsonObject()),
+        HttpServletResponse.SC_OK);
+    assertEquals(((Union) server_.getSketch("theta3").sketch_).getResult().getEstimate(), 1500, 1500 * 2e-2);
+    assertEquals(((Union) server_.getSketch("theta1").sketch_).getResult().getEstimate(), 1000, 1000 * 2e-2);
+  }
+
+  @Test
+  public void mergeNamedHll() {
+    update("hll2", 0, 1000);
+    update("hll3", 500, 1500);
+
+    assertEquals(postData(MERGE_PATH, mergeRequest("hll4", "hll2", "hll3"), new JsonObject()),
+        HttpServletResponse.SC_OK);
+    assertEquals(((HllSketch) server_.getSketch("hll4").sketch_).getEstimate(), 1500, 1500 * 2e-2);
+
+    // a second merge reuses the cached source images and must give the same result
+    assertEquals(postData(MERGE_PATH, mergeRequest("hll1", "hll2", "hll3"), new JsonObject()),
+        HttpServletResponse.SC_OK);
+    assertEquals(((HllSketch) server_.getSketch("hll1").sketch_).getEstimate(),
+        ((HllSketch) server_.getSketch("hll4").sketch_).getEstimate());
+  }
+
+  @Test
+  public void mergeLongItems() {
+    final LongsSketch input = new LongsSketch(64);
+    for (long i = 0; i < 10; ++i)
+      input.update(i, 10 + i);
+
+    final JsonObject source = new JsonObject();
+    source.addProperty(QUERY_FAMILY_FIELD, "frequency");
+    source.addProperty(QUERY_TYPE_FIELD, "long");
+    source.addProperty(QUERY_DATA_FIELD, Base64.getUrlEncoder().encodeToString(input.toByteArray()));
+    final JsonObject request = mergeRequest("topLongs");
+    request.getAsJsonArray(QUERY_MERGE_SRC_FIELD).add(source);
+    assertEquals(postData(MERGE_PATH, request, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final LongsSketch merged = (LongsSketch) server_.getSketch("topLongs").sketch_;
+    assertEquals(merged.getEstimate(9), input.getEstimate(9));
+
+    // the item type must match the target's
+    source.remove(QUERY_TYPE_FIELD);
+    assertEquals(postData(MERGE_PATH, request, new JsonObject()), UNPROCESSABLE_ENTITY);
+    assertEquals(postData(MERGE_PATH, mergeRequest("topLongs", "topItems"), new JsonObject()), UNPROCESSABLE_ENTITY);
+  }
+
+  @Test
+  public void mergeTuple() {
+    final ArrayOfDoublesUpdatableSketch input = new ArrayOfDoublesUpdatableSketchBuilder().setNumberOfValues(2).build();
+    for (int i = 0; i < 100; ++i)
+      input.update("merged" + i, new double[] {1.0, i});
+
+    final JsonObject source = new JsonObject();
+    source.addProperty(QUERY_FAMILY_FIELD, "tuple");
+    source.addProperty(QUERY_DATA_FIELD, Base64.getUrlEncoder().encodeToString(input.compact().toByteArray()));
+    final JsonObject request = mergeRequest("segmentUsers");
+    request.getAsJsonArray(QUERY_MERGE_SRC_FIELD).add(source);
+    assertEquals(postData(MERGE_PATH, request, new JsonObject()), HttpServletResponse.SC_OK);
+    // merging again sums the values of the now-existing keys
+    assertEquals(postData(MERGE_PATH, request, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final ArrayOfDoublesSketch merged = ((ArrayOfDoublesUnion) server_.getSketch("segmentUsers").sketch_).getResult();
+    assertEquals(merged.getRetainedEntries(), 100);
+    final ArrayOfDoublesSketchIterator it = merged.iterator();
+    while (it.next())
+      assertEquals(it.getValues()[0], 2.0);
+
+    // the number of values must match the target's
+    final ArrayOfDoublesUpdatableSketch wrongSize = new ArrayOfDoublesUpdatableSketchBuilder().build();
+    wrongSize.update("other", new double[] {1.0});
+    source.addProperty(QUERY_DATA_FIELD, Base64.getUrlEncoder().encodeToString(wrongSize.compact().toByteArray()));
+    assertEquals(postData(MERGE_PATH, request, new JsonObject()), UNPROCESSABLE_ENTITY);
+  }
+
+  @Test
+  public void parallelUnion() {
+    // enough sketches to use parallel chunks, with overlapping ranges
+    final List<MergeHandler.MergeEntry> sketchList = new ArrayList<>();
+    for (int s = 0; s < 300; ++s) {
+      final HllSketch sk = new HllSketch(12);
+      for (int i = 0; i < 100; ++i)
+        sk.update(s * 50 + i);
+      sketchList.add(new MergeHandler.MergeEntry("parallel" + s, sk));
+    }
+
+    final HllSketch result = (HllSketch) MergeHandler.unionSketches(Family.HLL, null, 12, null, sketchList);
+    final HllSketch sequential = (HllSketch) MergeHandler.unionSketches(Family.HLL, null, 12, null, sketchList.subList(0, 50));
+    assertEquals(sequential.getEstimate(), 50 * 50 + 50, (50 * 50 + 50) * 3e-2);
+    assertEquals(result.getEstimate(), 300 * 50 + 50, (300 * 50 + 50) * 3e-2);
+  }
+
+  @Test(timeOut = 60000)
+  public void opposingMerges() throws Exception {
+    // merges in opposite directions between the same pair must not deadlock
+    final List<SketchServerConfig.SketchInfo> list = new ArrayList<>();
+    list.add(new SketchServerConfig.SketchInfo("a", 200, "kll", null));
+    list.add(new SketchServerConfig.SketchInfo("b", 200, "kll", null));
+    final SketchStorage sketches = new SketchStorage(list);
+    final MergeHandler handler = new MergeHandler(sketches);
+    for (final String name : new String[] {"a", "b"}) {
+      final SketchStorage.SketchEntry se = sketches.getSketch(name);
+      synchronized (se.name_.intern()) {
+        ((KllFloatsSketch) se.getOrCreateSketch()).update(1.0f);
+      }
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final Future<?> intoA = executor.submit(() -> {
+        for (int i = 0; i < 20; ++i)
+          handler.processQuery(mergeRequest("a", "b"));
+      });
+      final Future<?> intoB = executor.submit(() -> {
+        for (int i = 0; i < 20; ++i)
+          handler.processQuery(mergeRequest("b", "a"));
+      });
+      intoA.get();
+      intoB.get();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
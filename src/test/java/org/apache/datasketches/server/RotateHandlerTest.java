@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.SketchConstants.ERROR_KEY;
+import static org.apache.datasketches.server.SketchConstants.QUERY_NAMES_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_PREFIX_FIELD;
+import static org.apache.datasketches.server.SketchConstants.ROTATE_PATH;
+import static org.apache.datasketches.server.SketchConstants.UNPROCESSABLE_ENTITY;
+import static org.apache.datasketches.server.SketchConstants.UPDATE_PATH;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import org.apache.datasketches.cpc.CpcSketch;
+import org.apache.datasketches.memory.Memory;
+import org.apache.datasketches.theta.Sketch;
+import org.testng.annotations.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class RotateHandlerTest extends ServerTestBase {
+
+  // posts the request and decodes the binary response into name -> serialized image
+  private int postRotate(final JsonObject request, final HashMap<String, byte[]> result) {
+    return postRotate(request, result, new JsonObject());
+  }
+
+  // as above, also adding any error response to the given object
+  private int postRotate(final JsonObject request, final HashMap<String, byte[]> result, final JsonObject error) {
+    HttpURLConnection http = null;
+    int status = -1;
+    try {
+      final URL url = new URL(serverUri_ + ROTATE_PATH);
+      http = (HttpURLConnection) url.openConnection();
+      http.setDoOutput(true);
+      http.setRequestMethod("POST");
+      http.setRequestProperty("Content-Type", "application/json");
+      try (final OutputStream os = http.getOutputStream()) {
+        os.write(request.toString().getBytes(StandardCharsets.UTF_8));
+      }
+
+      status = http.getResponseCode();
+      if (status == HttpServletResponse.SC_OK) {
+        try (final DataInputStream in = new DataInputStream(http.getInputStream())) {
+          while (true) {
+            final String name;
+            try {
+              name = in.readUTF();
+            } catch (final EOFException e) {
+              break;
+            }
+            in.readUTF(); // family
+            in.readUTF(); // type
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            result.put(name, bytes);
+          }
+        }
+      } else if (http.getErrorStream() != null) {
+        try (final InputStreamReader isr = new InputStreamReader(http.getErrorStream(), StandardCharsets.UTF_8)) {
+          error.add(RESPONSE_FIELD, JsonParser.parseReader(isr));
+        }
+      }
+    } catch (final IOException e) {
+      fail();
+    } finally {
+      if (http != null)
+        http.disconnect();
+    }
+    return status;
+  }
+
+  @Test
+  public void rotateByName() {
+    final int nPoints = 100;
+    final JsonObject update = new JsonObject();
+    final JsonArray data = new JsonArray();
+    for (int i = 0; i < nPoints; ++i)
+      data.add(i);
+    update.add("cpcOfNumbers", data);
+    update.add("theta0", data);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final JsonObject request = new JsonObject();
+    final JsonArray names = new JsonArray();
+    names.add("cpcOfNumbers");
+    names.add("theta0");
+    request.add(QUERY_NAMES_FIELD, names);
+
+    final HashMap<String, byte[]> result = new HashMap<>();
+    assertEquals(postRotate(request, result), HttpServletResponse.SC_OK);
+    assertEquals(result.size(), 2);
+
+    assertEquals(CpcSketch.heapify(Memory.wrap(result.get("cpcOfNumbers"))).getEstimate(), nPoints, nPoints * 1e-2);
+    assertEquals(Sketch.heapify(Memory.wrap(result.get("theta0"))).getEstimate(), nPoints, nPoints * 1e-2);
+
+    // sketches were reset in the process
+    assertNull(server_.getSketch("cpcOfNumbers").sketch_);
+    assertNull(server_.getSketch("theta0").sketch_);
+  }
+
+  @Test
+  public void rotateByPrefix() {
+    final JsonObject request = new JsonObject();
+    request.addProperty(QUERY_PREFIX_FIELD, "hll");
+
+    final HashMap<String, byte[]> result = new HashMap<>();
+    assertEquals(postRotate(request, result), HttpServletResponse.SC_OK);
+    assertEquals(result.size(), 4);
+    assertTrue(result.containsKey("hll1"));
+    assertTrue(result.containsKey("hll4"));
+  }
+
+  @Test
+  public void invalidName() {
+    final JsonObject request = new JsonObject();
+    final JsonArray names = new JsonArray();
+    names.add("hll2");
+    names.add("doesNotExist");
+    request.add(QUERY_NAMES_FIELD, names);
+
+    final JsonObject error = new JsonObject();
+    assertEquals(postRotate(request, new HashMap<>(), error), UNPROCESSABLE_ENTITY);
+    assertTrue(error.getAsJsonObject(RESPONSE_FIELD).get(ERROR_KEY).getAsString().contains("doesNotExist"));
+  }
+}
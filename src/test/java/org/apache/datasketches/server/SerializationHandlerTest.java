@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.SketchConstants.CONFIG_SKETCHES_PREFIX;
+import static org.apache.datasketches.server.SketchConstants.QUERY_NAME_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_SKETCH_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_TAG_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESET_PATH;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_SKETCH_COUNT_FIELD;
+import static org.apache.datasketches.server.SketchConstants.SERIALIZE_PATH;
+import static org.apache.datasketches.server.SketchConstants.UNPROCESSABLE_ENTITY;
+import static org.apache.datasketches.server.SketchConstants.UPDATE_PATH;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.Base64;
+import java.util.HashMap;
+
+import org.apache.datasketches.cpc.CpcSketch;
+import org.apache.datasketches.memory.Memory;
+import org.testng.annotations.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+public class SerializationHandlerTest extends ServerTestBase {
+
+  @Test
+  public void tagGroup() {
+    final JsonObject update = new JsonObject();
+    final JsonArray data = new JsonArray();
+    for (int i = 0; i < 100; ++i)
+      data.add(i);
+    update.add("cpcOfNumbers", data);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final JsonObject request = new JsonObject();
+    request.addProperty(QUERY_TAG_FIELD, "team=web");
+    final JsonObject response = new JsonObject();
+    assertEquals(postData(SERIALIZE_PATH, request, response), HttpServletResponse.SC_OK);
+    final JsonObject result = response.get(RESPONSE_FIELD).getAsJsonObject();
+    assertEquals(result.get(RESPONSE_SKETCH_COUNT_FIELD).getAsInt(), 5);
+
+    final HashMap<String, byte[]> images = new HashMap<>();
+    for (final JsonElement e : result.get(CONFIG_SKETCHES_PREFIX).getAsJsonArray()) {
+      final JsonObject sketch = e.getAsJsonObject();
+      images.put(sketch.get(QUERY_NAME_FIELD).getAsString(),
+          Base64.getUrlDecoder().decode(sketch.get(QUERY_SKETCH_FIELD).getAsString()));
+    }
+    assertEquals(CpcSketch.heapify(Memory.wrap(images.get("cpcOfNumbers"))).getEstimate(), 100, 100 * 1e-2);
+
+    // reset the same group
+    final JsonObject reset = new JsonObject();
+    reset.addProperty(QUERY_TAG_FIELD, "region=eu");
+    assertEquals(postData(RESET_PATH, reset, new JsonObject()), HttpServletResponse.SC_OK);
+    assertNull(server_.getSketch("cpcOfNumbers").sketch_);
+
+    // tags must be key=value
+    final JsonObject invalid = new JsonObject();
+    invalid.addProperty(QUERY_TAG_FIELD, "web");
+    assertEquals(postData(SERIALIZE_PATH, invalid, new JsonObject()), UNPROCESSABLE_ENTITY);
+  }
+}
@@ -34,6 +34,7 @@ import org.checkerframework.checker.nullness.qual.NonNull;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
@@ -67,7 +68,7 @@ public class ServerTestBase {
   }
 
   int postData(@NonNull final String path,
-               @NonNull final JsonObject data,
+               @NonNull final JsonElement data,
                @NonNull final JsonObject response) {
     HttpURLConnection http = null;
     int status = -1;
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.SketchConstants.ERROR_KEY;
+import static org.apache.datasketches.server.SketchConstants.QUERY_METRIC_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_METRIC_OVERLAP;
+import static org.apache.datasketches.server.SketchConstants.QUERY_NAMES_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_PREFIX_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_NAME_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_VALUES_FIELD;
+import static org.apache.datasketches.server.SketchConstants.SIMILARITY_PATH;
+import static org.apache.datasketches.server.SketchConstants.UNPROCESSABLE_ENTITY;
+import static org.apache.datasketches.server.SketchConstants.UPDATE_PATH;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import org.testng.annotations.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class SimilarityHandlerTest extends ServerTestBase {
+
+  // posts the request and collects the streamed rows by name, along with any error under its key
+  private int postSimilarity(final JsonObject request, final HashMap<String, JsonObject> rows) {
+    HttpURLConnection http = null;
+    int status = -1;
+    try {
+      final URL url = new URL(serverUri_ + SIMILARITY_PATH);
+      http = (HttpURLConnection) url.openConnection();
+      http.setDoOutput(true);
+      http.setRequestMethod("POST");
+      http.setRequestProperty("Content-Type", "application/json");
+      try (final OutputStream os = http.getOutputStream()) {
+        os.write(request.toString().getBytes(StandardCharsets.UTF_8));
+      }
+
+      status = http.getResponseCode();
+      if (status == HttpServletResponse.SC_OK) {
+        try (final BufferedReader reader =
+                 new BufferedReader(new InputStreamReader(http.getInputStream(), StandardCharsets.UTF_8))) {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            final JsonObject row = JsonParser.parseString(line).getAsJsonObject();
+            if (row.has(ERROR_KEY)) {
+              rows.put(ERROR_KEY, row);
+            } else {
+              rows.put(row.get(RESPONSE_NAME_FIELD).getAsString(), row.get(RESPONSE_VALUES_FIELD).getAsJsonObject());
+            }
+          }
+        }
+      } else if (http.getErrorStream() != null) {
+        try (final InputStreamReader isr = new InputStreamReader(http.getErrorStream(), StandardCharsets.UTF_8)) {
+          rows.put(ERROR_KEY, JsonParser.parseReader(isr).getAsJsonObject());
+        }
+      }
+    } catch (final IOException e) {
+      fail();
+    } finally {
+      if (http != null)
+        http.disconnect();
+    }
+    return status;
+  }
+
+  @Test
+  public void similarityMatrix() {
+    // theta0 holds [0, 1000), theta1 holds [500, 1500), theta2 holds [0, 1000)
+    final JsonObject update = new JsonObject();
+    final JsonArray data0 = new JsonArray();
+    final JsonArray data1 = new JsonArray();
+    for (int i = 0; i < 1000; ++i) {
+      data0.add(i);
+      data1.add(i + 500);
+    }
+    update.add("theta0", data0);
+    update.add("theta1", data1);
+    update.add("theta2", data0);
+    assertEquals(postData(UPDATE_PATH, update, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final JsonObject request = new JsonObject();
+    final JsonArray names = new JsonArray();
+    names.add("theta0");
+    names.add("theta1");
+    names.add("theta2");
+    request.add(QUERY_NAMES_FIELD, names);
+
+    HashMap<String, JsonObject> rows = new HashMap<>();
+    assertEquals(postSimilarity(request, rows), HttpServletResponse.SC_OK);
+    assertEquals(rows.size(), 3);
+    assertEquals(rows.get("theta0").get("theta1").getAsDouble(), 1.0 / 3, 2e-2);
+    assertEquals(rows.get("theta0").get("theta2").getAsDouble(), 1.0);
+    assertEquals(rows.get("theta1").get("theta2").getAsDouble(), 1.0 / 3, 2e-2);
+    assertFalse(rows.get("theta1").has("theta0"));
+    assertEquals(rows.get("theta2").size(), 0);
+
+    request.addProperty(QUERY_METRIC_FIELD, QUERY_METRIC_OVERLAP);
+    rows = new HashMap<>();
+    assertEquals(postSimilarity(request, rows), HttpServletResponse.SC_OK);
+    assertEquals(rows.get("theta0").get("theta1").getAsDouble(), 500, 500 * 5e-2);
+    assertEquals(rows.get("theta0").get("theta2").getAsDouble(), 1000, 1000 * 2e-2);
+  }
+
+  @Test
+  public void invalidRequest() {
+    final JsonObject request = new JsonObject();
+    request.addProperty(QUERY_PREFIX_FIELD, "hll");
+    final HashMap<String, JsonObject> rows = new HashMap<>();
+    assertEquals(postSimilarity(request, rows), UNPROCESSABLE_ENTITY);
+    assertTrue(rows.get(ERROR_KEY).get(ERROR_KEY).getAsString().contains("theta"));
+
+    final JsonObject badMetric = new JsonObject();
+    badMetric.addProperty(QUERY_PREFIX_FIELD, "theta");
+    badMetric.addProperty(QUERY_METRIC_FIELD, "cosine");
+    assertEquals(postSimilarity(badMetric, new HashMap<>()), UNPROCESSABLE_ENTITY);
+  }
+}
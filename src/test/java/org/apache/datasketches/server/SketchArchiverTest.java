@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.apache.datasketches.server.ArchiveStore.DAY;
+import static org.apache.datasketches.server.ArchiveStore.HOUR;
+import static org.apache.datasketches.server.ArchiveStore.LEVEL_MS;
+import static org.apache.datasketches.server.ArchiveStore.MINUTE;
+import static org.apache.datasketches.server.SketchConstants.QUERY_FRACTIONS_NAME_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_FROM_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_MERGE_K_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_MERGE_SRC_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_NAME_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_SKETCH_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_TO_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_ESTIMATE_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_MAX_VALUE;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_SKETCH_COUNT_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_STREAM_LENGTH;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.apache.datasketches.memory.Memory;
+import org.apache.datasketches.theta.Sketch;
+import org.testng.annotations.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+public class SketchArchiverTest {
+  private static final long DAY0 = 19000 * LEVEL_MS[DAY];
+  private static final int USERS_PER_MINUTE = 10;
+
+  private static SketchStorage createStorage() {
+    final List<SketchServerConfig.SketchInfo> list = new ArrayList<>();
+    final SketchServerConfig.SketchInfo users = new SketchServerConfig.SketchInfo("users", 12, "theta", "string");
+    users.archive = true;
+    list.add(users);
+    final SketchServerConfig.SketchInfo latency = new SketchServerConfig.SketchInfo("latency", 200, "kll", null);
+    latency.archive = true;
+    list.add(latency);
+    list.add(new SketchServerConfig.SketchInfo("live", 200, "kll", null));
+    return new SketchStorage(list);
+  }
+
+  private static void update(final SketchStorage sketches, final String name, final JsonArray values) {
+    final SketchStorage.SketchEntry se = sketches.getSketch(name);
+    synchronized (se.name_.intern()) {
+      se.updater_.update(se.getOrCreateSketch(), values);
+    }
+  }
+
+  // archives the given minutes, each with distinct users and a latency equal to the minute
+  private static void archiveMinutes(final SketchStorage sketches, final SketchArchiver archiver,
+                                     final int fromMinute, final int toMinute) {
+    for (int m = fromMinute; m < toMinute; ++m) {
+      final JsonArray users = new JsonArray();
+      for (int u = 0; u < USERS_PER_MINUTE; ++u) {
+        users.add("user" + (m * USERS_PER_MINUTE + u));
+      }
+      update(sketches, "users", users);
+      final JsonArray latency = new JsonArray();
+      latency.add(m);
+      update(sketches, "latency", latency);
+      update(sketches, "live", latency);
+      archiver.archiveInterval(DAY0 + m * LEVEL_MS[MINUTE]);
+    }
+  }
+
+  private static JsonObject rangeQuery(final String name, final long fromMs, final long toMs) {
+    final JsonObject query = new JsonObject();
+    query.addProperty(QUERY_NAME_FIELD, name);
+    query.addProperty(QUERY_FROM_FIELD, fromMs);
+    query.addProperty(QUERY_TO_FIELD, toMs);
+    return query;
+  }
+
+  @Test
+  public void queryArchivedRanges() throws IOException {
+    final SketchStorage sketches = createStorage();
+    final Path dir = Files.createTempDirectory("archiverTest");
+    final SketchArchiver archiver = new SketchArchiver(sketches, dir);
+    // an hour and ten minutes, so the first hour is compacted
+    archiveMinutes(sketches, archiver, 0, 70);
+
+    // archived sketches are drained each minute, others are left alone
+    assertNull(sketches.getSketch("users").sketch_);
+    assertEquals(((org.apache.datasketches.kll.KllFloatsSketch) sketches.getSketch("live").sketch_).getN(), 70);
+
+    final DataQueryHandler handler = new DataQueryHandler(sketches, archiver);
+    JsonObject result = handler.processQuery(rangeQuery("users", DAY0, DAY0 + 70 * LEVEL_MS[MINUTE]));
+    assertEquals(result.get(RESPONSE_SKETCH_COUNT_FIELD).getAsInt(), 11); // one hour and ten minutes
+    assertEquals(result.get(RESPONSE_ESTIMATE_FIELD).getAsDouble(), 70.0 * USERS_PER_MINUTE);
+
+    result = handler.processQuery(rangeQuery("users", DAY0 + 30 * LEVEL_MS[MINUTE], DAY0 + 40 * LEVEL_MS[MINUTE]));
+    assertEquals(result.get(RESPONSE_SKETCH_COUNT_FIELD).getAsInt(), 10);
+    assertEquals(result.get(RESPONSE_ESTIMATE_FIELD).getAsDouble(), 10.0 * USERS_PER_MINUTE);
+
+    final JsonObject quantilesQuery = rangeQuery("latency", DAY0, DAY0 + LEVEL_MS[HOUR]);
+    final JsonArray fractions = new JsonArray();
+    fractions.add(0.5);
+    quantilesQuery.add(QUERY_FRACTIONS_NAME_FIELD, fractions);
+    result = handler.processQuery(quantilesQuery);
+    assertEquals(result.get(RESPONSE_SKETCH_COUNT_FIELD).getAsInt(), 1);
+    assertEquals(result.get(RESPONSE_STREAM_LENGTH).getAsLong(), 60);
+    assertEquals(result.get(RESPONSE_MAX_VALUE).getAsFloat(), 59.0f);
+
+    // nothing archived in the range
+    result = handler.processQuery(rangeQuery("users", 0, DAY0));
+    assertEquals(result.get(RESPONSE_SKETCH_COUNT_FIELD).getAsInt(), 0);
+    assertEquals(result.get(RESPONSE_ESTIMATE_FIELD).getAsDouble(), 0.0);
+
+    // a range as a merge source, here returning the serialized union
+    final JsonObject merge = new JsonObject();
+    merge.addProperty(QUERY_MERGE_K_FIELD, 12);
+    final JsonArray sources = new JsonArray();
+    final JsonObject source = rangeQuery("users", DAY0 + LEVEL_MS[HOUR], DAY0 + 2 * LEVEL_MS[HOUR]);
+    sources.add(source);
+    merge.add(QUERY_MERGE_SRC_FIELD, sources);
+    result = new MergeHandler(sketches, archiver).processQuery(merge);
+    final Sketch merged = Sketch.wrap(Memory.wrap(Base64.getUrlDecoder()
+        .decode(result.get(QUERY_SKETCH_FIELD).getAsString())));
+    assertEquals(merged.getEstimate(), 10.0 * USERS_PER_MINUTE);
+  }
+
+  @Test
+  public void compactsAcrossRestarts() throws IOException, InterruptedException {
+    final Path dir = Files.createTempDirectory("archiverTest");
+    SketchStorage sketches = createStorage();
+    SketchArchiver archiver = new SketchArchiver(sketches, dir);
+    archiveMinutes(sketches, archiver, 0, 30);
+
+    // a new server on the same archive completes the hour, compacting minutes written by both
+    sketches = createStorage();
+    archiver = new SketchArchiver(sketches, dir);
+    archiveMinutes(sketches, archiver, 30, 60);
+    final JsonObject result = new DataQueryHandler(sketches, archiver)
+        .processQuery(rangeQuery("users", DAY0, DAY0 + LEVEL_MS[DAY]));
+    assertEquals(result.get(RESPONSE_SKETCH_COUNT_FIELD).getAsInt(), 1);
+    assertEquals(result.get(RESPONSE_ESTIMATE_FIELD).getAsDouble(), 60.0 * USERS_PER_MINUTE);
+  }
+
+  @Test
+  public void archivesMinuteTwice() throws IOException {
+    final SketchStorage sketches = createStorage();
+    final SketchArchiver archiver = new SketchArchiver(sketches, Files.createTempDirectory("archiverTest"));
+    archiveMinutes(sketches, archiver, 0, 5);
+
+    // part of minute 5 archived as on stopping, with the rest archived at its end after a restart
+    final JsonArray early = new JsonArray();
+    for (int u = 0; u < USERS_PER_MINUTE; ++u) {
+      early.add("early" + u);
+    }
+    update(sketches, "users", early);
+    archiver.archiveMinute(DAY0 + 5 * LEVEL_MS[MINUTE]);
+    archiveMinutes(sketches, archiver, 5, 60);
+
+    final DataQueryHandler handler = new DataQueryHandler(sketches, archiver);
+    JsonObject result = handler.processQuery(rangeQuery("users", DAY0 + 5 * LEVEL_MS[MINUTE],
+        DAY0 + 6 * LEVEL_MS[MINUTE]));
+    assertEquals(result.get(RESPONSE_SKETCH_COUNT_FIELD).getAsInt(), 2);
+    assertEquals(result.get(RESPONSE_ESTIMATE_FIELD).getAsDouble(), 2.0 * USERS_PER_MINUTE);
+
+    // both records are compacted into the hour
+    result = handler.processQuery(rangeQuery("users", DAY0, DAY0 + LEVEL_MS[HOUR]));
+    assertEquals(result.get(RESPONSE_SKETCH_COUNT_FIELD).getAsInt(), 1);
+    assertEquals(result.get(RESPONSE_ESTIMATE_FIELD).getAsDouble(), 61.0 * USERS_PER_MINUTE);
+  }
+
+  @Test
+  public void rejectsInvalidRanges() throws IOException {
+    final SketchStorage sketches = createStorage();
+    try {
+      new DataQueryHandler(sketches).processQuery(rangeQuery("users", 0, DAY0));
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected: no archive configured
+    }
+
+    // decayed and windowed sketches have no plain history to archive
+    final List<SketchServerConfig.SketchInfo> list = new ArrayList<>();
+    final SketchServerConfig.SketchInfo windowed = new SketchServerConfig.SketchInfo("recent", 200, "kll", null);
+    windowed.window = 60.0;
+    windowed.archive = true;
+    list.add(windowed);
+    try {
+      new SketchStorage(list);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("recent"));
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.datasketches.cpc.CpcSketch;
+import org.apache.datasketches.hll.HllSketch;
+import org.apache.datasketches.theta.Union;
+import org.testng.annotations.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+public class SketchPusherTest extends ServerTestBase {
+
+  private static SketchStorage createLocalStorage() {
+    final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    SketchServerConfig serverConfig = null;
+    try {
+      serverConfig = new SketchServerConfig(Objects.requireNonNull(classLoader.getResource("test_config.json")).getFile());
+    } catch (final IOException e) {
+      fail();
+    }
+    assertNotNull(serverConfig);
+    return new SketchStorage(serverConfig.getSketchList());
+  }
+
+  private static SketchServerConfig.PushInfo createPushInfo(final String target, final Path spoolDir) {
+    final SketchServerConfig.PushInfo info = new SketchServerConfig.PushInfo();
+    info.target = target;
+    info.retries = 0;
+    info.spoolDir = spoolDir.toString();
+    return info;
+  }
+
+  @Test
+  public void pushToUpstream() throws IOException {
+    final SketchStorage local = createLocalStorage();
+    final int nPoints = 1000;
+    for (int i = 0; i < nPoints; ++i) {
+      ((CpcSketch) local.getSketch("cpcOfNumbers").getOrCreateSketch()).update(i);
+      ((Union) local.getSketch("theta4").getOrCreateSketch()).update(i);
+    }
+
+    final Path spoolDir = Files.createTempDirectory("pushTest");
+    final SketchPusher pusher = new SketchPusher(local, createPushInfo(serverUri_, spoolDir));
+    pusher.pushAll();
+
+    // local sketches were swapped for empty ones
+    assertNull(local.getSketch("cpcOfNumbers").sketch_);
+    assertNull(local.getSketch("theta4").sketch_);
+
+    // and the upstream sketches received the data
+    final CpcSketch cpc = (CpcSketch) server_.getSketch("cpcOfNumbers").sketch_;
+    assertEquals(cpc.getEstimate(), nPoints, nPoints * 1e-2);
+    final Union theta = (Union) server_.getSketch("theta4").sketch_;
+    assertEquals(theta.getResult().getEstimate(), nPoints, nPoints * 1e-2);
+    assertEquals(spoolDir.toFile().list().length, 0);
+  }
+
+  @Test
+  public void keepsLocalRollups() throws IOException {
+    final List<SketchServerConfig.SketchInfo> list = new ArrayList<>();
+    list.add(new SketchServerConfig.SketchInfo("hll1", 12, "hll", "string"));
+    final SketchServerConfig.SketchInfo rollup = new SketchServerConfig.SketchInfo("hllTotal", 12, "hll", "string");
+    rollup.members = new String[] {"hll1"};
+    list.add(rollup);
+    final SketchStorage local = new SketchStorage(list);
+    final JsonObject update = new JsonObject();
+    final JsonArray data = new JsonArray();
+    for (int i = 0; i < 100; ++i)
+      data.add("item" + i);
+    update.add("hll1", data);
+    new UpdateHandler(local).processQuery(update);
+
+    final Path spoolDir = Files.createTempDirectory("pushTest");
+    new SketchPusher(local, createPushInfo(serverUri_, spoolDir)).pushAll();
+
+    // the member is pushed and reset, while the rollup keeps its running total
+    assertNull(local.getSketch("hll1").sketch_);
+    assertEquals(((HllSketch) local.getSketch("hllTotal").sketch_).getEstimate(), 100, 100 * 2e-2);
+    assertEquals(spoolDir.toFile().list().length, 0);
+  }
+
+  @Test
+  public void spoolOnFailure() throws IOException {
+    final SketchStorage local = createLocalStorage();
+    final int nPoints = 500;
+    for (int i = 0; i < nPoints; ++i) {
+      ((Union) local.getSketch("theta3").getOrCreateSketch()).update(i);
+    }
+
+    // nothing listens on port 1, so the push is spooled
+    final Path spoolDir = Files.createTempDirectory("pushTest");
+    final SketchPusher failingPusher = new SketchPusher(local, createPushInfo("http://localhost:1", spoolDir));
+    failingPusher.pushAll();
+    assertNull(local.getSketch("theta3").sketch_);
+    assertEquals(spoolDir.toFile().list().length, 1);
+
+    // a later cycle with a reachable upstream server flushes the spool
+    final SketchPusher pusher = new SketchPusher(local, createPushInfo(serverUri_, spoolDir));
+    pusher.pushAll();
+    assertEquals(spoolDir.toFile().list().length, 0);
+    final Union theta = (Union) server_.getSketch("theta3").sketch_;
+    assertEquals(theta.getResult().getEstimate(), nPoints, nPoints * 1e-2);
+  }
+
+  @Test
+  public void quarantineRejectedRequests() throws IOException {
+    // the upstream server has no sketch of this name, so will always reject it
+    final List<SketchServerConfig.SketchInfo> list = new ArrayList<>();
+    list.add(new SketchServerConfig.SketchInfo("notUpstream", 12, "theta", "int"));
+    list.add(new SketchServerConfig.SketchInfo("theta2", 12, "theta", "int"));
+    final SketchStorage local = new SketchStorage(list);
+    final int nPoints = 500;
+    for (int i = 0; i < nPoints; ++i) {
+      ((Union) local.getSketch("notUpstream").getOrCreateSketch()).update(i);
+      ((Union) local.getSketch("theta2").getOrCreateSketch()).update(i);
+    }
+
+    final Path spoolDir = Files.createTempDirectory("pushTest");
+    new SketchPusher(local, createPushInfo("http://localhost:1", spoolDir)).pushAll();
+    assertEquals(spoolDir.toFile().list().length, 2);
+
+    // the rejected request is set aside without blocking the other, and later pushes still go upstream
+    final SketchPusher pusher = new SketchPusher(local, createPushInfo(serverUri_, spoolDir));
+    pusher.pushAll();
+    final Path rejectedDir = spoolDir.resolve("rejected");
+    assertEquals(rejectedDir.toFile().list().length, 1);
+    assertEquals(spoolDir.toFile().list().length, 1); // only the rejected directory
+    assertEquals(((Union) server_.getSketch("theta2").sketch_).getResult().getEstimate(), nPoints, nPoints * 2e-2);
+
+    ((Union) local.getSketch("theta2").getOrCreateSketch()).update(-1L);
+    pusher.pushAll();
+    assertNull(local.getSketch("theta2").sketch_);
+    assertEquals(spoolDir.toFile().list().length, 1);
+  }
+}
@@ -19,21 +19,42 @@
 
 package org.apache.datasketches.server;
 
+import static org.apache.datasketches.server.SketchConstants.QUERY_DATA_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_FAMILY_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_MERGE_SRC_FIELD;
+import static org.apache.datasketches.server.SketchConstants.QUERY_MERGE_TGT_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_ADDED_COUNT_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_CHANGED_COUNT_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_REMOVED_COUNT_FIELD;
+import static org.apache.datasketches.server.SketchConstants.RESPONSE_RETAINED_COUNT_FIELD;
 import static org.apache.datasketches.server.SketchConstants.RESPONSE_SKETCH_COUNT_FIELD;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 import org.apache.datasketches.Family;
+import org.apache.datasketches.SketchesException;
 import org.apache.datasketches.cpc.CpcSketch;
 import org.apache.datasketches.hll.HllSketch;
+import org.apache.datasketches.kll.KllFloatsSketch;
+import org.apache.datasketches.theta.Sketch;
+import org.apache.datasketches.theta.Union;
 import org.testng.annotations.Test;
 
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 public class SketchStorageTest {
@@ -69,7 +90,283 @@ public class SketchStorageTest {
     final SketchStorage storage = new SketchStorage(serverConfig.getSketchList());
     final JsonObject sketches = storage.listSketches();
     assertTrue(sketches.has(RESPONSE_SKETCH_COUNT_FIELD));
-    assertEquals(sketches.get(RESPONSE_SKETCH_COUNT_FIELD).getAsInt(), 15);
+    assertEquals(sketches.get(RESPONSE_SKETCH_COUNT_FIELD).getAsInt(), 23);
     assertTrue(storage.contains("cpcOfNumbers"));
   }
+
+  @Test
+  public void lazyAllocation() {
+    final List<SketchServerConfig.SketchInfo> list = new ArrayList<>();
+    list.add(new SketchServerConfig.SketchInfo("theta", 12, "theta", "long"));
+    list.add(new SketchServerConfig.SketchInfo("theta2", 12, "theta", "long"));
+    final SketchStorage storage = new SketchStorage(list);
+
+    // nothing allocated until the first write, and reads share a single empty sketch
+    final SketchStorage.SketchEntry entry = storage.getSketch("theta");
+    assertNull(entry.sketch_);
+    assertTrue(((Union) entry.readSketch()).getResult().isEmpty());
+    assertNull(entry.sketch_);
+    assertSame(entry.readSketch(), storage.getSketch("theta2").readSketch());
+
+    ((Union) entry.getOrCreateSketch()).update(1L);
+    assertNotNull(entry.sketch_);
+    assertEquals(((Union) entry.readSketch()).getResult().getEstimate(), 1.0);
+    assertNull(storage.getSketch("theta2").sketch_);
+  }
+
+  @Test
+  public void cachedThetaResult() {
+    final List<SketchServerConfig.SketchInfo> list = new ArrayList<>();
+    list.add(new SketchServerConfig.SketchInfo("theta", 12, "theta", "long"));
+    final SketchStorage storage = new SketchStorage(list);
+    final SketchStorage.SketchEntry entry = storage.getSketch("theta");
+
+    ((Union) entry.getOrCreateSketch()).update(1L);
+    final Object result = entry.readResult();
+    assertEquals(((Sketch) result).getEstimate(), 1.0);
+
+    // reused until the next write
+    assertSame(entry.readResult(), result);
+    ((Union) entry.getOrCreateSketch()).update(2L);
+    final Object updated = entry.readResult();
+    assertNotSame(updated, result);
+    assertEquals(((Sketch) updated).getEstimate(), 2.0);
+
+    entry.clearSketch();
+    assertTrue(((Sketch) entry.readResult()).isEmpty());
+  }
+
+  @Test
+  public void restoreRetiredSketch() {
+    final List<SketchServerConfig.SketchInfo> list = new ArrayList<>();
+    list.add(new SketchServerConfig.SketchInfo("theta", 12, "theta", "long"));
+    list.add(new SketchServerConfig.SketchInfo("kll", 200, "kll", null));
+    final SketchStorage storage = new SketchStorage(list);
+
+    // reinstated as is if not written since the swap
+    final SketchStorage.SketchEntry theta = storage.getSketch("theta");
+    ((Union) theta.getOrCreateSketch()).update(1L);
+    final Object retired = theta.swapSketch();
+    theta.restoreSketch(retired);
+    assertSame(theta.sketch_, retired);
+
+    // otherwise merged with anything written in the meantime
+    final Object retiredAgain = theta.swapSketch();
+    ((Union) theta.getOrCreateSketch()).update(2L);
+    theta.restoreSketch(retiredAgain);
+    assertEquals(((Sketch) theta.readResult()).getEstimate(), 2.0);
+
+    final SketchStorage.SketchEntry kll = storage.getSketch("kll");
+    ((KllFloatsSketch) kll.getOrCreateSketch()).update(1.0f);
+    final Object retiredKll = kll.swapSketch();
+    ((KllFloatsSketch) kll.getOrCreateSketch()).update(2.0f);
+    kll.restoreSketch(retiredKll);
+    assertEquals(((KllFloatsSketch) kll.readSketch()).getN(), 2);
+  }
+
+  @Test
+  public void groupLookup() {
+    final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    SketchServerConfig serverConfig = null;
+    try {
+      serverConfig = new SketchServerConfig(Objects.requireNonNull(classLoader.getResource("test_config.json")).getFile());
+    } catch (final IOException e) {
+      fail();
+    }
+    assertNotNull(serverConfig);
+    final SketchStorage storage = new SketchStorage(serverConfig.getSketchList());
+
+    final List<SketchStorage.SketchEntry> thetas = storage.getSketchesWithPrefix("theta");
+    assertEquals(thetas.size(), 5);
+    assertEquals(thetas.get(0).name_, "theta0");
+    assertEquals(thetas.get(4).name_, "theta4");
+    assertEquals(storage.getSketchesWithPrefix("cpcOf").size(), 2);
+    assertEquals(storage.getSketchesWithPrefix("").size(), 23);
+    assertTrue(storage.getSketchesWithPrefix("zzz").isEmpty());
+
+    assertEquals(storage.getSketchesWithTag("team=web").size(), 5);
+    assertSame(storage.getSketchesWithTag("region=eu").get(0), storage.getSketch("cpcOfNumbers"));
+    assertTrue(storage.getSketchesWithTag("region=us").isEmpty());
+
+    // tags follow the configuration on reload
+    final List<SketchServerConfig.SketchInfo> newList = new ArrayList<>(serverConfig.getSketchList());
+    newList.add(new SketchServerConfig.SketchInfo("newHll", 10, "hll", "long",
+        Collections.singletonMap("region", "us")));
+    storage.reload(newList);
+    assertEquals(storage.getSketchesWithTag("region=us").size(), 1);
+    assertEquals(storage.getSketchesWithPrefix("newHll").size(), 1);
+  }
+
+  private static SketchServerConfig.SketchInfo rollupInfo(final String name, final String family,
+                                                          final String... members) {
+    final SketchServerConfig.SketchInfo info = new SketchServerConfig.SketchInfo(name, 12, family, "string");
+    info.members = members;
+    return info;
+  }
+
+  @Test
+  public void rollups() {
+    final List<SketchServerConfig.SketchInfo> list = new ArrayList<>();
+    list.add(new SketchServerConfig.SketchInfo("hllA", 12, "hll", "string"));
+    list.add(new SketchServerConfig.SketchInfo("hllB", 12, "hll", "string"));
+    list.add(rollupInfo("hllAll", "hll", "hllA", "hllB"));
+    final SketchStorage storage = new SketchStorage(list);
+    assertTrue(storage.isRollup("hllAll"));
+    assertEquals(storage.getRollups("hllA").length, 1);
+    assertEquals(storage.getRollups("hllAll").length, 0);
+
+    // updates and merges into members also reach the rollup
+    final JsonObject update = new JsonObject();
+    final JsonArray dataA = new JsonArray();
+    final JsonArray dataB = new JsonArray();
+    for (int i = 0; i < 100; ++i) {
+      dataA.add("a" + i);
+      dataB.add("b" + i);
+    }
+    update.add("hllA", dataA);
+    update.add("hllB", dataB);
+    new UpdateHandler(storage).processQuery(update);
+    assertEquals(((HllSketch) storage.getSketch("hllAll").sketch_).getEstimate(), 200, 200 * 2e-2);
+
+    final HllSketch extra = new HllSketch(12);
+    for (int i = 0; i < 100; ++i)
+      extra.update("c" + i);
+    final JsonObject source = new JsonObject();
+    source.addProperty(QUERY_FAMILY_FIELD, "hll");
+    source.addProperty(QUERY_DATA_FIELD, Base64.getUrlEncoder().encodeToString(extra.toCompactByteArray()));
+    final JsonArray sources = new JsonArray();
+    sources.add(source);
+    final JsonObject merge = new JsonObject();
+    merge.addProperty(QUERY_MERGE_TGT_FIELD, "hllA");
+    merge.add(QUERY_MERGE_SRC_FIELD, sources);
+    new MergeHandler(storage).processQuery(merge);
+    assertEquals(((HllSketch) storage.getSketch("hllAll").sketch_).getEstimate(), 300, 300 * 2e-2);
+
+    // rollups are only written through their members, and never merged back into them
+    final JsonObject rollupUpdate = new JsonObject();
+    rollupUpdate.add("hllAll", dataA);
+    try {
+      new UpdateHandler(storage).processQuery(rollupUpdate);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+    final JsonObject rollupMerge = new JsonObject();
+    rollupMerge.addProperty(QUERY_MERGE_TGT_FIELD, "hllAll");
+    rollupMerge.add(QUERY_MERGE_SRC_FIELD, sources);
+    try {
+      new MergeHandler(storage).processQuery(rollupMerge);
+      fail();
+    } catch (final SketchesException e) {
+      // expected
+    }
+    final JsonArray rollupSource = new JsonArray();
+    rollupSource.add("hllAll");
+    final JsonObject mergeRollup = new JsonObject();
+    mergeRollup.addProperty(QUERY_MERGE_TGT_FIELD, "hllB");
+    mergeRollup.add(QUERY_MERGE_SRC_FIELD, rollupSource);
+    try {
+      new MergeHandler(storage).processQuery(mergeRollup);
+      fail();
+    } catch (final SketchesException e) {
+      // expected
+    }
+    assertEquals(((HllSketch) storage.getSketch("hllAll").sketch_).getEstimate(), 300, 300 * 2e-2);
+
+    // a rollup added later starts from its members' data
+    final List<SketchServerConfig.SketchInfo> newList = new ArrayList<>(list);
+    newList.add(rollupInfo("hllOnlyB", "hll", "hllB"));
+    storage.reload(newList);
+    assertEquals(((HllSketch) storage.getSketch("hllOnlyB").sketch_).getEstimate(), 100, 100 * 2e-2);
+    assertEquals(storage.getRollups("hllB").length, 2);
+
+    // unless counting its members' data twice would inflate it, in which case it starts empty
+    final List<SketchServerConfig.SketchInfo> kllList = new ArrayList<>();
+    kllList.add(new SketchServerConfig.SketchInfo("kllA", 200, "kll", null));
+    final SketchStorage kllStorage = new SketchStorage(kllList);
+    final JsonObject kllUpdate = new JsonObject();
+    final JsonArray kllData = new JsonArray();
+    kllData.add(1.0);
+    kllData.add(2.0);
+    kllUpdate.add("kllA", kllData);
+    new UpdateHandler(kllStorage).processQuery(kllUpdate);
+    final SketchServerConfig.SketchInfo kllRollup = new SketchServerConfig.SketchInfo("kllAll", 200, "kll", null);
+    kllRollup.members = new String[] {"kllA"};
+    kllList.add(kllRollup);
+    kllStorage.reload(kllList);
+    assertNull(kllStorage.getSketch("kllAll").sketch_);
+    new UpdateHandler(kllStorage).processQuery(kllUpdate);
+    assertEquals(((KllFloatsSketch) kllStorage.getSketch("kllAll").sketch_).getN(), 2);
+    assertEquals(((KllFloatsSketch) kllStorage.getSketch("kllA").sketch_).getN(), 4);
+
+    // members must match the rollup and cannot themselves be rollups
+    newList.add(rollupInfo("thetaAll", "theta", "hllA"));
+    try {
+      storage.reload(newList);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+    newList.set(newList.size() - 1, rollupInfo("hllNested", "hll", "hllAll"));
+    try {
+      storage.reload(newList);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+    assertFalse(storage.contains("hllNested"));
+  }
+
+  @Test
+  public void reloadSketches() {
+    final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    SketchServerConfig serverConfig = null;
+    try {
+      serverConfig = new SketchServerConfig(Objects.requireNonNull(classLoader.getResource("test_config.json")).getFile());
+    } catch (final IOException e) {
+      fail();
+    }
+    assertNotNull(serverConfig);
+
+    final SketchStorage storage = new SketchStorage(serverConfig.getSketchList());
+    final SketchStorage.SketchEntry cpcEntry = storage.getSketch("cpcOfNumbers");
+    ((CpcSketch) cpcEntry.getOrCreateSketch()).update(1L);
+
+    // drop cpcOfStrings, change k for hll1, add a new sketch
+    final List<SketchServerConfig.SketchInfo> newList = new ArrayList<>();
+    for (final SketchServerConfig.SketchInfo info : serverConfig.getSketchList()) {
+      if (info.name.equals("cpcOfStrings")) {
+        continue;
+      } else if (info.name.equals("hll1")) {
+        newList.add(new SketchServerConfig.SketchInfo(info.name, info.k + 1, info.family, info.type));
+      } else {
+        newList.add(info);
+      }
+    }
+    newList.add(new SketchServerConfig.SketchInfo("newHll", 10, "hll", "long"));
+
+    final JsonObject summary = storage.reload(newList);
+    assertEquals(summary.get(RESPONSE_ADDED_COUNT_FIELD).getAsInt(), 1);
+    assertEquals(summary.get(RESPONSE_REMOVED_COUNT_FIELD).getAsInt(), 1);
+    assertEquals(summary.get(RESPONSE_CHANGED_COUNT_FIELD).getAsInt(), 1);
+    assertEquals(summary.get(RESPONSE_RETAINED_COUNT_FIELD).getAsInt(), 21);
+
+    assertFalse(storage.contains("cpcOfStrings"));
+    assertTrue(storage.contains("newHll"));
+    assertEquals(storage.getSketch("hll1").configK_, 15);
+    // unchanged sketches keep their data
+    assertSame(storage.getSketch("cpcOfNumbers"), cpcEntry);
+    assertFalse(((CpcSketch) storage.getSketch("cpcOfNumbers").sketch_).isEmpty());
+
+    // an invalid config leaves everything in place
+    newList.add(new SketchServerConfig.SketchInfo("newHll", 10, "hll", "long"));
+    try {
+      storage.reload(newList);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+    assertTrue(storage.contains("newHll"));
+    assertEquals(storage.listSketches().get(RESPONSE_SKETCH_COUNT_FIELD).getAsInt(), 23);
+  }
 }
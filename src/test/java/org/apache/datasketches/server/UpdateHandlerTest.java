@@ -21,13 +21,23 @@ package org.apache.datasketches.server;
 
 import static org.apache.datasketches.server.SketchConstants.QUERY_PAIR_ITEM_FIELD;
 import static org.apache.datasketches.server.SketchConstants.QUERY_PAIR_WEIGHT_FIELD;
+import static org.apache.datasketches.server.SketchConstants.UNPROCESSABLE_ENTITY;
 import static org.apache.datasketches.server.SketchConstants.UPDATE_PATH;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+import java.util.HashMap;
 
 import org.apache.datasketches.cpc.CpcSketch;
+import org.apache.datasketches.frequencies.ItemsSketch;
+import org.apache.datasketches.frequencies.LongsSketch;
+import org.apache.datasketches.hll.HllSketch;
+import org.apache.datasketches.kll.KllFloatsSketch;
+import org.apache.datasketches.sampling.VarOptItemsSamples;
+import org.apache.datasketches.sampling.VarOptItemsSketch;
 import org.testng.annotations.Test;
 
 import com.google.gson.JsonArray;
@@ -117,11 +127,45 @@ public class UpdateHandlerTest extends ServerTestBase {
   @Test
   public void hllUpdate() {
     // update multiple sketches from an array
+    final JsonObject response = new JsonObject();
+    final int nPoints = 1000;
+
+    final JsonObject request = new JsonObject();
+    final JsonArray data = new JsonArray();
+    for (int i = 0; i < nPoints; ++i)
+      data.add("item" + i);
+    request.add("hll1", data);
+    request.add("hll2", data);
+    request.addProperty("hll3", "single");
+    assertEquals(postData(UPDATE_PATH, request, response), HttpServletResponse.SC_OK);
+
+    assertEquals(((HllSketch) server_.getSketch("hll1").sketch_).getEstimate(), nPoints, nPoints * 1e-2);
+    assertEquals(((HllSketch) server_.getSketch("hll2").sketch_).getEstimate(), nPoints, nPoints * 1e-2);
+    assertEquals(((HllSketch) server_.getSketch("hll3").sketch_).getEstimate(), 1.0, 1e-6);
   }
 
   @Test
   public void kllUpdate() {
+    // values are parsed before locking, whatever the size of the batch
+    final int n = 10000;
+    final JsonObject request = new JsonObject();
+    final JsonArray data = new JsonArray();
+    for (int i = 1; i <= n; ++i)
+      data.add(i);
+    request.add("duration", data);
+    assertEquals(postData(UPDATE_PATH, request, new JsonObject()), HttpServletResponse.SC_OK);
 
+    final JsonArray small = new JsonArray();
+    small.add(-1.5);
+    small.add(n + 1.5);
+    request.add("duration", small);
+    assertEquals(postData(UPDATE_PATH, request, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final KllFloatsSketch sk = (KllFloatsSketch) server_.getSketch("duration").sketch_;
+    assertEquals(sk.getN(), n + 2);
+    assertEquals(sk.getMinValue(), -1.5f);
+    assertEquals(sk.getMaxValue(), n + 1.5f);
+    assertEquals(sk.getQuantile(0.5), n / 2.0, n * sk.getNormalizedRankError(false));
   }
 
   @Test
@@ -135,8 +179,116 @@ public class UpdateHandlerTest extends ServerTestBase {
   }
 
   @Test
+  @SuppressWarnings("unchecked")
   public void voUpdate() {
+    // duplicates within a batch are combined into a single weighted item
+    final JsonObject request = new JsonObject();
+    final JsonArray data = new JsonArray();
+    for (int i = 0; i < 500; ++i)
+      data.add("x");
+    for (int i = 0; i < 300; ++i)
+      data.add("y");
+    final JsonObject weighted = new JsonObject();
+    weighted.addProperty(QUERY_PAIR_ITEM_FIELD, "y");
+    weighted.addProperty(QUERY_PAIR_WEIGHT_FIELD, 2.5);
+    data.add(weighted);
+    request.add("vo", data);
+    assertEquals(postData(UPDATE_PATH, request, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final VarOptItemsSketch<String> sk = (VarOptItemsSketch<String>) server_.getSketch("vo").sketch_;
+    assertEquals(sk.getNumSamples(), 2);
+    final HashMap<String, Double> weights = new HashMap<>();
+    for (final VarOptItemsSamples<String>.WeightedSample ws : sk.getSketchSamples()) {
+      weights.put(ws.getItem(), ws.getWeight());
+    }
+    assertEquals(weights.get("x"), 500.0);
+    assertEquals(weights.get("y"), 302.5);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void batchDuplicates() {
+    final JsonObject request = new JsonObject();
+    final JsonArray items = new JsonArray();
+    for (int i = 0; i < 1000; ++i) {
+      items.add("dup");
+    }
+    final JsonObject weighted = new JsonObject();
+    weighted.addProperty(QUERY_PAIR_ITEM_FIELD, "dup");
+    weighted.addProperty(QUERY_PAIR_WEIGHT_FIELD, 5);
+    items.add(weighted);
+    items.add("single");
+    request.add("topItems", items);
+    assertEquals(postData(UPDATE_PATH, request, new JsonObject()), HttpServletResponse.SC_OK);
+
+    final ItemsSketch<String> sk = (ItemsSketch<String>) server_.getSketch("topItems").sketch_;
+    assertEquals(sk.getEstimate("dup"), 1005);
+    assertEquals(sk.getEstimate("single"), 1);
+  }
+
+  @Test
+  public void decayedWeights() {
+    final SketchServerConfig.SketchInfo info = new SketchServerConfig.SketchInfo("decayed", 64, "frequency", "long");
+    info.halfLife = 3600.0;
+    final SketchStorage storage = new SketchStorage(Collections.singletonList(info));
+    final UpdateHandler handler = new UpdateHandler(storage);
+
+    final JsonObject input = new JsonObject();
+    input.addProperty(QUERY_PAIR_ITEM_FIELD, 1L);
+    input.addProperty(QUERY_PAIR_WEIGHT_FIELD, DecayedFrequencySketch.MAX_WEIGHT);
+    final JsonObject request = new JsonObject();
+    request.add("decayed", input);
+    handler.processQuery(request);
+
+    // a weight that would overflow once scaled is rejected rather than wrapping around
+    input.addProperty(QUERY_PAIR_WEIGHT_FIELD, Long.MAX_VALUE / 2);
+    try {
+      handler.processQuery(request);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
 
+    final DecayedFrequencySketch sk = (DecayedFrequencySketch) storage.getSketch("decayed").sketch_;
+    assertEquals(((LongsSketch) sk.getSketch()).getEstimate(1L) / sk.getScale(),
+        (double) DecayedFrequencySketch.MAX_WEIGHT, 1e-6);
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void nonPositiveWeights() {
+    for (final String name : new String[] {"topItems", "vo"}) {
+      for (final int weight : new int[] {0, -1}) {
+        final JsonObject input = new JsonObject();
+        input.addProperty(QUERY_PAIR_ITEM_FIELD, "bad");
+        input.addProperty(QUERY_PAIR_WEIGHT_FIELD, weight);
+        final JsonObject request = new JsonObject();
+        request.add(name, input);
+        assertEquals(postData(UPDATE_PATH, request, new JsonObject()), UNPROCESSABLE_ENTITY);
+
+        // checked up front as well, so that queued updates are rejected on the request thread
+        try {
+          UpdateHandler.checkUpdate(server_.getSketch(name), input);
+          fail();
+        } catch (final IllegalArgumentException e) {
+          // expected
+        }
+      }
+    }
+
+    // a negative weight is not masked by a larger one for the same item in a batch
+    final JsonArray data = new JsonArray();
+    for (final int weight : new int[] {10, -5}) {
+      final JsonObject input = new JsonObject();
+      input.addProperty(QUERY_PAIR_ITEM_FIELD, "bad");
+      input.addProperty(QUERY_PAIR_WEIGHT_FIELD, weight);
+      data.add(input);
+    }
+    final JsonObject request = new JsonObject();
+    request.add("topItems", data);
+    assertEquals(postData(UPDATE_PATH, request, new JsonObject()), UNPROCESSABLE_ENTITY);
+
+    final ItemsSketch<String> sk = (ItemsSketch<String>) server_.getSketch("topItems").sketch_;
+    assertEquals(sk == null ? 0 : sk.getEstimate("bad"), 0);
+  }
 }
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.datasketches.server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.apache.datasketches.kll.KllFloatsSketch;
+import org.testng.annotations.Test;
+
+public class WindowedKllSketchTest {
+  private static final long SECOND_MS = 1000;
+
+  // one value per second, equal to the second in which it arrives
+  private static void fill(final WindowedKllSketch sketch, final int fromSecond, final int toSecond) {
+    for (int t = fromSecond; t <= toSecond; ++t) {
+      sketch.getCurrent().update(t);
+      sketch.advance(t * SECOND_MS);
+    }
+  }
+
+  @Test
+  public void logarithmicBuckets() {
+    final WindowedKllSketch sketch = new WindowedKllSketch(200, 1000 * SECOND_MS, 0);
+    fill(sketch, 1, 1000);
+    // levels up to log2(1000), each with at most the maximum number of buckets
+    assertTrue(sketch.getNumBuckets() <= WindowedKllSketch.MAX_BUCKETS_PER_LEVEL * 10);
+
+    for (final int window : new int[] {1, 10, 100, 1000}) {
+      final KllFloatsSketch result = sketch.getWindow(window * SECOND_MS);
+      final long start = sketch.getWindowStart(window * SECOND_MS);
+      // the window is fully covered, and the result holds exactly the values since the reported start
+      assertTrue(start <= (1000 - window) * SECOND_MS);
+      assertEquals(result.getN(), 1000 - start / SECOND_MS);
+      assertEquals(result.getMinValue(), start / SECOND_MS + 1.0f);
+      assertEquals(result.getMaxValue(), 1000.0f);
+    }
+  }
+
+  @Test
+  public void expiresOldBuckets() {
+    final WindowedKllSketch sketch = new WindowedKllSketch(200, 100 * SECOND_MS, 0);
+    fill(sketch, 1, 400);
+    final KllFloatsSketch all = sketch.getWindow(Long.MAX_VALUE);
+    assertTrue(all.getMinValue() > 100.0f);
+    assertEquals(all.getMaxValue(), 400.0f);
+
+    // advancing without new values only ages out buckets
+    final int buckets = sketch.getNumBuckets();
+    sketch.advance(450 * SECOND_MS);
+    assertTrue(sketch.getNumBuckets() <= buckets);
+    assertEquals(sketch.getWindow(10 * SECOND_MS).getN(), 0);
+    sketch.advance(1000 * SECOND_MS);
+    assertTrue(sketch.isEmpty());
+
+    // time never moves backwards
+    sketch.getCurrent().update(1.0f);
+    sketch.advance(500 * SECOND_MS);
+    assertEquals(sketch.getNumBuckets(), 0);
+    assertEquals(sketch.getWindow(SECOND_MS).getN(), 1);
+  }
+}